@@ -17,9 +17,15 @@
 
 package org.avrbuddy.conn;
 
+import org.avrbuddy.log.LoggedThread;
+import org.avrbuddy.util.BufferPool;
 import org.avrbuddy.util.State;
 
 import java.io.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
 
 /**
  * @author Roman Elizarov
@@ -29,16 +35,27 @@ public abstract class BufferedConnection extends Connection {
     protected static final int DATA_AVAILABLE = 2;
     protected static final int END_OF_INPUT = 4;
 
+    private static final byte[] NO_BYTES = new byte[0];
+    private static final int MAX_GROW = 1 << 30; // GROW limit when it is not given
+
     protected final Input in;
     protected final Output out;
     protected final State state = new State();
 
+    private volatile Runnable onInputAvailable;
+
     public BufferedConnection(int inBufferSize, int outBufferSize) {
         in = new Input(inBufferSize);
         out = new Output(outBufferSize);
     }
 
-    protected abstract void flushOutput(byte[] buffer, int size) throws IOException;
+    // buffer is reused after return and shall not be retained, output that is not accepted till deadline
+    // (0 when there is none) shall not be done at all and reported with InterruptedIOException
+    protected abstract void flushOutput(byte[] buffer, int size, long deadline) throws IOException;
+
+    // invoked on sync after all buffered output was passed to flushOutput, output that is not delivered till deadline
+    // (0 when there is none) shall be reported with InterruptedIOException
+    protected void waitOutputDelivered(long deadline) throws IOException {}
 
     @Override
     public InputStream getInput() {
@@ -50,15 +67,54 @@ public abstract class BufferedConnection extends Connection {
         return out;
     }
 
+    @Override
+    public void sync() throws IOException {
+        out.sync();
+    }
+
     @Override
     public void close() {
         if (!state.set(CLOSED))
             return;
+        in.closeImpl();
+        out.closeImpl();
+        if (in.hadOverflow())
+            log.info(in.toString());
         closeImpl();
+        fireInputAvailable();
     }
 
     protected void closeImpl() {}
 
+    // action is invoked when more input becomes available, on end of input and on close; it shall not block
+    public void setOnInputAvailable(Runnable action) {
+        onInputAvailable = action;
+    }
+
+    public boolean isInputAtEnd() {
+        return state.is(CLOSED) || state.is(END_OF_INPUT) && in.available() == 0;
+    }
+
+    private void inputAvailable() {
+        state.set(DATA_AVAILABLE);
+        fireInputAvailable();
+    }
+
+    private void fireInputAvailable() {
+        Runnable onInputAvailable = this.onInputAvailable;
+        if (onInputAvailable != null)
+            onInputAvailable.run();
+    }
+
+    // flush passes full buffer to flushOutput from a separate thread and does not wait for delivery
+    public void setAsyncFlush(boolean async) throws IOException {
+        out.setAsyncFlush(async);
+    }
+
+    public void setInputOverflowPolicy(InputOverflowPolicy policy, long limit) {
+        in.setOverflowPolicy(policy, limit);
+    }
+
     @Override
     public void drainInput() {
         in.drain();
@@ -75,20 +131,41 @@ public abstract class BufferedConnection extends Connection {
     }
 
     protected class Input extends InputStream {
-        private final byte[] buffer;
-        private int readIndex = 0;
-        private int writeIndex = 0;
+        private final Object lock = new Object();
+        private final int initialSize;
+        private byte[] buffer = NO_BYTES; // power of two size, borrowed from pool on first write until close
+        private int mask;
+        private int baseLength; // length of the ring before it grows
+        private int readIndex = 0;  // wraps around int, masked for buffer access
+        private int writeIndex = 0; // wraps around int, masked for buffer access
+        private int waitingWriters;
+
+        private InputOverflowPolicy overflowPolicy = InputOverflowPolicy.DROP;
+        private long overflowLimit;
+
+        // data that did not fit into buffer with SPILL policy, it follows data in buffer
+        private File spillFile;
+        private RandomAccessFile spill;
+        private long spillReadPos;
+        private long spillWritePos;
+
+        private long droppedBytes;
+        private long spilledBytes;
+        private long stallTime;
+        private int maxSize;
+        private boolean grown;
 
         private volatile long timeout;
 
         public Input(int inBufferSize) {
-            buffer = new byte[inBufferSize];
+            initialSize = inBufferSize <= 1 ? 1 : Integer.highestOneBit(inBufferSize - 1) << 1;
+            mask = -1;
         }
 
         @Override
         public int available() {
-            synchronized (buffer) {
-                return state.is(CLOSED) ? 0 : (writeIndex - readIndex + buffer.length) % buffer.length;
+            synchronized (lock) {
+                return state.is(CLOSED) ? 0 : writeIndex - readIndex;
             }
         }
 
@@ -99,27 +176,52 @@ public abstract class BufferedConnection extends Connection {
                     throw new EOFException("Connection is closed");
                 if (!state.await(DATA_AVAILABLE | CLOSED | END_OF_INPUT, timeout))
                     throw new InterruptedIOException("Timeout");
-                synchronized (buffer) {
+                synchronized (lock) {
                     if (readIndex == writeIndex) {
                         state.clear(DATA_AVAILABLE);
                         if (state.is(END_OF_INPUT))
                             return -1;
                         continue;
                     }
-                    byte b = buffer[readIndex];
-                    readIndex = (readIndex + 1) % buffer.length;
-                    return b & 0xff;
+                    int b = buffer[readIndex++ & mask] & 0xff;
+                    consumed();
+                    return b;
                 }
             }
         }
 
         @Override
         public int read(byte[] b, int off, int len) throws IOException {
-            return super.read(b, off, Math.min(Math.max(available(), 1), len));
+            if (len == 0)
+                return 0;
+            while (true) {
+                if (state.is(CLOSED))
+                    throw new EOFException("Connection is closed");
+                if (!state.await(DATA_AVAILABLE | CLOSED | END_OF_INPUT, timeout))
+                    throw new InterruptedIOException("Timeout");
+                synchronized (lock) {
+                    int n = Math.min(writeIndex - readIndex, len);
+                    if (n == 0) {
+                        state.clear(DATA_AVAILABLE);
+                        if (state.is(END_OF_INPUT))
+                            return -1;
+                        continue;
+                    }
+                    int r = readIndex & mask;
+                    int first = Math.min(n, buffer.length - r);
+                    System.arraycopy(buffer, r, b, off, first);
+                    System.arraycopy(buffer, 0, b, off + first, n - first);
+                    readIndex += n;
+                    consumed();
+                    return n;
+                }
+            }
         }
 
         public void endOfStream() {
-            state.set(DATA_AVAILABLE | END_OF_INPUT);
+            // set separately, because set does nothing when any of the bits is already set
+            state.set(END_OF_INPUT);
+            inputAvailable();
         }
 
         public void write(byte[] bytes) {
@@ -127,25 +229,44 @@ public abstract class BufferedConnection extends Connection {
         }
 
         public void write(byte[] bytes, int off, int len) {
-            int skipped = 0;
-            synchronized (buffer) {
+            int skipped;
+            synchronized (lock) {
                 if (state.is(END_OF_INPUT))
                     throw new IllegalStateException("Should not have more data after end of stream");
-                for (int i = 0; i < len; i++) {
-                    byte b = bytes[i + off];
-                    int w2 = (writeIndex + 1) % buffer.length;
-                    if (w2 == readIndex) {
-                        skipped = len - i;
+                int n = spillReadPos == spillWritePos ? put(bytes, off, len) : 0;
+                off += n;
+                len -= n;
+                if (len > 0) {
+                    switch (overflowPolicy) {
+                    case BLOCK:
+                        len = putBlocking(bytes, off, len);
+                        break;
+                    case GROW:
+                        grow(len);
+                        len -= put(bytes, off, len);
+                        break;
+                    case SPILL:
+                        len = putSpill(bytes, off, len);
                         break;
                     }
-                    buffer[writeIndex] = b;
-                    writeIndex = w2;
                 }
+                skipped = len;
+                droppedBytes += skipped;
+                maxSize = Math.max(maxSize, writeIndex - readIndex);
             }
             if (skipped > 0)
                 log.warning("Skipped " + skipped + " bytes from " +
                         BufferedConnection.this.toString() + " due to input buffer overflow");
-            state.set(DATA_AVAILABLE);
+            inputAvailable();
+        }
+
+        public void setOverflowPolicy(InputOverflowPolicy policy, long limit) {
+            if (policy == null || limit < 0)
+                throw new IllegalArgumentException();
+            synchronized (lock) {
+                overflowPolicy = policy;
+                overflowLimit = limit;
+            }
         }
 
         @Override
@@ -153,50 +274,282 @@ public abstract class BufferedConnection extends Connection {
             BufferedConnection.this.close();
         }
 
+        void closeImpl() {
+            synchronized (lock) {
+                lock.notifyAll();
+                releaseBuffer();
+                clearSpill();
+                if (spillFile != null) {
+                    try {
+                        spill.close();
+                    } catch (IOException e) {
+                        log.log(Level.WARNING, "Failed to close " + spillFile, e);
+                    }
+                    if (!spillFile.delete())
+                        log.warning("Failed to delete " + spillFile);
+                }
+            }
+        }
+
         public void drain() {
-            synchronized (buffer) {
+            synchronized (lock) {
                 readIndex = 0;
                 writeIndex = 0;
+                shrinkBuffer();
+                clearSpill();
+                lock.notifyAll();
             }
         }
 
         public void setTimeout(long timeout) {
             this.timeout = timeout;
         }
+
+        @Override
+        public String toString() {
+            synchronized (lock) {
+                return "input of " + BufferedConnection.this.toString() + ": " +
+                        "dropped " + droppedBytes + " bytes, " +
+                        "stalled " + stallTime + " ms, " +
+                        "spilled " + spilledBytes + " bytes, " +
+                        "max size " + maxSize + " bytes";
+            }
+        }
+
+        boolean hadOverflow() {
+            synchronized (lock) {
+                return droppedBytes != 0 || stallTime != 0 || spilledBytes != 0 || grown;
+            }
+        }
+
+        // ----------- private methods are invoked under lock -----------
+
+        private void setBuffer(byte[] buffer) {
+            this.buffer = buffer;
+            mask = buffer.length - 1;
+        }
+
+        private void releaseBuffer() {
+            BufferPool.SHARED.release(buffer == NO_BYTES ? null : buffer);
+            setBuffer(NO_BYTES);
+            readIndex = 0;
+            writeIndex = 0;
+        }
+
+        private int put(byte[] bytes, int off, int len) {
+            if (buffer == NO_BYTES) {
+                setBuffer(BufferPool.SHARED.borrow(initialSize));
+                baseLength = buffer.length;
+            }
+            int n = Math.min(buffer.length - (writeIndex - readIndex), len);
+            int w = writeIndex & mask;
+            int first = Math.min(n, buffer.length - w);
+            System.arraycopy(bytes, off, buffer, w, first);
+            System.arraycopy(bytes, off + first, buffer, 0, n - first);
+            writeIndex += n;
+            return n;
+        }
+
+        private void consumed() {
+            if (waitingWriters > 0)
+                lock.notifyAll();
+            if (spillReadPos != spillWritePos) {
+                // refill from disk in big chunks
+                if (buffer.length - (writeIndex - readIndex) >= buffer.length / 2)
+                    unspill();
+            } else if (readIndex == writeIndex) {
+                shrinkBuffer();
+            }
+        }
+
+        // returns ring that has grown with GROW policy back to pool once it is empty
+        private void shrinkBuffer() {
+            if (buffer.length <= baseLength)
+                return;
+            BufferPool.SHARED.release(buffer);
+            setBuffer(BufferPool.SHARED.borrow(baseLength));
+            readIndex = 0;
+            writeIndex = 0;
+        }
+
+        // returns number of bytes that were not put before timeout
+        private int putBlocking(byte[] bytes, int off, int len) {
+            long deadline = overflowLimit == 0 ? Long.MAX_VALUE : System.currentTimeMillis() + overflowLimit;
+            long start = System.nanoTime();
+            try {
+                while (len > 0 && !state.is(CLOSED)) {
+                    long wait = overflowLimit == 0 ? 0 : deadline - System.currentTimeMillis();
+                    if (overflowLimit != 0 && wait <= 0)
+                        break;
+                    inputAvailable(); // reader might be waiting for what was put so far
+                    waitingWriters++;
+                    try {
+                        lock.wait(wait);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    } finally {
+                        waitingWriters--;
+                    }
+                    int n = put(bytes, off, len);
+                    off += n;
+                    len -= n;
+                }
+            } finally {
+                stallTime += (System.nanoTime() - start) / 1000000;
+            }
+            return len;
+        }
+
+        private void grow(int len) {
+            int size = writeIndex - readIndex;
+            int maxLength = Integer.highestOneBit((int) (overflowLimit == 0 ? MAX_GROW : Math.min(overflowLimit, MAX_GROW)));
+            int length = Math.min(maxLength, Integer.highestOneBit(size + len - 1) << 1);
+            if (length <= buffer.length)
+                return;
+            byte[] grown = BufferPool.SHARED.borrow(length);
+            int r = readIndex & mask;
+            int first = Math.min(size, buffer.length - r);
+            System.arraycopy(buffer, r, grown, 0, first);
+            System.arraycopy(buffer, 0, grown, first, size - first);
+            BufferPool.SHARED.release(buffer);
+            setBuffer(grown);
+            this.grown = true;
+            readIndex = 0;
+            writeIndex = size;
+        }
+
+        // returns number of bytes that were not spilled
+        private int putSpill(byte[] bytes, int off, int len) {
+            int n = overflowLimit == 0 ? len : (int) Math.min(len, overflowLimit - (spillWritePos - spillReadPos));
+            if (n <= 0)
+                return len;
+            try {
+                if (spillFile == null) {
+                    spillFile = File.createTempFile("xtools", ".spill");
+                    spillFile.deleteOnExit();
+                    spill = new RandomAccessFile(spillFile, "rw");
+                }
+                spill.seek(spillWritePos);
+                spill.write(bytes, off, n);
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Failed to spill input of " + BufferedConnection.this.toString(), e);
+                return len;
+            }
+            spillWritePos += n;
+            spilledBytes += n;
+            return len - n;
+        }
+
+        private void unspill() {
+            int n = (int) Math.min(buffer.length - (writeIndex - readIndex), spillWritePos - spillReadPos);
+            int w = writeIndex & mask;
+            int first = Math.min(n, buffer.length - w);
+            try {
+                spill.seek(spillReadPos);
+                spill.readFully(buffer, w, first);
+                spill.readFully(buffer, 0, n - first);
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Failed to read spilled input of " + BufferedConnection.this.toString(), e);
+                droppedBytes += spillWritePos - spillReadPos;
+                clearSpill();
+                return;
+            }
+            writeIndex += n;
+            spillReadPos += n;
+            if (spillReadPos == spillWritePos)
+                clearSpill();
+        }
+
+        private void clearSpill() {
+            spillReadPos = 0;
+            spillWritePos = 0;
+            if (spill != null) {
+                try {
+                    spill.setLength(0);
+                } catch (IOException e) {
+                    log.log(Level.WARNING, "Failed to truncate " + spillFile, e);
+                }
+            }
+        }
     }
 
     private class Output extends OutputStream {
-        private final byte[] buffer;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition flushed = lock.newCondition();
+
+        private final int capacity;
+        private byte[] buffer; // borrowed from pool while not empty in sync flush mode
         private int size;
 
-        // todo: implement write timeout
+        // async flush mode: pending buffer is passed to flushOutput by flusher while writers fill the other one
+        private Flusher flusher;
+        private byte[] spare;
+        private byte[] pending; // null when there is nothing to flush
+        private int pendingSize;
+        private IOException failure; // reported to the next writer
+
         private volatile long timeout;
 
         public Output(int outBufferSize) {
-            buffer = new byte[outBufferSize];
+            capacity = outBufferSize;
         }
 
         @Override
         public void write(int b) throws IOException {
-            synchronized (buffer) {
-                if (size >= buffer.length)
-                    flush();
+            long deadline = deadline();
+            lock(deadline);
+            try {
+                if (size >= capacity)
+                    flushBuffer(deadline, 0);
+                borrowBuffer();
                 buffer[size++] = (byte) b;
+            } finally {
+                lock.unlock();
             }
         }
 
         @Override
         public void write(byte[] b, int off, int len) throws IOException {
-            synchronized (buffer) {
-                super.write(b, off, len);
+            long deadline = deadline();
+            lock(deadline);
+            try {
+                int done = 0;
+                while (done < len) {
+                    if (size >= capacity)
+                        flushBuffer(deadline, done);
+                    borrowBuffer();
+                    int n = Math.min(capacity - size, len - done);
+                    System.arraycopy(b, off + done, buffer, size, n);
+                    size += n;
+                    done += n;
+                }
+            } finally {
+                lock.unlock();
             }
         }
 
         @Override
         public void flush() throws IOException {
-            synchronized (buffer) {
-                flushOutput(buffer, size);
-                size = 0;
+            long deadline = deadline();
+            lock(deadline);
+            try {
+                flushBuffer(deadline, 0);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void sync() throws IOException {
+            long deadline = deadline();
+            lock(deadline);
+            try {
+                flushBuffer(deadline, 0);
+                if (flusher != null)
+                    awaitFlushed(deadline, 0);
+                waitOutputDelivered(deadline);
+            } finally {
+                lock.unlock();
             }
         }
 
@@ -205,9 +558,166 @@ public abstract class BufferedConnection extends Connection {
             BufferedConnection.this.close();
         }
 
+        void closeImpl() {
+            lock.lock();
+            try {
+                flusher = null;
+                flushed.signalAll();
+                BufferPool.SHARED.release(buffer);
+                BufferPool.SHARED.release(spare);
+                buffer = null;
+                spare = null;
+                size = 0;
+            } finally {
+                lock.unlock();
+            }
+        }
+
         public void setTimeout(long timeout) {
-            // todo: support timeout
             this.timeout = timeout;
         }
+
+        public void setAsyncFlush(boolean async) throws IOException {
+            lock(0);
+            try {
+                if (async == (flusher != null))
+                    return;
+                if (async) {
+                    borrowBuffer();
+                    spare = BufferPool.SHARED.borrow(capacity);
+                    flusher = new Flusher();
+                    flusher.start();
+                } else {
+                    awaitFlushed(0, 0);
+                    flusher = null;
+                    BufferPool.SHARED.release(spare);
+                    spare = null;
+                    flushed.signalAll();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // ----------- private methods except lock are invoked under lock -----------
+
+        private long deadline() {
+            long timeout = this.timeout;
+            return timeout == 0 ? 0 : System.currentTimeMillis() + timeout;
+        }
+
+        private void lock(long deadline) throws IOException {
+            try {
+                if (deadline == 0)
+                    lock.lockInterruptibly();
+                else if (!lock.tryLock(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS))
+                    throw new InterruptedIOException("Timeout");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw ((InterruptedIOException) new InterruptedIOException().initCause(e));
+            }
+        }
+
+        private void borrowBuffer() {
+            if (buffer == null)
+                buffer = BufferPool.SHARED.borrow(capacity);
+        }
+
+        private void flushBuffer(long deadline, int done) throws IOException {
+            if (flusher == null) {
+                try {
+                    flushOutput(buffer == null ? NO_BYTES : buffer, size, deadline);
+                } catch (InterruptedIOException e) {
+                    // buffered output stays, caller learns how much of its data was accepted
+                    e.bytesTransferred = done;
+                    throw e;
+                }
+                // flushOutput does not keep the buffer, so idle connection returns it to pool
+                BufferPool.SHARED.release(buffer);
+                buffer = null;
+                size = 0;
+                return;
+            }
+            checkFailure();
+            if (size == 0)
+                return;
+            awaitFlushed(deadline, done);
+            pending = buffer;
+            pendingSize = size;
+            buffer = spare;
+            spare = null;
+            size = 0;
+            flushed.signalAll();
+        }
+
+        private void awaitFlushed(long deadline, int done) throws IOException {
+            try {
+                while (pending != null) {
+                    if (state.is(CLOSED))
+                        throw new EOFException("Connection is closed");
+                    if (deadline == 0)
+                        flushed.await();
+                    else if (!flushed.await(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS)) {
+                        InterruptedIOException e = new InterruptedIOException("Timeout");
+                        e.bytesTransferred = done;
+                        throw e;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw ((InterruptedIOException) new InterruptedIOException().initCause(e));
+            }
+            checkFailure();
+        }
+
+        private void checkFailure() throws IOException {
+            IOException failure = this.failure;
+            if (failure != null) {
+                this.failure = null;
+                throw failure;
+            }
+        }
+
+        private class Flusher extends LoggedThread {
+            Flusher() {
+                super(BufferedConnection.this.toString());
+                setDaemon(true);
+            }
+
+            @Override
+            public void run() {
+                while (true) {
+                    byte[] block;
+                    int blockSize;
+                    lock.lock();
+                    try {
+                        while (pending == null && flusher == this)
+                            flushed.awaitUninterruptibly();
+                        if (pending == null)
+                            return;
+                        block = pending;
+                        blockSize = pendingSize;
+                    } finally {
+                        lock.unlock();
+                    }
+                    IOException error = null;
+                    try {
+                        flushOutput(block, blockSize, 0);
+                    } catch (IOException e) {
+                        error = e;
+                    }
+                    lock.lock();
+                    try {
+                        if (error != null)
+                            failure = error;
+                        pending = null;
+                        spare = block;
+                        flushed.signalAll();
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+            }
+        }
     }
 }
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2012 Roman Elizarov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.avrbuddy.conn;
+
+import org.avrbuddy.util.State;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Records all data that is read from and written to a serial connection into a {@link SerialJournal journal}.
+ *
+ * @author Roman Elizarov
+ */
+class CapturingSerialConnection extends SerialConnection {
+    private static final int CLOSED = 1;
+
+    private final SerialConnection conn;
+    private final SerialJournal.Writer journal;
+    private final Input in;
+    private final Output out;
+    private final State state = new State();
+
+    CapturingSerialConnection(SerialConnection conn, SerialJournal.Writer journal) {
+        this.conn = conn;
+        this.journal = journal;
+        in = new Input(conn.getInput());
+        out = new Output(conn.getOutput());
+        log.info("Capturing " + conn + " to " + journal);
+    }
+
+    @Override
+    public InputStream getInput() {
+        return in;
+    }
+
+    @Override
+    public OutputStream getOutput() {
+        return out;
+    }
+
+    @Override
+    public void drainInput() throws IOException {
+        conn.drainInput();
+    }
+
+    @Override
+    public void setReadTimeout(long timeout) {
+        conn.setReadTimeout(timeout);
+    }
+
+    @Override
+    public void setWriteTimeout(long timeout) {
+        conn.setWriteTimeout(timeout);
+    }
+
+    @Override
+    public void close() {
+        if (!state.set(CLOSED))
+            return;
+        conn.close();
+        journal.close();
+        log.info("Captured " + journal);
+    }
+
+    @Override
+    public void resetHost() throws IOException {
+        conn.resetHost();
+    }
+
+    @Override
+    public void setOnConnected(Runnable action) {
+        conn.setOnConnected(action);
+    }
+
+    @Override
+    public void setHardwareFlowControl(int mode) throws IOException {
+        conn.setHardwareFlowControl(mode);
+    }
+
+    @Override
+    public int getBaud() {
+        return conn.getBaud();
+    }
+
+    @Override
+    public void setBaud(int baud) throws IOException {
+        conn.setBaud(baud);
+        journal.appendBaud(baud);
+    }
+
+    @Override
+    public String getStats() {
+        String stats = conn.getStats();
+        return (stats == null ? conn.toString() : stats) + ", captured " + journal;
+    }
+
+    @Override
+    public String toString() {
+        return conn.toString();
+    }
+
+    private class Input extends InputStream {
+        private final InputStream in;
+
+        Input(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return in.available();
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0)
+                journal.append(SerialJournal.READ, new byte[] {(byte) b}, 0, 1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            journal.append(SerialJournal.READ, b, off, n);
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            CapturingSerialConnection.this.close();
+        }
+    }
+
+    private class Output extends OutputStream {
+        private final OutputStream out;
+
+        Output(OutputStream out) {
+            this.out = out;
+        }
+
+        // output is recorded before it is written, so that responses never precede their requests in journal
+        @Override
+        public void write(int b) throws IOException {
+            journal.append(SerialJournal.WRITE, new byte[] {(byte) b}, 0, 1);
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            journal.append(SerialJournal.WRITE, b, off, len);
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            CapturingSerialConnection.this.close();
+        }
+    }
+}
@@ -42,5 +42,15 @@ public abstract class Connection implements Closeable {
     public void resetHost() throws IOException {}
     public void setOnConnected(Runnable action) {}
 
+    // flushes output and, when connection confirms delivery, waits until the other side has received it
+    public void sync() throws IOException {
+        getOutput().flush();
+    }
+
+    // returns throughput counters or null when not supported
+    public String getStats() {
+        return null;
+    }
+
     public abstract String toString();
 }
@@ -22,6 +22,10 @@ package org.avrbuddy.conn;
  */
 public class ConnectionOptions {
     private int baud;
+    private String serialBackend; // null for RXTX
+    private String serialCapture; // journal file for all traffic of serial port or null
+    private boolean serialReplayFast;
+    private boolean serialLowLatency;
 
     public ConnectionOptions() {}
 
@@ -29,7 +33,53 @@ public class ConnectionOptions {
         this.baud = baud;
     }
 
+    // the same options with another baud rate
+    public ConnectionOptions withBaud(int baud) {
+        ConnectionOptions options = new ConnectionOptions(baud);
+        options.serialBackend = serialBackend;
+        options.serialCapture = serialCapture;
+        options.serialReplayFast = serialReplayFast;
+        options.serialLowLatency = serialLowLatency;
+        return options;
+    }
+
     public int getBaud() {
         return baud;
     }
+
+    public String getSerialBackend() {
+        return serialBackend;
+    }
+
+    // "rxtx" or "linux"
+    public void setSerialBackend(String serialBackend) {
+        if (serialBackend != null && !serialBackend.equals(SerialConnection.RXTX_BACKEND) &&
+                !serialBackend.equals(SerialConnection.LINUX_BACKEND))
+            throw new IllegalArgumentException("Unknown serial backend " + serialBackend);
+        this.serialBackend = serialBackend;
+    }
+
+    public String getSerialCapture() {
+        return serialCapture;
+    }
+
+    public void setSerialCapture(String serialCapture) {
+        this.serialCapture = serialCapture;
+    }
+
+    public boolean isSerialReplayFast() {
+        return serialReplayFast;
+    }
+
+    public void setSerialReplayFast(boolean serialReplayFast) {
+        this.serialReplayFast = serialReplayFast;
+    }
+
+    public boolean isSerialLowLatency() {
+        return serialLowLatency;
+    }
+
+    public void setSerialLowLatency(boolean serialLowLatency) {
+        this.serialLowLatency = serialLowLatency;
+    }
 }
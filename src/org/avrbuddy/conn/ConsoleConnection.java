@@ -75,7 +75,7 @@ public class ConsoleConnection extends BufferedConnection {
     }
 
     @Override
-    protected void flushOutput(byte[] buffer, int size) throws IOException {
+    protected void flushOutput(byte[] buffer, int size, long deadline) throws IOException {
         System.out.write(buffer, 0, size);
         System.out.flush();
     }
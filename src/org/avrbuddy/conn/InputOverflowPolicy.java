@@ -0,0 +1,31 @@
+/*
+ * Copyright (C) 2012 Roman Elizarov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.avrbuddy.conn;
+
+/**
+ * What {@link BufferedConnection} does with received data when its input buffer is full.
+ * The meaning of the policy limit is given for each policy.
+ *
+ * @author Roman Elizarov
+ */
+public enum InputOverflowPolicy {
+    DROP,  // drops data that does not fit, no limit
+    BLOCK, // blocks producer until there is space up to a timeout in ms (0 to wait forever), then drops
+    GROW,  // grows buffer up to a size in bytes (0 for 1 GB), then drops
+    SPILL  // spills data to a temporary file up to a size in bytes (0 for no limit), then drops
+}
@@ -0,0 +1,308 @@
+/*
+ * Copyright (C) 2012 Roman Elizarov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.avrbuddy.conn;
+
+import org.avrbuddy.log.Log;
+import org.avrbuddy.log.LoggedThread;
+import org.avrbuddy.util.BufferPool;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Moves data from connections to output streams. Transfers from {@link BufferedConnection buffered connections}
+ * run only when their input becomes available, so idle transfers do not occupy any threads. They run on pooled
+ * threads that are created as needed and reused, because writes to outputs can block (for flow control or
+ * delivery of tunnel data), and a transfer whose output is stuck must hold only its own thread.
+ * Other connections can only be read with blocking calls and get a dedicated thread.
+ *
+ * @author Roman Elizarov
+ */
+public class IoReactor {
+    private static final Logger log = Log.getLogger(IoReactor.class);
+
+    private static final int BUF_SIZE = 1024;
+    private static final long AGGREGATION_DELAY = 2; // wait to produce larger packets
+
+    public static final IoReactor SHARED = new IoReactor("IoReactor");
+
+    private final ExecutorService executor; // runs transfers, they may block on write
+    private final ScheduledExecutorService timer; // only hands delayed transfers over to executor
+
+    public IoReactor(String name) {
+        executor = Executors.newCachedThreadPool(new NamedThreadFactory(name));
+        timer = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory(name + "-timer"));
+    }
+
+    /**
+     * Starts transfer of data from connection's input to the specified output.
+     * The specified action is invoked once when transfer ends due to end of input or error.
+     */
+    public Transfer transfer(String name, Connection from, OutputStream to, Runnable onEnd) {
+        Transfer transfer = from instanceof BufferedConnection ?
+                new ScheduledTransfer(name, (BufferedConnection) from, to, onEnd) :
+                new ThreadTransfer(name, from, to, onEnd);
+        transfer.start();
+        return transfer;
+    }
+
+    public abstract static class Transfer {
+        protected final String name;
+        protected final InputStream in;
+        protected final OutputStream out;
+        private final Runnable onEnd;
+        private final AtomicBoolean ended = new AtomicBoolean();
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        Transfer(String name, Connection from, OutputStream out, Runnable onEnd) {
+            this.name = name;
+            this.in = from.getInput();
+            this.out = out;
+            this.onEnd = onEnd;
+        }
+
+        abstract void start();
+
+        public void join() throws InterruptedException {
+            done.await();
+        }
+
+        void end() {
+            if (!ended.compareAndSet(false, true))
+                return;
+            try {
+                onEnd.run();
+            } finally {
+                done.countDown();
+            }
+        }
+
+        // returns false when transfer shall end
+        boolean write(byte[] buf, int size) throws IOException {
+            try {
+                out.write(buf, 0, size);
+            } catch (InterruptedIOException e) {
+                if (Thread.currentThread().isInterrupted())
+                    return false;
+                // output is stuck, drop data instead of stalling the other side of the link
+                log.warning(name + ": write timed out, dropped " + (size - e.bytesTransferred) + " bytes");
+            }
+            try {
+                out.flush();
+            } catch (InterruptedIOException e) {
+                if (Thread.currentThread().isInterrupted())
+                    return false;
+                // data stays buffered and is flushed with the next write
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    private class ScheduledTransfer extends Transfer implements Runnable {
+        private static final int IDLE = 0;
+        private static final int SCHEDULED = 1;
+        private static final int RUNNING = 2;
+        private static final int RUNNING_RESCHEDULE = 3; // more input became available while running
+
+        private final BufferedConnection from;
+        private final AtomicInteger status = new AtomicInteger(SCHEDULED);
+
+        ScheduledTransfer(String name, BufferedConnection from, OutputStream out, Runnable onEnd) {
+            super(name, from, out, onEnd);
+            this.from = from;
+        }
+
+        @Override
+        void start() {
+            from.setOnInputAvailable(new Runnable() {
+                public void run() {
+                    inputAvailable();
+                }
+            });
+            executor.execute(this);
+        }
+
+        private void inputAvailable() {
+            while (true) {
+                int s = status.get();
+                if (s == IDLE) {
+                    if (status.compareAndSet(IDLE, SCHEDULED)) {
+                        schedule(AGGREGATION_DELAY);
+                        return;
+                    }
+                } else if (s == RUNNING) {
+                    if (status.compareAndSet(RUNNING, RUNNING_RESCHEDULE))
+                        return;
+                } else
+                    return;
+            }
+        }
+
+        private void schedule(long delay) {
+            try {
+                if (delay == 0)
+                    executor.execute(this);
+                else
+                    timer.schedule(new Runnable() {
+                        public void run() {
+                            schedule(0);
+                        }
+                    }, delay, TimeUnit.MILLISECONDS);
+            } catch (RuntimeException e) {
+                log.log(Level.SEVERE, name + ": failed to schedule", e);
+                finish();
+            }
+        }
+
+        public void run() {
+            status.set(RUNNING);
+            boolean more;
+            // buffer is held only while data is moving, idle transfers do not hold it
+            byte[] buf = BufferPool.SHARED.borrow(BUF_SIZE);
+            try {
+                more = transfer(buf);
+            } catch (EOFException e) {
+                more = false;
+            } catch (IOException e) {
+                log.log(Level.SEVERE, name + ": failed", e);
+                more = false;
+            } finally {
+                BufferPool.SHARED.release(buf);
+            }
+            if (!more) {
+                finish();
+                return;
+            }
+            // moves at most one buffer per run, so that other transfers get their turn
+            if (from.in.available() > 0 || !status.compareAndSet(RUNNING, IDLE)) {
+                status.set(SCHEDULED);
+                schedule(0);
+            }
+        }
+
+        // returns false when transfer shall end
+        private boolean transfer(byte[] buf) throws IOException {
+            int available = in.available();
+            if (available == 0)
+                return !from.isInputAtEnd();
+            int n = in.read(buf, 0, Math.min(BUF_SIZE, available));
+            if (n < 0 || !write(buf, n))
+                return false;
+            return !from.isInputAtEnd();
+        }
+
+        private void finish() {
+            from.setOnInputAvailable(null);
+            end();
+        }
+    }
+
+    private static class ThreadTransfer extends Transfer {
+        private final Worker worker;
+
+        ThreadTransfer(String name, Connection from, OutputStream out, Runnable onEnd) {
+            super(name, from, out, onEnd);
+            worker = new Worker(name);
+        }
+
+        @Override
+        void start() {
+            worker.start();
+        }
+
+        private class Worker extends LoggedThread {
+            Worker(String name) {
+                super(name);
+            }
+
+            @Override
+            public void run() {
+                try {
+                    while (!Thread.interrupted()) {
+                        int first = in.read();
+                        if (first < 0)
+                            break;
+                        byte[] buf = BufferPool.SHARED.borrow(BUF_SIZE);
+                        try {
+                            if (!transfer(first, buf))
+                                break;
+                        } finally {
+                            BufferPool.SHARED.release(buf);
+                        }
+                    }
+                } catch (EOFException e) {
+                    // just quit
+                } catch (IOException e) {
+                    log.log(Level.SEVERE, "Failed", e);
+                }
+                end();
+            }
+        }
+
+        // returns false when transfer shall end
+        private boolean transfer(int first, byte[] buf) throws IOException {
+            buf[0] = (byte) first;
+            int i = 1;
+            // takes what has arrived with the first byte, blocking read of the next one waits for more data
+            while (i < BUF_SIZE) {
+                int available = in.available();
+                if (available == 0)
+                    break;
+                int n = Math.min(BUF_SIZE - i, available);
+                n = in.read(buf, i, n);
+                if (n < 0)
+                    return false;
+                i += n;
+            }
+            return write(buf, i);
+        }
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String name;
+        private final AtomicInteger index = new AtomicInteger();
+
+        NamedThreadFactory(String name) {
+            this.name = name;
+        }
+
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, name + "-" + index.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
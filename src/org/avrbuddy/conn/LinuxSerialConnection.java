@@ -0,0 +1,396 @@
+/*
+ * Copyright (C) 2012 Roman Elizarov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.avrbuddy.conn;
+
+import org.avrbuddy.log.LoggedThread;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+
+/**
+ * Serial port backend for Linux without native libraries. Port is configured with termios via stty and
+ * data is transferred with blocking bulk reads and writes of the tty device, so there is no polling
+ * event thread. Works with any tty, including pseudo-terminals, but it is used only when asked for
+ * with {@link SerialConnection#LINUX_BACKEND}, because it cannot do everything that RXTX does:
+ * <ul>
+ * <li>DTR is not controlled, so {@link #resetHost()} fails;
+ * <li>DSR is not watched, so {@link #setOnConnected(Runnable)} action never runs;
+ * <li>termios controls RTS and CTS together, so inbound flow control alone is not supported.
+ * </ul>
+ * Read timeout is checked whenever termios wakes up blocked read (every 100 ms while timeout is set).
+ * Writes are done by a writer thread, so that a write that is stalled by flow control can time out.
+ *
+ * @author Roman Elizarov
+ */
+class LinuxSerialConnection extends SerialConnection {
+    private final String port;
+    private final FileInputStream fileIn;
+    private final FileChannel inChannel;
+    private final FileChannel outChannel;
+    private final Input in = new Input();
+    private final Output out = new Output();
+
+    private volatile int baud;
+    private volatile long readTimeout;
+    private volatile boolean closed;
+    private volatile long bytesRead;
+    private volatile long bytesWritten;
+
+    LinuxSerialConnection(String port, int baud, boolean lowLatency) throws IOException {
+        this.port = port;
+        // raw 8N1, blocking read of at least one byte
+        stty(String.valueOf(baud), "raw", "-echo", "cs8", "-cstopb", "-parenb", "clocal", "cread", "-crtscts",
+                "min", "1", "time", "0");
+        this.baud = baud;
+        if (lowLatency)
+            setLowLatency();
+        fileIn = new FileInputStream(port);
+        inChannel = fileIn.getChannel();
+        try {
+            outChannel = new FileOutputStream(port).getChannel();
+        } catch (IOException e) {
+            inChannel.close();
+            throw e;
+        }
+        new Writer().start();
+    }
+
+    @Override
+    public InputStream getInput() {
+        return in;
+    }
+
+    @Override
+    public OutputStream getOutput() {
+        return out;
+    }
+
+    @Override
+    public void close() {
+        if (closed)
+            return;
+        closed = true;
+        closeChannel(inChannel); // wakes up blocked reader
+        closeChannel(outChannel); // wakes up blocked writer
+        out.closeImpl();
+    }
+
+    @Override
+    public void drainInput() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        while (in.available() > 0) {
+            buffer.clear();
+            in.read(buffer);
+        }
+    }
+
+    @Override
+    public synchronized void setReadTimeout(long timeout) {
+        if ((timeout == 0) == (readTimeout == 0)) {
+            readTimeout = timeout;
+            return;
+        }
+        // read that is woken up with nothing is end of stream unless timeout is set, so it is set first and cleared last
+        long oldTimeout = readTimeout;
+        if (timeout != 0)
+            readTimeout = timeout;
+        try {
+            // without timeout read blocks until the first byte, with timeout termios wakes it up every 100 ms
+            stty("min", timeout == 0 ? "1" : "0", "time", timeout == 0 ? "0" : "1");
+        } catch (IOException e) {
+            log.warning("Cannot set read timeout on " + port + ": " + e.getMessage());
+            readTimeout = oldTimeout;
+            return;
+        }
+        readTimeout = timeout;
+    }
+
+    @Override
+    public void setWriteTimeout(long timeout) {
+        out.setTimeout(timeout);
+    }
+
+    @Override
+    public void setHardwareFlowControl(int mode) throws IOException {
+        // termios controls RTS and CTS together, while CTS must not stall output until it is asked for
+        if (mode == FLOW_CONTROL_IN)
+            log.fine("Inbound flow control alone is not supported on " + port + ", RTS stays asserted");
+        stty((mode & FLOW_CONTROL_OUT) == 0 ? "-crtscts" : "crtscts");
+    }
+
+    @Override
+    public int getBaud() {
+        return baud;
+    }
+
+    @Override
+    public void setBaud(int baud) throws IOException {
+        stty(String.valueOf(baud));
+        this.baud = baud;
+    }
+
+    @Override
+    public void resetHost() throws IOException {
+        throw new IOException("Cannot reset host on " + port + ", because Linux serial backend does not control DTR, " +
+                "use " + RXTX_BACKEND + " backend");
+    }
+
+    @Override
+    public String getStats() {
+        return port + " at " + baud + " baud: " +
+                "written " + bytesWritten + " bytes, " +
+                "read " + bytesRead + " bytes";
+    }
+
+    @Override
+    public String toString() {
+        return port;
+    }
+
+    private void stty(String... settings) throws IOException {
+        List<String> command = new ArrayList<String>();
+        command.add("stty");
+        command.add("-F");
+        command.add(port);
+        command.addAll(Arrays.asList(settings));
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        String output = readFully(process.getInputStream());
+        int exitCode;
+        try {
+            exitCode = process.waitFor();
+        } catch (InterruptedException e) {
+            throw ((InterruptedIOException) new InterruptedIOException().initCause(e));
+        }
+        if (exitCode != 0)
+            throw new IOException("Port " + port + " cannot be configured with " + settings[0] +
+                    (output.isEmpty() ? "" : ": " + output.trim()));
+    }
+
+    private static String readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[256];
+        int n;
+        while ((n = in.read(buffer)) > 0)
+            out.write(buffer, 0, n);
+        in.close();
+        return out.toString();
+    }
+
+    // USB serial adapters (FTDI) hold received data for up to 16ms by default
+    private void setLowLatency() {
+        File file = new File("/sys/bus/usb-serial/devices/" + new File(port).getName() + "/latency_timer");
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                out.write("1\n".getBytes());
+            } finally {
+                out.close();
+            }
+            log.fine("Enabled low latency mode on " + port);
+        } catch (IOException e) {
+            log.warning("Cannot enable low latency mode on " + port + ": " + e.getMessage());
+        }
+    }
+
+    private void closeChannel(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.log(Level.SEVERE, "Failed to close " + port, e);
+        }
+    }
+
+    private class Input extends InputStream {
+        @Override
+        public int available() throws IOException {
+            return closed ? 0 : fileIn.available();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            return read(ByteBuffer.wrap(b, off, len));
+        }
+
+        // reads whatever has arrived directly into a given buffer, blocks until at least one byte
+        public int read(ByteBuffer buffer) throws IOException {
+            long timeout = readTimeout;
+            long deadline = System.currentTimeMillis() + timeout;
+            while (true) {
+                if (closed)
+                    throw new EOFException("Port is closed");
+                int n;
+                try {
+                    n = inChannel.read(buffer);
+                } catch (ClosedChannelException e) {
+                    throw new EOFException("Port is closed");
+                }
+                if (n < 0 && timeout == 0)
+                    return -1;
+                if (n > 0) {
+                    bytesRead += n;
+                    return n;
+                }
+                if (timeout != 0 && System.currentTimeMillis() >= deadline)
+                    throw new InterruptedIOException("Timeout");
+            }
+        }
+
+        @Override
+        public void close() {
+            LinuxSerialConnection.this.close();
+        }
+    }
+
+    private class Output extends OutputStream {
+        private static final int CHUNK_SIZE = 256; // writer checks for timeout between chunks
+
+        // guarded by lock, writer thread takes pending data and drops what is left of it on timeout
+        private final Object lock = new Object();
+        private ByteBuffer pending;
+        private IOException failure; // reported to the next write
+
+        private volatile long timeout;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            long deadline = timeout == 0 ? 0 : System.currentTimeMillis() + timeout;
+            synchronized (lock) {
+                // data is copied, because writer may still be writing it after timeout
+                pending = ByteBuffer.wrap(Arrays.copyOfRange(b, off, off + len));
+                lock.notifyAll();
+                try {
+                    while (pending != null) {
+                        if (closed)
+                            throw new EOFException("Port is closed");
+                        long wait = deadline == 0 ? 0 : deadline - System.currentTimeMillis();
+                        if (deadline != 0 && wait <= 0) {
+                            InterruptedIOException e = new InterruptedIOException("Timeout");
+                            e.bytesTransferred = pending.position();
+                            pending = null; // writer drops the rest
+                            throw e;
+                        }
+                        lock.wait(wait);
+                    }
+                } catch (InterruptedException e) {
+                    pending = null;
+                    Thread.currentThread().interrupt();
+                    throw ((InterruptedIOException) new InterruptedIOException().initCause(e));
+                }
+                IOException failure = this.failure;
+                if (failure != null) {
+                    this.failure = null;
+                    throw failure;
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            LinuxSerialConnection.this.close();
+        }
+
+        void closeImpl() {
+            synchronized (lock) {
+                lock.notifyAll();
+            }
+        }
+
+        void setTimeout(long timeout) {
+            this.timeout = timeout;
+        }
+
+        // returns next chunk of pending data, or null when port is closed
+        ByteBuffer nextChunk() throws InterruptedException {
+            synchronized (lock) {
+                while (!closed && (pending == null || !pending.hasRemaining())) {
+                    if (pending != null) {
+                        pending = null;
+                        lock.notifyAll();
+                    }
+                    lock.wait();
+                }
+                if (closed)
+                    return null;
+                ByteBuffer chunk = pending.duplicate();
+                chunk.limit(Math.min(chunk.limit(), chunk.position() + CHUNK_SIZE));
+                return chunk;
+            }
+        }
+
+        // chunk shares array with pending data of its write, so data of a write that has timed out is told apart
+        void written(ByteBuffer chunk, IOException e) {
+            synchronized (lock) {
+                if (pending == null || pending.array() != chunk.array())
+                    return; // timed out
+                if (e != null) {
+                    failure = e;
+                    pending = null;
+                    lock.notifyAll();
+                } else
+                    pending.position(chunk.position());
+            }
+        }
+    }
+
+    private class Writer extends LoggedThread {
+        Writer() {
+            super(port);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                ByteBuffer chunk;
+                while ((chunk = out.nextChunk()) != null) {
+                    IOException error = null;
+                    try {
+                        while (chunk.hasRemaining())
+                            bytesWritten += outChannel.write(chunk);
+                    } catch (ClosedChannelException e) {
+                        error = new EOFException("Port is closed");
+                    } catch (IOException e) {
+                        error = e;
+                    }
+                    out.written(chunk, error);
+                }
+            } catch (InterruptedException e) {
+                // exit
+            }
+        }
+    }
+}
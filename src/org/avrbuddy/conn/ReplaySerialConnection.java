@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2012 Roman Elizarov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.avrbuddy.conn;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * Plays data that was read from a port in a {@link SerialJournal journal} back as input and discards output.
+ * Input is delivered at recorded timing or as fast as possible. Either way, each chunk of input is held back
+ * until as many bytes were written as there were before it in the journal, so that responses do not overtake
+ * their requests. Hold is limited in case the output diverges from the journal.
+ *
+ * @author Roman Elizarov
+ */
+class ReplaySerialConnection extends SerialConnection {
+    static final String PREFIX = "replay:";
+
+    private static final long MAX_HOLD = 1000000000L; // 1s
+
+    private final SerialJournal.Reader journal;
+    private final boolean fast;
+    private final Input in = new Input();
+    private final Output out = new Output();
+    private final Object lock = new Object();
+    private final long startNanos = System.nanoTime();
+
+    // guarded by lock
+    private boolean closed;
+    private boolean atEnd;
+    private long bytesRead;
+    private long bytesWritten;
+    private long recordedWritten; // bytes written before the current record in journal
+    private long lagNanos; // max delay of input delivery behind recorded time
+    private long heldNanos; // time input was held until output caught up
+    private long shiftNanos; // recorded timeline is shifted by hold time
+    private int baud;
+
+    ReplaySerialConnection(String file, boolean fast) throws IOException {
+        journal = new SerialJournal.Reader(new File(file));
+        this.fast = fast;
+        baud = journal.getBaud();
+        log.info("Replaying " + journal + (fast ? " as fast as possible" : " at recorded timing"));
+    }
+
+    @Override
+    public InputStream getInput() {
+        return in;
+    }
+
+    @Override
+    public OutputStream getOutput() {
+        return out;
+    }
+
+    @Override
+    public void drainInput() {
+        // journal already starts after drain
+    }
+
+    @Override
+    public void setReadTimeout(long timeout) {}
+
+    @Override
+    public void setWriteTimeout(long timeout) {}
+
+    @Override
+    public void close() {
+        synchronized (lock) {
+            if (closed)
+                return;
+            closed = true;
+            lock.notifyAll();
+            journal.close();
+        }
+        log.info(getStats());
+    }
+
+    @Override
+    public int getBaud() {
+        synchronized (lock) {
+            return baud;
+        }
+    }
+
+    @Override
+    public void setBaud(int baud) {
+        synchronized (lock) {
+            this.baud = baud;
+        }
+    }
+
+    @Override
+    public String getStats() {
+        synchronized (lock) {
+            return PREFIX + journal + (atEnd ? " (complete)" : "") + ": " +
+                    "read " + bytesRead + " bytes, " +
+                    "written " + bytesWritten + " bytes of " + recordedWritten + " recorded, " +
+                    "max lag " + lagNanos / 1000000 + " ms, " +
+                    "held for output " + heldNanos / 1000000 + " ms, " +
+                    "elapsed " + (System.nanoTime() - startNanos) / 1000000 + " ms";
+        }
+    }
+
+    @Override
+    public String toString() {
+        return PREFIX + journal;
+    }
+
+    // positions journal at the next record with input data and waits until it is due, invoked under lock
+    private void nextInput() throws IOException {
+        while (true) {
+            if (closed)
+                throw new EOFException("Port is closed");
+            if (!journal.next()) {
+                atEnd = true;
+                throw new EOFException("End of journal " + journal);
+            }
+            switch (journal.getType()) {
+            case SerialJournal.WRITE:
+                recordedWritten += journal.getLength();
+                break;
+            case SerialJournal.BAUD:
+                baud = journal.readInt();
+                break;
+            case SerialJournal.READ:
+                awaitDue(journal.getTime());
+                return;
+            }
+        }
+    }
+
+    private void awaitDue(long time) throws IOException {
+        if (!fast) {
+            long due = startNanos + shiftNanos + time;
+            awaitUntil(due, false);
+            lagNanos = Math.max(lagNanos, System.nanoTime() - due);
+        }
+        long start = System.nanoTime();
+        awaitUntil(start + MAX_HOLD, true);
+        long held = System.nanoTime() - start;
+        heldNanos += held;
+        shiftNanos += held;
+    }
+
+    private void awaitUntil(long deadline, boolean output) throws IOException {
+        while (!closed) {
+            if (output && bytesWritten >= recordedWritten)
+                return;
+            long wait = deadline - System.nanoTime();
+            if (wait <= 0)
+                return;
+            try {
+                lock.wait(wait / 1000000, (int) (wait % 1000000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    private class Input extends InputStream {
+        @Override
+        public int available() {
+            synchronized (lock) {
+                return closed ? 0 : journal.getRemaining();
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            synchronized (lock) {
+                while (journal.getRemaining() == 0 || closed)
+                    nextInput();
+                int n = journal.read(b, off, len);
+                bytesRead += n;
+                return n;
+            }
+        }
+
+        @Override
+        public void close() {
+            ReplaySerialConnection.this.close();
+        }
+    }
+
+    private class Output extends OutputStream {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            synchronized (lock) {
+                if (closed)
+                    throw new EOFException("Port is closed");
+                bytesWritten += len;
+                lock.notifyAll();
+            }
+        }
+
+        @Override
+        public void close() {
+            ReplaySerialConnection.this.close();
+        }
+    }
+}
@@ -19,6 +19,7 @@ package org.avrbuddy.conn;
 
 import org.avrbuddy.log.Log;
 
+import java.io.File;
 import java.io.IOException;
 
 /**
@@ -28,10 +29,40 @@ public abstract class SerialConnection extends Connection {
     public static final int FLOW_CONTROL_IN = 1;
     public static final int FLOW_CONTROL_OUT = 2;
 
+    public static final String RXTX_BACKEND = "rxtx";
+    public static final String LINUX_BACKEND = "linux"; // only when asked for, see LinuxSerialConnection
+    public static final String REPLAY_PREFIX = ReplaySerialConnection.PREFIX; // port that plays journal back
+
     public void setHardwareFlowControl(int mode) throws IOException {}
 
+    // returns 0 when baud rate is not known
+    public int getBaud() {
+        return 0;
+    }
+
+    public void setBaud(int baud) throws IOException {
+        throw new IOException("Cannot change baud rate of " + this);
+    }
+
     public static SerialConnection open(String port, ConnectionOptions options) throws IOException {
         Log.getLogger(SerialConnection.class).info("Opening serial port " + port + " at " + options.getBaud());
-        return new SerialConnectionImpl(port, options.getBaud());
+        if (port.startsWith(ReplaySerialConnection.PREFIX))
+            return new ReplaySerialConnection(port.substring(ReplaySerialConnection.PREFIX.length()),
+                    options.isSerialReplayFast());
+        String backend = options.getSerialBackend();
+        SerialConnection conn;
+        if (LINUX_BACKEND.equals(backend))
+            conn = new LinuxSerialConnection(port, options.getBaud(), options.isSerialLowLatency());
+        else
+            conn = new SerialConnectionImpl(port, options.getBaud());
+        String capture = options.getSerialCapture();
+        if (capture == null)
+            return conn;
+        try {
+            return new CapturingSerialConnection(conn, new SerialJournal.Writer(new File(capture), options.getBaud()));
+        } catch (IOException e) {
+            conn.close();
+            throw e;
+        }
     }
 }
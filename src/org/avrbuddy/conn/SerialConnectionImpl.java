@@ -40,6 +40,7 @@ class SerialConnectionImpl extends SerialConnection implements SerialPortEventLi
     private final State state = new State();
 
     private volatile Runnable onConnected;
+    private volatile int baud;
 
     SerialConnectionImpl(String port, int baud) throws IOException {
         this.port = port;
@@ -61,6 +62,7 @@ class SerialConnectionImpl extends SerialConnection implements SerialPortEventLi
             serialPort.close();
             throw new IOException("Port " + port + " cannot be configured for " + baud + " 8N1");
         }
+        this.baud = baud;
         in = new Input(serialPort.getInputStream());
         out = new Output(serialPort.getOutputStream());
         serialPort.notifyOnDataAvailable(true);
@@ -149,6 +151,29 @@ class SerialConnectionImpl extends SerialConnection implements SerialPortEventLi
         }
     }
 
+    @Override
+    public int getBaud() {
+        return baud;
+    }
+
+    @Override
+    public void setBaud(int baud) throws IOException {
+        try {
+            serialPort.setSerialPortParams(baud, SerialPort.DATABITS_8, SerialPort.STOPBITS_1, SerialPort.PARITY_NONE);
+        } catch (UnsupportedCommOperationException e) {
+            throw new IOException("Port " + port + " cannot be configured for " + baud + " 8N1");
+        }
+        this.baud = baud;
+    }
+
+    @Override
+    public String getStats() {
+        return port + " at " + baud + " baud: " +
+                "written " + out.getBytesWritten() + " bytes, " +
+                "read " + in.getBytesRead() + " bytes, " +
+                "stalled by flow control for " + out.getStallTime() + " ms";
+    }
+
     @Override
     public void setOnConnected(Runnable action) {
         onConnected = action;
@@ -170,6 +195,7 @@ class SerialConnectionImpl extends SerialConnection implements SerialPortEventLi
     class Input extends InputStream {
         private final InputStream in;
         private volatile long timeout;
+        private volatile long bytesRead;
 
         public Input(InputStream in) throws IOException {
             this.in = in;
@@ -186,8 +212,32 @@ class SerialConnectionImpl extends SerialConnection implements SerialPortEventLi
                 if (state.is(CLOSED))
                     throw new EOFException("Port is closed");
                 checkNotifyConnected();
-                if (in.available() != 0)
-                    return in.read();
+                if (in.available() != 0) {
+                    int b = in.read();
+                    if (b >= 0)
+                        bytesRead++;
+                    return b;
+                }
+                state.await(DATA_AVAILABLE | CLOSED, timeout);
+                state.clear(DATA_AVAILABLE);
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            while (true) {
+                if (state.is(CLOSED))
+                    throw new EOFException("Port is closed");
+                checkNotifyConnected();
+                int available = in.available();
+                if (available != 0) {
+                    int n = in.read(b, off, Math.min(available, len));
+                    if (n > 0)
+                        bytesRead += n;
+                    return n;
+                }
                 state.await(DATA_AVAILABLE | CLOSED, timeout);
                 state.clear(DATA_AVAILABLE);
             }
@@ -214,44 +264,79 @@ class SerialConnectionImpl extends SerialConnection implements SerialPortEventLi
         public void setTimeout(long timeout) {
             this.timeout = timeout;
         }
+
+        public long getBytesRead() {
+            return bytesRead;
+        }
     }
 
-    class Output extends BufferedOutputStream {
+    class Output extends OutputStream {
+        private static final int CHUNK_SIZE = 256; // check flow control between chunks that fit driver buffer
+
+        private final OutputStream out;
         private volatile long timeout;
+        private volatile long bytesWritten;
+        private volatile long stallTime; // ns
 
         public Output(OutputStream out) {
-            super(out);
+            this.out = out;
         }
 
         @Override
-        public void write(int b) throws IOException {
-            if (waitEnabled())
-                super.write(b);
+        public synchronized void write(int b) throws IOException {
+            if (!waitEnabled(1))
+                return;
+            out.write(b);
+            bytesWritten++;
         }
 
         @Override
-        public void write(byte[] b, int off, int len) throws IOException {
-            if (waitEnabled())
-                super.write(b, off, len);
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (!waitEnabled(len))
+                    return;
+                int n = Math.min(CHUNK_SIZE, len);
+                out.write(b, off, n);
+                bytesWritten += n;
+                off += n;
+                len -= n;
+            }
         }
 
         @Override
-        public void flush() throws IOException {
-            if (waitEnabled())
-                super.flush();
+        public synchronized void flush() throws IOException {
+            if (waitEnabled(0))
+                out.flush();
         }
 
-        private boolean waitEnabled() throws IOException {
-            state.await(OUTPUT_ENABLED | CLOSED, timeout);
+        // parks once while output is disabled by flow control, returns false when remaining bytes are dropped
+        private boolean waitEnabled(int remaining) throws IOException {
+            if (!state.is(OUTPUT_ENABLED | CLOSED)) {
+                long start = System.nanoTime();
+                state.await(OUTPUT_ENABLED | CLOSED, timeout);
+                stallTime += System.nanoTime() - start;
+            }
             if (state.is(CLOSED))
                 throw new EOFException("Port is closed");
-            return state.is(OUTPUT_ENABLED);
+            if (state.is(OUTPUT_ENABLED))
+                return true;
+            if (remaining > 0)
+                log.warning("Dropped " + remaining + " bytes to " + port + ", because output is not enabled");
+            return false;
         }
 
         public void setTimeout(long timeout) {
             this.timeout = timeout;
         }
 
+        public long getBytesWritten() {
+            return bytesWritten;
+        }
+
+        public long getStallTime() {
+            return stallTime / 1000000;
+        }
+
         @Override
         public void close() {
             SerialConnectionImpl.this.close();
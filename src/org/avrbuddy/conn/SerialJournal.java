@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2012 Roman Elizarov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.avrbuddy.conn;
+
+import org.avrbuddy.log.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Journal of raw serial traffic in a memory-mapped file. It starts with a header of
+ * magic, capture start time in ms and baud rate. It is followed by records of
+ * time in ns since start of capture, record type, data length and data.
+ *
+ * @author Roman Elizarov
+ */
+class SerialJournal {
+    private static final Logger log = Log.getLogger(SerialJournal.class);
+
+    static final byte READ = 0;  // data that was read from the port
+    static final byte WRITE = 1; // data that was written to the port
+    static final byte BAUD = 2;  // baud rate change, data is 4 byte baud rate
+
+    private static final int MAGIC = 0x58544a31; // "XTJ1"
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_HEADER_SIZE = 13;
+    private static final int MAP_SIZE = 1 << 20; // file is mapped for writing by regions of this size
+
+    static class Writer implements Closeable {
+        private final File file;
+        private final RandomAccessFile raf;
+        private final FileChannel channel;
+        private final long startNanos = System.nanoTime();
+
+        private MappedByteBuffer map;
+        private long mapPos; // position of map in file
+        private long records;
+        private long bytes;
+        private boolean closed;
+
+        Writer(File file, int baud) throws IOException {
+            this.file = file;
+            raf = new RandomAccessFile(file, "rw");
+            channel = raf.getChannel();
+            try {
+                channel.truncate(0);
+                map = channel.map(FileChannel.MapMode.READ_WRITE, 0, MAP_SIZE);
+            } catch (IOException e) {
+                raf.close();
+                throw e;
+            }
+            map.putInt(MAGIC);
+            map.putLong(System.currentTimeMillis());
+            map.putInt(baud);
+        }
+
+        // capture failures are logged and stop capture, but do not affect serial port operation
+        synchronized void append(byte type, byte[] b, int off, int len) {
+            if (closed || len <= 0)
+                return;
+            try {
+                ensureCapacity(RECORD_HEADER_SIZE + len);
+            } catch (IOException e) {
+                log.log(Level.SEVERE, "Failed to write " + file + ", capture is stopped", e);
+                close();
+                return;
+            }
+            map.putLong(System.nanoTime() - startNanos);
+            map.put(type);
+            map.putInt(len);
+            map.put(b, off, len);
+            records++;
+            bytes += len;
+        }
+
+        void appendBaud(int baud) {
+            append(BAUD, new byte[] {(byte) (baud >> 24), (byte) (baud >> 16), (byte) (baud >> 8), (byte) baud}, 0, 4);
+        }
+
+        private void ensureCapacity(int size) throws IOException {
+            if (map.remaining() >= size)
+                return;
+            long pos = mapPos + map.position();
+            map.force();
+            map = channel.map(FileChannel.MapMode.READ_WRITE, pos, Math.max(MAP_SIZE, size));
+            mapPos = pos;
+        }
+
+        public synchronized void close() {
+            if (closed)
+                return;
+            closed = true;
+            try {
+                map.force();
+                channel.truncate(mapPos + map.position());
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Failed to truncate " + file, e);
+            }
+            map = null;
+            try {
+                raf.close();
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Failed to close " + file, e);
+            }
+        }
+
+        @Override
+        public synchronized String toString() {
+            return file + ": " + records + " records, " + bytes + " bytes";
+        }
+    }
+
+    static class Reader implements Closeable {
+        private final File file;
+        private final RandomAccessFile raf;
+        private final MappedByteBuffer map;
+        private final long startTime;
+        private final int baud;
+
+        private long time; // ns since start of capture
+        private byte type;
+        private int length;
+        private int remaining; // data of the current record that was not read yet
+
+        Reader(File file) throws IOException {
+            this.file = file;
+            raf = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = raf.getChannel();
+                if (channel.size() > Integer.MAX_VALUE)
+                    throw new IOException("Journal " + file + " is too large");
+                map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (map.remaining() < HEADER_SIZE || map.getInt() != MAGIC)
+                    throw new IOException("File " + file + " is not a serial journal");
+            } catch (IOException e) {
+                raf.close();
+                throw e;
+            }
+            startTime = map.getLong();
+            baud = map.getInt();
+        }
+
+        long getStartTime() {
+            return startTime;
+        }
+
+        int getBaud() {
+            return baud;
+        }
+
+        // returns false at the end of journal, skips unread data of the current record
+        boolean next() {
+            map.position(map.position() + remaining);
+            remaining = 0;
+            if (map.remaining() < RECORD_HEADER_SIZE)
+                return false;
+            time = map.getLong();
+            type = map.get();
+            length = map.getInt();
+            if (length < 0 || length > map.remaining()) {
+                log.warning("Journal " + file + " is truncated");
+                map.position(map.limit());
+                return false;
+            }
+            remaining = length;
+            return true;
+        }
+
+        long getTime() {
+            return time;
+        }
+
+        byte getType() {
+            return type;
+        }
+
+        int getLength() {
+            return length;
+        }
+
+        int getRemaining() {
+            return remaining;
+        }
+
+        int read(byte[] b, int off, int len) {
+            int n = Math.min(len, remaining);
+            map.get(b, off, n);
+            remaining -= n;
+            return n;
+        }
+
+        int readInt() {
+            remaining -= 4;
+            return map.getInt();
+        }
+
+        public void close() {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Failed to close " + file, e);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return file.toString();
+        }
+    }
+}
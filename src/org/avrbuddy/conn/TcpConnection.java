@@ -0,0 +1,306 @@
+/*
+ * Copyright (C) 2012 Roman Elizarov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.avrbuddy.conn;
+
+import org.avrbuddy.log.LoggedThread;
+import org.avrbuddy.util.BufferPool;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+
+/**
+ * Listens for clients on a local TCP port. Input from all attached clients is merged,
+ * output is copied to every attached client. Clients may attach and detach at any time.
+ * A client that does not keep up with output loses data instead of stalling other clients.
+ * Output is discarded while no client is attached.
+ *
+ * @author Roman Elizarov
+ */
+public class TcpConnection extends BufferedConnection {
+    public static final String PREFIX = "tcp:";
+
+    private static final int BUFFER_SIZE = 1024;
+    private static final int MAX_PENDING = 65536; // output backlog of a slow client before data is dropped
+
+    public static TcpConnection open(int port) throws IOException {
+        return new TcpConnection(port);
+    }
+
+    // -------------------------- instance --------------------------
+
+    private final ServerSocketChannel server;
+    private final Selector selector;
+    private final List<Client> clients = new CopyOnWriteArrayList<Client>();
+    private final int port;
+
+    private volatile Runnable onConnected;
+
+    // updated by flushOutput only
+    private volatile long discardedBytes; // while no client was attached
+    private volatile long droppedBytes; // to clients that did not keep up
+    private boolean discarding; // warned about discarded output until a client attaches
+
+    private TcpConnection(int port) throws IOException {
+        super(BUFFER_SIZE, BUFFER_SIZE);
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        try {
+            // only local tools shall attach, remote host is not exposed to the network
+            server.socket().setReuseAddress(true);
+            server.socket().bind(new InetSocketAddress(InetAddress.getByName(null), port));
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            server.close();
+            selector.close();
+            throw new IOException("Cannot listen on " + PREFIX + port + ": " + e.getMessage());
+        }
+        this.port = server.socket().getLocalPort();
+        log.info("Listening on " + this);
+        new Selection().start();
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public int getClientCount() {
+        return clients.size();
+    }
+
+    // action is invoked when the first client attaches
+    @Override
+    public void setOnConnected(Runnable action) {
+        onConnected = action;
+    }
+
+    @Override
+    protected void flushOutput(byte[] buffer, int size, long deadline) throws IOException {
+        if (clients.isEmpty()) {
+            if (size == 0)
+                return;
+            if (!discarding)
+                log.info("Discarding output of " + this + " until a client attaches");
+            discarding = true;
+            discardedBytes += size;
+            return;
+        }
+        discarding = false;
+        for (Client client : clients)
+            client.send(buffer, size);
+    }
+
+    @Override
+    public String getStats() {
+        return this + ": " +
+                clients.size() + " clients, " +
+                "discarded " + discardedBytes + " bytes without clients, " +
+                "dropped " + droppedBytes + " bytes to slow clients";
+    }
+
+    @Override
+    protected void closeImpl() {
+        try {
+            server.close();
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Failed to close " + this, e);
+        }
+        selector.wakeup();
+    }
+
+    @Override
+    public String toString() {
+        return PREFIX + port;
+    }
+
+    private class Selection extends LoggedThread {
+        Selection() {
+            super(TcpConnection.this.toString());
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+            try {
+                while (!state.is(CLOSED)) {
+                    for (Client client : clients)
+                        client.updateInterest();
+                    selector.select();
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        if (!key.isValid())
+                            continue;
+                        if (key.isAcceptable())
+                            accept();
+                        else
+                            ((Client) key.attachment()).ready(key, buf);
+                    }
+                    selector.selectedKeys().clear();
+                }
+            } catch (ClosedSelectorException e) {
+                // just quit
+            } catch (IOException e) {
+                log.log(Level.SEVERE, "Failed", e);
+            } finally {
+                for (Client client : clients)
+                    client.close();
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    log.log(Level.WARNING, "Failed to close selector", e);
+                }
+                TcpConnection.this.close();
+            }
+        }
+
+        private void accept() throws IOException {
+            SocketChannel channel = server.accept();
+            if (channel == null)
+                return;
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            Client client = new Client(channel);
+            client.key = channel.register(selector, SelectionKey.OP_READ, client);
+            boolean first = clients.isEmpty();
+            clients.add(client);
+            log.info("Client " + client + " attached to " + TcpConnection.this);
+            Runnable onConnected = TcpConnection.this.onConnected;
+            if (first && onConnected != null)
+                onConnected.run();
+        }
+    }
+
+    private class Client {
+        private final SocketChannel channel;
+        private final SocketAddress address;
+        private SelectionKey key;
+
+        // output that did not fit into socket buffer, borrowed from pool while not empty
+        private ByteBuffer pending;
+        private volatile boolean writeInterest;
+        private boolean dropping; // warned about dropped data until pending output is sent
+        private long droppedBytes;
+
+        Client(SocketChannel channel) {
+            this.channel = channel;
+            address = channel.socket().getRemoteSocketAddress();
+        }
+
+        // invoked by selection thread only
+        void updateInterest() {
+            if (key.isValid())
+                key.interestOps(writeInterest ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+
+        // invoked by selection thread only
+        void ready(SelectionKey key, ByteBuffer buf) {
+            try {
+                if (key.isReadable()) {
+                    buf.clear();
+                    int n = channel.read(buf);
+                    if (n < 0) {
+                        close();
+                        return;
+                    }
+                    if (n > 0)
+                        in.write(buf.array(), 0, n);
+                }
+                if (key.isValid() && key.isWritable())
+                    sendPending();
+            } catch (IOException e) {
+                log.log(Level.FINE, "Client " + this + " failed", e);
+                close();
+            }
+        }
+
+        synchronized void send(byte[] buffer, int size) {
+            if (!channel.isOpen())
+                return;
+            int off = 0;
+            try {
+                if (pending == null)
+                    off = channel.write(ByteBuffer.wrap(buffer, 0, size));
+            } catch (IOException e) {
+                log.log(Level.FINE, "Client " + this + " failed", e);
+                close();
+                return;
+            }
+            if (off == size)
+                return;
+            if (pending == null)
+                pending = ByteBuffer.wrap(BufferPool.SHARED.borrow(MAX_PENDING));
+            int n = Math.min(size - off, pending.remaining());
+            pending.put(buffer, off, n);
+            if (n < size - off) {
+                droppedBytes += size - off - n;
+                TcpConnection.this.droppedBytes += size - off - n;
+                if (!dropping)
+                    log.warning("Dropping data to client " + this + ", because it does not keep up");
+                dropping = true;
+            }
+            writeInterest = true;
+            selector.wakeup();
+        }
+
+        private synchronized void sendPending() throws IOException {
+            if (pending == null)
+                return;
+            pending.flip();
+            channel.write(pending);
+            pending.compact();
+            if (pending.position() == 0) {
+                BufferPool.SHARED.release(pending.array());
+                pending = null;
+                writeInterest = false;
+                dropping = false;
+            }
+        }
+
+        synchronized void close() {
+            if (!clients.remove(this))
+                return;
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Failed to close client " + this, e);
+            }
+            if (pending != null) {
+                BufferPool.SHARED.release(pending.array());
+                pending = null;
+            }
+            log.info("Client " + this + " detached from " + TcpConnection.this +
+                    (droppedBytes == 0 ? "" : ", dropped " + droppedBytes + " bytes"));
+        }
+
+        @Override
+        public String toString() {
+            return String.valueOf(address);
+        }
+    }
+}
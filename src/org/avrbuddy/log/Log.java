@@ -28,6 +28,9 @@ import java.util.logging.*;
 public class Log {
 	static final PrintStream OUT = System.err;
 
+    // -Dverbose logs debugging details to console
+    public static final String VERBOSE_PROPERTY = "verbose";
+
     private static final int LOG_FILE_LIMIT = 10 * 1024 * 1024; // 10MB
 
     private Log() {}
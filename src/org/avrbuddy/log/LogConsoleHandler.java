@@ -25,7 +25,7 @@ import java.util.logging.*;
 class LogConsoleHandler extends StreamHandler {
 	public LogConsoleHandler() {
 		super(Log.OUT, new ConsoleFormatter());
-		setLevel(System.getProperty("verbose") != null ? Level.FINE : Level.INFO);
+		setLevel(System.getProperty(Log.VERBOSE_PROPERTY) != null ? Level.FINE : Level.INFO);
 	}
 
 	@Override
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2012 Roman Elizarov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.avrbuddy.util;
+
+import java.util.ArrayDeque;
+
+/**
+ * Pool of byte buffers in power of two size classes. Buffers are borrowed on demand, so that
+ * connections that were never used hold no buffers. Buffers of unsupported sizes are
+ * simply allocated and left to garbage collector on release.
+ *
+ * @author Roman Elizarov
+ */
+public class BufferPool {
+    private static final int MIN_CLASS_SHIFT = 6; // 64 bytes
+    private static final int MAX_CLASS_SHIFT = 16; // 64 KB
+    private static final int MAX_POOLED_BYTES = 1 << 20; // per size class
+
+    public static final BufferPool SHARED = new BufferPool();
+
+    private final SizeClass[] classes = new SizeClass[MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1];
+
+    public BufferPool() {
+        for (int i = 0; i < classes.length; i++)
+            classes[i] = new SizeClass(1 << (MIN_CLASS_SHIFT + i));
+    }
+
+    // returns buffer of at least a given size
+    public byte[] borrow(int size) {
+        SizeClass c = classFor(size);
+        return c == null ? new byte[size] : c.borrow();
+    }
+
+    public void release(byte[] buffer) {
+        if (buffer == null)
+            return;
+        SizeClass c = classFor(buffer.length);
+        if (c != null && c.size == buffer.length)
+            c.release(buffer);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("Buffer pool:");
+        for (SizeClass c : classes)
+            c.appendTo(sb);
+        return sb.toString();
+    }
+
+    private SizeClass classFor(int size) {
+        int shift = size <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(size - 1);
+        if (shift > MAX_CLASS_SHIFT)
+            return null;
+        return classes[Math.max(shift - MIN_CLASS_SHIFT, 0)];
+    }
+
+    private static class SizeClass {
+        final int size;
+        final ArrayDeque<byte[]> free = new ArrayDeque<byte[]>();
+        int inUse;
+        int maxInUse;
+        long borrowed;
+        long allocated;
+
+        SizeClass(int size) {
+            this.size = size;
+        }
+
+        synchronized byte[] borrow() {
+            borrowed++;
+            maxInUse = Math.max(maxInUse, ++inUse);
+            byte[] buffer = free.poll();
+            if (buffer == null) {
+                allocated++;
+                buffer = new byte[size];
+            }
+            return buffer;
+        }
+
+        synchronized void release(byte[] buffer) {
+            inUse--;
+            if ((free.size() + 1) * size <= MAX_POOLED_BYTES)
+                free.push(buffer);
+        }
+
+        synchronized void appendTo(StringBuilder sb) {
+            if (borrowed == 0)
+                return;
+            sb.append("\n  ").append(size).append(" bytes: ")
+                    .append(inUse).append(" in use (max ").append(maxInUse).append("), ")
+                    .append(free.size()).append(" free, ")
+                    .append(borrowed).append(" borrowed, ")
+                    .append(allocated).append(" allocated");
+        }
+    }
+}
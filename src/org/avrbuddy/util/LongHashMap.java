@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2012 Roman Elizarov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.avrbuddy.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Open addressing hash map with primitive long keys and non-null values.
+ * It is not thread-safe, concurrent readers shall work with a {@link #clone() clone}
+ * that is not modified.
+ *
+ * @author Roman Elizarov
+ */
+public class LongHashMap<V> implements Cloneable {
+    private static final int MIN_CAPACITY = 8;
+
+    private long[] keys;
+    private Object[] values;
+    private int size;
+
+    public LongHashMap() {
+        this(MIN_CAPACITY);
+    }
+
+    public LongHashMap(int expectedSize) {
+        allocate(capacityFor(expectedSize));
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean containsKey(long key) {
+        return get(key) != null;
+    }
+
+    @SuppressWarnings({"unchecked"})
+    public V get(long key) {
+        int mask = keys.length - 1;
+        for (int i = index(key, mask); values[i] != null; i = (i + 1) & mask)
+            if (keys[i] == key)
+                return (V) values[i];
+        return null;
+    }
+
+    @SuppressWarnings({"unchecked"})
+    public V put(long key, V value) {
+        if (value == null)
+            throw new NullPointerException();
+        int mask = keys.length - 1;
+        int i = index(key, mask);
+        for (; values[i] != null; i = (i + 1) & mask)
+            if (keys[i] == key) {
+                V old = (V) values[i];
+                values[i] = value;
+                return old;
+            }
+        keys[i] = key;
+        values[i] = value;
+        if (++size * 2 > keys.length)
+            rehash(keys.length * 2);
+        return null;
+    }
+
+    @SuppressWarnings({"unchecked"})
+    public V remove(long key) {
+        int mask = keys.length - 1;
+        int i = index(key, mask);
+        for (; values[i] != null; i = (i + 1) & mask)
+            if (keys[i] == key)
+                break;
+        V old = (V) values[i];
+        if (old == null)
+            return null;
+        // shift back following entries of the same probe sequence
+        for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+            int k = index(keys[j], mask);
+            if (i <= j ? (i >= k || k > j) : (i >= k && k > j)) {
+                keys[i] = keys[j];
+                values[i] = values[j];
+                i = j;
+            }
+        }
+        values[i] = null;
+        size--;
+        return old;
+    }
+
+    public void clear() {
+        allocate(MIN_CAPACITY);
+        size = 0;
+    }
+
+    public long[] keys() {
+        long[] result = new long[size];
+        int n = 0;
+        for (int i = 0; i < keys.length; i++)
+            if (values[i] != null)
+                result[n++] = keys[i];
+        return result;
+    }
+
+    @SuppressWarnings({"unchecked"})
+    public List<V> values() {
+        List<V> result = new ArrayList<V>(size);
+        for (Object value : values)
+            if (value != null)
+                result.add((V) value);
+        return result;
+    }
+
+    @Override
+    @SuppressWarnings({"unchecked"})
+    public LongHashMap<V> clone() {
+        try {
+            LongHashMap<V> result = (LongHashMap<V>) super.clone();
+            result.keys = keys.clone();
+            result.values = values.clone();
+            return result;
+        } catch (CloneNotSupportedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        allocate(capacity);
+        int mask = capacity - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldValues[j] == null)
+                continue;
+            int i = index(oldKeys[j], mask);
+            while (values[i] != null)
+                i = (i + 1) & mask;
+            keys[i] = oldKeys[j];
+            values[i] = oldValues[j];
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new Object[capacity];
+    }
+
+    private static int capacityFor(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < expectedSize * 2)
+            capacity *= 2;
+        return capacity;
+    }
+
+    private static int index(long key, int mask) {
+        long h = key * 0x9e3779b97f4a7c15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+}
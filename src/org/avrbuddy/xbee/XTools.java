@@ -18,15 +18,23 @@
 package org.avrbuddy.xbee;
 
 import org.avrbuddy.conn.ConnectionOptions;
+import org.avrbuddy.conn.InputOverflowPolicy;
 import org.avrbuddy.conn.SerialConnection;
 import org.avrbuddy.log.Log;
+import org.avrbuddy.util.FmtUtil;
+import org.avrbuddy.xbee.api.XBeeApiMode;
 import org.avrbuddy.xbee.api.XBeeConnection;
+import org.avrbuddy.xbee.api.XBeeOverflowPolicy;
 import org.avrbuddy.xbee.cmd.CommandContext;
 import org.avrbuddy.xbee.cmd.CommandParser;
 import org.avrbuddy.xbee.cmd.impl.Help;
 import org.avrbuddy.xbee.console.XBeeConsoleThread;
+import org.avrbuddy.xbee.discover.XBeeNodeDiscovery;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -41,24 +49,35 @@ public class XTools {
     public static void main(String[] args) throws IOException {
         Log.init(XTools.class);
         if (args.length < 2) {
-            log.info("Usage: xtools <port> <baud> [<command>]");
+            log.info("Usage: xtools [-D<property>=<value> ...] <port> <baud> [<command>]");
             log.info("Starts in console mode if no command is given on the command line.");
             Help.showHelp();
+            showProperties();
             return;
         }
 
         String port = args[0];
-        ConnectionOptions options = new ConnectionOptions(Integer.parseInt(args[1]));
+        Settings settings = new Settings(Integer.parseInt(args[1]));
         String cmd = collect(args, 2, args.length).trim();
+        for (Property property : PROPERTIES)
+            property.configure(settings);
 
         XBeeConnection conn;
         try {
-            conn = XBeeConnection.open(SerialConnection.open(port, options));
+            conn = XBeeConnection.open(SerialConnection.open(port, settings.options), settings.apiMode);
         } catch (Throwable t) {
             log.log(Level.SEVERE, "Failed to open XBee connection", t);
             return;
         }
-        XTools instance = new XTools(options, conn);
+        try {
+            for (Property property : PROPERTIES)
+                property.configure(conn);
+        } catch (IOException e) {
+            log.log(Level.SEVERE, "Failed to configure XBee connection", e);
+            conn.close();
+            return;
+        }
+        XTools instance = new XTools(settings.options, conn);
         try {
             instance.go(cmd);
         } catch (Throwable t) {
@@ -67,6 +86,174 @@ public class XTools {
         }
     }
 
+    private static void showProperties() {
+        log.info("Where <property> is one of:");
+        ArrayList<String[]> table = new ArrayList<String[]>();
+        for (Property property : PROPERTIES)
+            FmtUtil.line(table, property.name + (property.syntax.length() > 0 ? "=" + property.syntax : ""),
+                    FmtUtil.SEP, property.description);
+        for (String line : FmtUtil.formatTable(table).split("\n"))
+            log.info(line);
+    }
+
+    // ---------------------------------- properties ----------------------------------
+
+    // what is configured before connection is open
+    private static class Settings {
+        final ConnectionOptions options;
+        XBeeApiMode apiMode = XBeeApiMode.ESCAPED;
+
+        Settings(int baud) {
+            options = new ConnectionOptions(baud);
+        }
+    }
+
+    /**
+     * System property that tunes connection. Invalid values are reported with the expected syntax and ignored.
+     */
+    private static abstract class Property {
+        final String name;
+        final String syntax; // empty for flags
+        final String description;
+
+        Property(String name, String syntax, String description) {
+            this.name = name;
+            this.syntax = syntax;
+            this.description = description;
+        }
+
+        final void configure(Settings settings) {
+            String value = System.getProperty(name);
+            if (value == null)
+                return;
+            try {
+                apply(settings, value);
+            } catch (IllegalArgumentException e) {
+                warnInvalid(value, e);
+            }
+        }
+
+        final void configure(XBeeConnection conn) throws IOException {
+            String value = System.getProperty(name);
+            if (value == null)
+                return;
+            try {
+                apply(conn, value);
+            } catch (IllegalArgumentException e) {
+                warnInvalid(value, e);
+            }
+        }
+
+        private void warnInvalid(String value, IllegalArgumentException e) {
+            log.warning("Invalid " + name + " property '" + value + "', expected " + syntax +
+                    (e.getMessage() != null ? ": " + e.getMessage() : ""));
+        }
+
+        void apply(Settings settings, String value) {}
+
+        void apply(XBeeConnection conn, String value) throws IOException {}
+    }
+
+    private static final Property[] PROPERTIES = {
+        new Property("apiMode", "1|2", "XBee API mode, 1 saves escape bytes on binary data;") {
+            @Override
+            void apply(Settings settings, String value) {
+                settings.apiMode = XBeeApiMode.forParameter(Integer.parseInt(value));
+            }
+        },
+        new Property("serialBackend", SerialConnection.RXTX_BACKEND + "|" + SerialConnection.LINUX_BACKEND,
+                "serial port implementation, " + SerialConnection.RXTX_BACKEND + " by default,\n" +
+                SerialConnection.LINUX_BACKEND + " needs no native library, but cannot reset host or see it connect;")
+        {
+            @Override
+            void apply(Settings settings, String value) {
+                settings.options.setSerialBackend(value);
+            }
+        },
+        new Property("serialLowLatency", "", "turns off buffering of USB serial adapter (Linux backend);") {
+            @Override
+            void apply(Settings settings, String value) {
+                settings.options.setSerialLowLatency(true);
+            }
+        },
+        new Property("serialCapture", "<file>", "records all traffic of the port to a journal file,\n" +
+                "'" + SerialConnection.REPLAY_PREFIX + "<file>' port plays it back;")
+        {
+            @Override
+            void apply(Settings settings, String value) {
+                settings.options.setSerialCapture(value);
+            }
+        },
+        new Property("serialReplayFast", "", "plays journal back as fast as possible instead of recorded timing;") {
+            @Override
+            void apply(Settings settings, String value) {
+                settings.options.setSerialReplayFast(true);
+            }
+        },
+        // maxBaud goes first, because changing baud rate drops frames in flight
+        new Property("maxBaud", "<baud>[:write]",
+                "raises baud rate of the link to XBee and optionally writes it to XBee memory;")
+        {
+            @Override
+            void apply(XBeeConnection conn, String value) throws IOException {
+                String[] ss = value.split(":", 2);
+                conn.negotiateBaud(Integer.parseInt(ss[0]), ss.length > 1 && ss[1].equals("write"));
+            }
+        },
+        new Property("dispatchQueue", "<capacity>[:<policy>]",
+                "delivers received frames to each tunnel and command via its own queue and thread,\n" +
+                "<policy> is one of " + Arrays.toString(XBeeOverflowPolicy.values()) + ";")
+        {
+            @Override
+            void apply(XBeeConnection conn, String value) {
+                String[] ss = value.split(":", 2);
+                conn.setQueuedDispatch(Integer.parseInt(ss[0]),
+                        ss.length > 1 ? XBeeOverflowPolicy.valueOf(ss[1].toUpperCase(Locale.US)) :
+                                XBeeOverflowPolicy.BLOCK);
+            }
+        },
+        new Property("tunnelWindow", "<frames>",
+                "confirms delivery of tunnel data with up to a given number of frames in flight;")
+        {
+            @Override
+            void apply(XBeeConnection conn, String value) {
+                conn.setTunnelWindow(Integer.parseInt(value));
+            }
+        },
+        new Property("tunnelOverflow", "<policy>[:<limit>]",
+                "handles overflow of tunnel receive buffers, <policy> is one of " +
+                Arrays.toString(InputOverflowPolicy.values()) + ";\n" +
+                "BLOCK needs dispatchQueue, GROW limit is 1 GB by default;")
+        {
+            @Override
+            void apply(XBeeConnection conn, String value) {
+                String[] ss = value.split(":", 2);
+                conn.setTunnelOverflowPolicy(InputOverflowPolicy.valueOf(ss[0].toUpperCase(Locale.US)),
+                        ss.length > 1 ? Long.parseLong(ss[1]) : 0);
+            }
+        },
+        new Property("tunnelAsyncFlush", "",
+                "overlaps writes to tunnels with transmission of previously written data;")
+        {
+            @Override
+            void apply(XBeeConnection conn, String value) {
+                conn.setTunnelAsyncFlush(true);
+            }
+        },
+        new Property("atCacheTtl", "<sec>",
+                "remembers AT parameters of nodes to skip redundant queries (0 to turn off);")
+        {
+            @Override
+            void apply(XBeeConnection conn, String value) {
+                conn.setAtCacheTtl(Long.parseLong(value) * 1000);
+            }
+        },
+        // read where it is used
+        new Property(XBeeNodeDiscovery.DIRECTORY_PROPERTY, "<file>|none",
+                "keeps known nodes between runs in a given file (~/.xtools/nodes by default);") {},
+        new Property(Log.VERBOSE_PROPERTY, "", "logs debugging details.") {},
+    };
+
     private static String collect(String[] args, int from, int to) {
         StringBuilder sb = new StringBuilder();
         for (int i = from; i < to; i++) {
@@ -111,6 +111,23 @@ public class XBeeAddress implements Comparable<XBeeAddress> {
         return address.clone();
     }
 
+    // 64-bit serial number (without 16-bit network address)
+    public long getSerialNumber() {
+        return getSerialNumber(address, 0);
+    }
+
+    // 16-bit network address (0xfffe when unknown)
+    public int getNetworkAddress() {
+        return ((address[8] & 0xff) << 8) | (address[9] & 0xff);
+    }
+
+    public static long getSerialNumber(byte[] data, int offset) {
+        long result = 0;
+        for (int i = 0; i < 8; i++)
+            result = (result << 8) | (data[i + offset] & 0xff);
+        return result;
+    }
+
     public byte[] getHighAddressBytes() {
         return Arrays.copyOfRange(address, 0, 4);
     }
@@ -135,6 +152,16 @@ public class XBeeAddress implements Comparable<XBeeAddress> {
         return string;
     }
 
+    // compares with 8 bytes of serial number in data at offset without allocation
+    public boolean equals(byte[] data, int offset) {
+        if (data.length - offset < 8)
+            return false;
+        for (int i = 0; i < 8; i++)
+            if (address[i] != data[i + offset])
+                return false;
+        return true;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (o == null || getClass() != o.getClass())
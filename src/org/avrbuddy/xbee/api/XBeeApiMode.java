@@ -17,40 +17,29 @@
 
 package org.avrbuddy.xbee.api;
 
-import java.io.IOException;
-import java.io.OutputStream;
-
 /**
+ * XBee API operating modes (AP parameter).
+ *
  * @author Roman Elizarov
  */
-class EscapeStream extends OutputStream {
-    private final OutputStream out;
+public enum XBeeApiMode {
+    UNESCAPED(1), // frames are sent as is, resynchronization relies on length and checksum
+    ESCAPED(2);   // special bytes are escaped, so that frame start always begins a frame
 
-    public EscapeStream(OutputStream out) {
-        this.out = out;
-    }
+    private final byte parameter;
 
-    @Override
-    public void write(int b) throws IOException {
-        switch (b) {
-        case XBeeUtil.FRAME_START:
-        case XBeeUtil.ESCAPE:
-        case XBeeUtil.XON:
-        case XBeeUtil.XOFF:
-            out.write(XBeeUtil.ESCAPE);
-            b = b ^ XBeeUtil.XOR;
-        }
-        out.write(b);
+    XBeeApiMode(int parameter) {
+        this.parameter = (byte) parameter;
     }
 
-    @Override
-    public void close() throws IOException {
-        out.close();
+    public byte getParameter() {
+        return parameter;
     }
 
-    @Override
-    public void flush() throws IOException {
-        out.flush();
+    public static XBeeApiMode forParameter(int parameter) {
+        for (XBeeApiMode mode : values())
+            if (mode.parameter == parameter)
+                return mode;
+        throw new IllegalArgumentException("Unsupported API mode " + parameter);
     }
 }
-
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2012 Roman Elizarov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.avrbuddy.xbee.api;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Recently read or written AT parameter values of each node. Only parameters that change solely by AT commands
+ * or by joining a network are cached. Serial number never expires, other parameters expire after TTL.
+ * Local node is kept under {@code null} address.
+ *
+ * @author Roman Elizarov
+ */
+class XBeeAtCache {
+    private static final long FOREVER = Long.MAX_VALUE;
+
+    private static final String[] IDENTITY_PARAMETERS = {"SH", "SL"};
+    private static final String[] PARAMETERS = {"SH", "SL", "MY", "NI", "DH", "DL"};
+    private static final int[] PARAMETER_SIZES = {4, 4, 2, 0, 4, 4}; // 0 for variable size
+    private static final String[] RESET_COMMANDS = {"FR", "RE", "NR"}; // lose all volatile parameter values
+
+    private final Map<XBeeAddress, Map<String, Value>> nodes = new HashMap<XBeeAddress, Map<String, Value>>();
+
+    private volatile long ttl;
+
+    XBeeAtCache(long ttl) {
+        this.ttl = ttl;
+    }
+
+    void setTtl(long ttl) {
+        this.ttl = ttl;
+        if (ttl == 0)
+            clear();
+    }
+
+    static boolean isCached(String atCommand) {
+        return indexOf(PARAMETERS, atCommand) >= 0;
+    }
+
+    // returns null when value is not cached or has expired
+    synchronized byte[] get(XBeeAddress address, String atCommand) {
+        Map<String, Value> values = nodes.get(address);
+        if (values == null)
+            return null;
+        Value value = values.get(atCommand);
+        if (value == null)
+            return null;
+        if (System.currentTimeMillis() >= value.expires) {
+            values.remove(atCommand);
+            return null;
+        }
+        return value.data.clone();
+    }
+
+    synchronized void put(XBeeAddress address, String atCommand, byte[] data) {
+        long ttl = this.ttl;
+        int i = indexOf(PARAMETERS, atCommand);
+        if (ttl == 0 || i < 0 || XBeeAddress.BROADCAST.equals(address))
+            return;
+        int size = PARAMETER_SIZES[i];
+        if (size != 0) {
+            if (data.length > size)
+                return; // not a valid value
+            // numbers may be written with fewer bytes, but are always read with all bytes
+            byte[] number = new byte[size];
+            System.arraycopy(data, 0, number, size - data.length, data.length);
+            data = number;
+        } else
+            data = data.clone();
+        Map<String, Value> values = nodes.get(address);
+        if (values == null)
+            nodes.put(address, values = new HashMap<String, Value>());
+        long expires = indexOf(IDENTITY_PARAMETERS, atCommand) >= 0 ? FOREVER :
+                System.currentTimeMillis() + ttl;
+        values.put(atCommand, new Value(data, expires));
+    }
+
+    // invoked before a command is sent, so that a concurrent reader does not use the value that is being changed
+    synchronized void commandSent(XBeeAtFrame frame) {
+        String atCommand = frame.getAtCommand();
+        XBeeAddress address = frame.getDestination();
+        if (indexOf(RESET_COMMANDS, atCommand) >= 0)
+            invalidate(address);
+        else if (frame.getDataLength() > 0 && isCached(atCommand)) {
+            if (XBeeAddress.BROADCAST.equals(address)) {
+                for (Map<String, Value> values : nodes.values())
+                    values.remove(atCommand);
+            } else {
+                Map<String, Value> values = nodes.get(address);
+                if (values != null)
+                    values.remove(atCommand);
+            }
+        }
+    }
+
+    // remembers value from any successful response to a query, no matter who has sent the query
+    void responseReceived(XBeeAtResponseFrame response) {
+        if (response.getStatus() != XBeeAtResponseFrame.STATUS_OK || response.getDataLength() == 0)
+            return;
+        put(response.getSource(), response.getAtCommand(), response.getData());
+    }
+
+    // remembers written value after a command was confirmed by its response
+    void commandConfirmed(XBeeAtFrame frame, XBeeFrameWithId response) {
+        if (response == null || response.getStatus() != XBeeAtResponseFrame.STATUS_OK || frame.getDataLength() == 0)
+            return;
+        put(frame.getDestination(), frame.getAtCommand(), frame.getData());
+    }
+
+    // forgets everything about a node, broadcast address to forget all nodes
+    synchronized void invalidate(XBeeAddress address) {
+        if (XBeeAddress.BROADCAST.equals(address))
+            nodes.clear();
+        else
+            nodes.remove(address);
+    }
+
+    synchronized void clear() {
+        nodes.clear();
+    }
+
+    private static int indexOf(String[] a, String s) {
+        return Arrays.asList(a).indexOf(s);
+    }
+
+    private static class Value {
+        final byte[] data;
+        final long expires;
+
+        Value(byte[] data, long expires) {
+            this.data = data;
+            this.expires = expires;
+        }
+    }
+}
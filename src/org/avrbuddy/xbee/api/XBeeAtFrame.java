@@ -19,8 +19,6 @@ package org.avrbuddy.xbee.api;
 
 import org.avrbuddy.hex.HexUtil;
 
-import java.util.Arrays;
-
 /**
  * @author Roman Elizarov
  */
@@ -35,8 +33,9 @@ public class XBeeAtFrame extends XBeeFrameWithId {
         return HexUtil.formatAscii(frame, 5, 7);
     }
 
-    public byte[] getData() {
-        return Arrays.copyOfRange(frame, 7, frame.length - 1);
+    @Override
+    public int getDataOffset() {
+        return 7;
     }
 
     public XBeeAddress getDestination() {
@@ -19,8 +19,6 @@ package org.avrbuddy.xbee.api;
 
 import org.avrbuddy.hex.HexUtil;
 
-import java.util.Arrays;
-
 /**
  * @author Roman Elizarov
  */
@@ -51,8 +49,9 @@ public class XBeeAtResponseFrame extends XBeeFrameWithId {
         return frame[7];
     }
 
-    public byte[] getData() {
-        return Arrays.copyOfRange(frame, 8, frame.length - 1);
+    @Override
+    public int getDataOffset() {
+        return 8;
     }
 
     public XBeeAddress getSource() {
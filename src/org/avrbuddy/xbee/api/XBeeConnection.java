@@ -18,14 +18,18 @@
 package org.avrbuddy.xbee.api;
 
 import org.avrbuddy.conn.Connection;
+import org.avrbuddy.conn.InputOverflowPolicy;
 import org.avrbuddy.conn.SerialConnection;
 import org.avrbuddy.log.Log;
 import org.avrbuddy.log.LoggedThread;
 import org.avrbuddy.util.State;
 
 import java.io.*;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -39,23 +43,44 @@ public class XBeeConnection {
 
     public static final long DEFAULT_TIMEOUT = 3000;
     public static final long BROADCAST_TIMEOUT = 1000;
+    public static final long SEND_TIMEOUT = 10000; // until frames are written to the port
+
+    private static final int[] STANDARD_BAUD_RATES = {1200, 2400, 4800, 9600, 19200, 38400, 57600, 115200}; // BD 0-7
+    private static final int[] HIGH_BAUD_RATES = {230400, 115200}; // in the order of preference
+    private static final long BAUD_SWITCH_DELAY = 100; // time for XBee to apply new rate
+    private static final long BAUD_VERIFY_TIMEOUT = 500;
+    private static final int BAUD_VERIFY_ROUNDS = 3;
+    private static final long DEFAULT_AT_CACHE_TTL = 10 * 60000L; // 10 min
 
     private final SerialConnection serial;
-    private final DataInputStream in;
-    private final DataOutputStream out;
+    private final XBeeFrameDecoder decoder;
+    private final XBeeFrameScheduler scheduler;
     private final Thread reader;
     private final XBeeFrameListenerList listenerList = new XBeeFrameListenerList();
+    private final XBeeInFlightTable inFlight = new XBeeInFlightTable();
+    private final XBeeAtCache atCache = new XBeeAtCache(DEFAULT_AT_CACHE_TTL);
+    private final List<XBeeQueuedFrameListener<?>> queuedListeners = new CopyOnWriteArrayList<XBeeQueuedFrameListener<?>>();
     private final State state = new State();
-    private byte lastFrameId;
 
     private int maxPayloadSize;
 
+    private volatile int tunnelWindow; // 0 to send tunnel data without delivery confirmation
+    private volatile boolean tunnelAsyncFlush;
+    private volatile InputOverflowPolicy tunnelOverflowPolicy = InputOverflowPolicy.DROP;
+    private volatile long tunnelOverflowLimit;
+    private volatile int dispatchQueueCapacity; // 0 to dispatch synchronously from reader thread
+    private volatile XBeeOverflowPolicy dispatchOverflowPolicy = XBeeOverflowPolicy.BLOCK;
+
     // -------------- PUBLIC FACTORY --------------
 
     public static XBeeConnection open(SerialConnection serial) throws IOException {
+        return open(serial, XBeeApiMode.ESCAPED);
+    }
+
+    public static XBeeConnection open(SerialConnection serial, XBeeApiMode apiMode) throws IOException {
         XBeeConnection conn = new XBeeConnection(serial);
         try {
-            conn.configureConnection();
+            conn.configureConnection(apiMode);
         } catch (IOException e) {
             conn.close();
             throw e;
@@ -69,12 +94,11 @@ public class XBeeConnection {
         if (!state.set(CLOSED))
             return;
         serial.close();
-        Object[] listeners = listenerList.getListeners();
-        for (int i = 0; i < listeners.length; i += 2)
-            ((XBeeFrameListener) listeners[i + 1]).connectionClosed();
-        synchronized (this) {
-            notifyAll();
-        }
+        scheduler.close();
+        // release writers that wait for responses before listeners close their connections
+        inFlight.connectionClosed();
+        for (Object listener : listenerList.getAllListeners())
+            ((XBeeFrameListener) listener).connectionClosed();
     }
 
     public <F> void addListener(Class<F> frameClass, XBeeFrameListener<F> listener) {
@@ -87,16 +111,158 @@ public class XBeeConnection {
         listenerList.removeListener(frameClass, listener);
     }
 
-    public synchronized void sendFrames(XBeeFrame... frames) throws IOException {
-        for (XBeeFrame frame : frames) {
-            log.finer("-> " + frame);
+    // tunnels and commands started after this call dispatch received frames via a queue with a given capacity (0 to turn off)
+    public synchronized void setQueuedDispatch(int capacity, XBeeOverflowPolicy policy) {
+        if (capacity < 0 || policy == null)
+            throw new IllegalArgumentException();
+        if (capacity == 0 && tunnelOverflowPolicy == InputOverflowPolicy.BLOCK)
+            throw new IllegalArgumentException("Tunnels with " + InputOverflowPolicy.BLOCK + " overflow policy need queued dispatch");
+        dispatchOverflowPolicy = policy;
+        dispatchQueueCapacity = capacity;
+    }
+
+    // AT parameter values are remembered for a given time in ms (0 to turn off), changes apply to new values
+    public void setAtCacheTtl(long ttl) {
+        if (ttl < 0)
+            throw new IllegalArgumentException();
+        atCache.setTtl(ttl);
+    }
+
+    // returns values of AT parameters when all of them are known from recent commands, null otherwise
+    // destination == null for local node
+    public byte[][] getCachedAtValues(XBeeAddress destination, String... atCommands) {
+        byte[][] values = new byte[atCommands.length][];
+        for (int i = 0; i < atCommands.length; i++)
+            if ((values[i] = atCache.get(destination, atCommands[i])) == null)
+                return null;
+        return values;
+    }
+
+    // forgets cached AT parameter values of a node that was reconfigured or has rejoined network
+    public void invalidateAtCache(XBeeAddress destination) {
+        atCache.invalidate(destination);
+    }
+
+    // returns serial port throughput counters or null when not supported
+    public String getSerialStats() {
+        return serial.getStats();
+    }
+
+    @Override
+    public String toString() {
+        return serial.toString();
+    }
+
+    // tunnels opened after this call confirm delivery of data with up to a given number of frames in flight
+    public void setTunnelWindow(int maxWindow) {
+        if (maxWindow < 0)
+            throw new IllegalArgumentException();
+        tunnelWindow = maxWindow;
+    }
+
+    int getTunnelWindow() {
+        return tunnelWindow;
+    }
+
+    // tunnels opened after this call pass written data to the radio from a separate thread
+    public void setTunnelAsyncFlush(boolean async) {
+        tunnelAsyncFlush = async;
+    }
+
+    // tunnels opened after this call handle overflow of their receive buffers with a given policy
+    // BLOCK policy needs queued dispatch, otherwise a full tunnel would stall the reader thread and all other tunnels
+    public synchronized void setTunnelOverflowPolicy(InputOverflowPolicy policy, long limit) {
+        if (policy == null || limit < 0)
+            throw new IllegalArgumentException();
+        if (policy == InputOverflowPolicy.BLOCK && dispatchQueueCapacity == 0)
+            throw new IllegalArgumentException(InputOverflowPolicy.BLOCK + " overflow policy needs queued dispatch");
+        tunnelOverflowPolicy = policy;
+        tunnelOverflowLimit = limit;
+    }
+
+    InputOverflowPolicy getTunnelOverflowPolicy() {
+        return tunnelOverflowPolicy;
+    }
+
+    long getTunnelOverflowLimit() {
+        return tunnelOverflowLimit;
+    }
+
+    // wraps a listener that shall not run in reader thread, the result shall be stopped after it was removed
+    public <F> XBeeFrameListener<F> queuedIfConfigured(String name, XBeeFrameListener<F> listener) {
+        int capacity = dispatchQueueCapacity;
+        if (capacity == 0)
+            return listener;
+        XBeeQueuedFrameListener<F> queued = new XBeeQueuedFrameListener<F>(name, listener, capacity, dispatchOverflowPolicy);
+        queuedListeners.add(queued);
+        return queued;
+    }
+
+    // returns delivery, drop and lag counters of each running dispatch queue
+    public List<String> getDispatchStats() {
+        List<String> result = new ArrayList<String>();
+        for (XBeeQueuedFrameListener<?> listener : queuedListeners) {
+            if (listener.isDone())
+                queuedListeners.remove(listener);
+            else
+                result.add(listener.toString());
         }
+        return result;
+    }
+
+    // receives only RX frames from a given source
+    public void addRxListener(XBeeAddress source, XBeeFrameListener<XBeeRxFrame> listener) {
+        if (state.is(CLOSED))
+            return;
+        listenerList.addRxListener(source, listener);
+    }
+
+    public void removeRxListener(XBeeAddress source, XBeeFrameListener<XBeeRxFrame> listener) {
+        listenerList.removeRxListener(source, listener);
+    }
+
+    // receives unicast TX frames that were sent with frame id (like data of reliable tunnels)
+    // and that XBee has failed to deliver, because their destination was not reached
+    public void addUnreachableListener(XBeeFrameListener<XBeeTxFrame> listener) {
+        if (state.is(CLOSED))
+            return;
+        inFlight.addUnreachableListener(listener);
+    }
+
+    public void removeUnreachableListener(XBeeFrameListener<XBeeTxFrame> listener) {
+        inFlight.removeUnreachableListener(listener);
+    }
+
+    public void sendFrames(XBeeFrame... frames) throws IOException {
+        sendFrames(XBeeSendPriority.CONTROL, null, frames);
+    }
+
+    // flow identifies a sender (like a tunnel) that fairly shares priority lane with other flows
+    public void sendFrames(XBeeSendPriority priority, Object flow, XBeeFrame... frames) throws IOException {
+        sendFrames(priority, flow, SEND_TIMEOUT, frames);
+    }
+
+    // time left till deadline to pass frames to the writer, SEND_TIMEOUT when deadline is 0
+    static long getSendTimeout(long deadline) throws InterruptedIOException {
+        if (deadline == 0)
+            return SEND_TIMEOUT;
+        long timeout = deadline - System.currentTimeMillis();
+        if (timeout <= 0)
+            throw new InterruptedIOException("Timeout");
+        return timeout;
+    }
+
+    // throws InterruptedIOException when frames were not taken for writing to the port in a given time
+    public void sendFrames(XBeeSendPriority priority, Object flow, long timeout, XBeeFrame... frames) throws IOException {
         for (XBeeFrame frame : frames) {
-            sendFrameInternal(frame);
+            log.finer("-> " + frame);
+            if (frame instanceof XBeeAtFrame)
+                atCache.commandSent((XBeeAtFrame) frame);
         }
+        scheduler.send(priority, flow, timeout, frames);
     }
 
-    public synchronized XBeeFrameWithId[] buildFramesWithId(XBeeFrameWithId.Builder... builders) {
+    public XBeeFrameWithId[] buildFramesWithId(XBeeFrameWithId.Builder... builders) {
         XBeeFrameWithId[] frames = new XBeeFrameWithId[builders.length];
         for (int i = 0; i < builders.length; i++) {
             frames[i] = buildFrameWithId(builders[i]);
@@ -104,63 +270,90 @@ public class XBeeConnection {
         return frames;
     }
 
-    private Object lock() {
-        return this;
+    public XBeeResponseFuture sendAsync(XBeeFrameWithId.Builder builder) throws IOException {
+        return sendAsync(DEFAULT_TIMEOUT, builder);
+    }
+
+    public XBeeResponseFuture sendAsync(long timeout, XBeeFrameWithId.Builder builder) throws IOException {
+        return sendAsync(XBeeSendPriority.CONTROL, null, timeout, builder);
     }
 
-    public synchronized <F> void sendFramesAndWaitWithListener(long timeout,
-            Class<F> frameClass, XBeeTerminatingFrameListener<F> listener, XBeeFrame... frames)
+    // does not wait for response, waits only when all frame ids are in flight
+    public XBeeResponseFuture sendAsync(XBeeSendPriority priority, Object flow, long timeout,
+            XBeeFrameWithId.Builder builder) throws IOException
+    {
+        return sendAsync(priority, flow, timeout, SEND_TIMEOUT, builder);
+    }
+
+    // fails with InterruptedIOException when frame was not taken for writing to the port in sendTimeout
+    public XBeeResponseFuture sendAsync(XBeeSendPriority priority, Object flow, long timeout, long sendTimeout,
+            XBeeFrameWithId.Builder builder) throws IOException
+    {
+        XBeeResponseFuture future = inFlight.register(buildFrameWithId(builder), timeout);
+        try {
+            sendFrames(priority, flow, sendTimeout, future.getRequest());
+            future.written();
+        } catch (IOException e) {
+            future.cancel(false);
+            throw e;
+        }
+        return future;
+    }
+
+    // listener receives all responses to the frames (a broadcast frame may have many), waits till it terminates
+    public <F> void sendFramesAndWaitWithListener(long timeout,
+            Class<F> frameClass, XBeeTerminatingFrameListener<F> listener, XBeeFrameWithId... frames)
             throws IOException
     {
-        addListener(frameClass, listener);
+        if (listener.isTerminated())
+            return;
+        XBeeResponseFuture[] futures = new XBeeResponseFuture[frames.length];
         try {
-            sendFrames(frames);
-            long waitTill = System.currentTimeMillis() + timeout;
-            while (timeout > 0 && !listener.isTerminated()) {
-                wait(timeout);
-                timeout = waitTill - System.currentTimeMillis();
-            }
-        } catch (InterruptedException e) {
-            throw ((InterruptedIOException) new InterruptedIOException().initCause(e));
+            for (int i = 0; i < frames.length; i++)
+                futures[i] = inFlight.register(frames[i], timeout, frameClass, listener);
+            send(futures);
+            for (XBeeResponseFuture future : futures)
+                if (future.getResponse() != null && listener.isTerminated())
+                    break;
         } finally {
-            removeListener(frameClass, listener);
+            for (XBeeResponseFuture future : futures)
+                if (future != null)
+                    future.cancel(false);
         }
     }
 
-    public synchronized XBeeFrameWithId[] sendFramesWithIdAndWaitResponses(long timeout, final XBeeFrameWithId... frames) throws IOException {
-        final XBeeFrameWithId[] responses = new XBeeFrameWithId[frames.length];
-        XBeeTerminatingFrameListener<XBeeFrameWithId> listener = new XBeeTerminatingFrameListener<XBeeFrameWithId>() {
-            private boolean terminated;
-
-            @Override
-            public boolean isTerminated() {
-                return terminated;
-            }
-
-            public void frameReceived(XBeeFrameWithId frame) {
-                int waitCnt = 0;
-                for (int i = 0; i < frames.length; i++) {
-                    XBeeFrameWithId waitFrame = frames[i];
-                    if (responses[i] == null) {
-                        if (frame.isResponseFor(waitFrame))
-                            responses[i] = frame;
-                        else
-                            waitCnt++;
-                    }
-                }
-                if (waitCnt == 0)
-                    terminated = true;
-            }
-
-            @Override
-            public void connectionClosed() {
-                terminated = true;
-            }
-        };
-        sendFramesAndWaitWithListener(timeout, XBeeFrameWithId.class, listener, frames);
+    public XBeeFrameWithId[] sendFramesWithIdAndWaitResponses(long timeout, XBeeFrameWithId... frames) throws IOException {
+        XBeeResponseFuture[] futures = new XBeeResponseFuture[frames.length];
+        try {
+            for (int i = 0; i < frames.length; i++)
+                futures[i] = inFlight.register(frames[i], timeout);
+            send(futures);
+        } catch (IOException e) {
+            for (XBeeResponseFuture future : futures)
+                if (future != null)
+                    future.cancel(false);
+            throw e;
+        }
+        XBeeFrameWithId[] responses = new XBeeFrameWithId[frames.length];
+        for (int i = 0; i < frames.length; i++) {
+            responses[i] = futures[i].getResponse();
+            if (frames[i] instanceof XBeeAtFrame)
+                atCache.commandConfirmed((XBeeAtFrame) frames[i], responses[i]);
+        }
         return responses;
     }
 
+    // frames are registered under frame ids that may differ from the ones they were built with,
+    // their timeouts start when they are written to the port
+    private void send(XBeeResponseFuture[] futures) throws IOException {
+        XBeeFrameWithId[] requests = new XBeeFrameWithId[futures.length];
+        for (int i = 0; i < futures.length; i++)
+            requests[i] = futures[i].getRequest();
+        sendFrames(requests);
+        for (XBeeResponseFuture future : futures)
+            future.written();
+    }
+
     public XBeeFrameWithId[] sendFramesWithIdSeriallyAndWait(long timeout, XBeeFrameWithId.Builder... builders) throws IOException {
         XBeeFrameWithId[] responses = new XBeeFrameWithId[builders.length];
         for (int i = 0; i < builders.length; i++) {
@@ -175,11 +368,22 @@ public class XBeeConnection {
     // -------------- HIGH-LEVER PUBLIC OPERATION --------------
 
     public Connection openTunnel(XBeeAddress destination) throws IOException {
-        return new XBeeTunnel(this, destination, getMaxPayloadSize());
+        return openTunnel(destination, XBeeSendPriority.INTERACTIVE);
+    }
+
+    public Connection openTunnel(XBeeAddress destination, XBeeSendPriority priority) throws IOException {
+        XBeeTunnel tunnel = new XBeeTunnel(this, destination, getMaxPayloadSize(), priority);
+        if (tunnelAsyncFlush)
+            tunnel.setAsyncFlush(true);
+        return tunnel;
     }
 
     // destination == null to change destination of local node via local AT commands
     public void changeRemoteDestination(XBeeAddress destination, XBeeAddress target) throws IOException {
+        if (target.equals(getCachedDestination(destination))) {
+            log.fine(String.format("Destination for %s is already %s", destination, target));
+            return;
+        }
         log.info(String.format("Changing destination for %s to %s", destination, target));
         XBeeUtil.checkStatus(sendFramesWithIdSeriallyAndWait(DEFAULT_TIMEOUT,
                 XBeeAtFrame.newBuilder(destination)
@@ -209,18 +413,17 @@ public class XBeeConnection {
 
             @Override
             public void frameReceived(XBeeAtResponseFrame frame) {
-                for (int i = 0; i < frames.length; i++)
-                    if (frame.isResponseFor(frames[i])) {
-                        XBeeAtResponseFrame[] r = responses.get(frame.getSource());
-                        if (r == null)
-                            responses.put(frame.getSource(), r = new XBeeAtResponseFrame[2]);
-                        r[i] = frame;
-                        int status = XBeeUtil.getStatus(r);
-                        if (status == XBeeAtResponseFrame.STATUS_OK)
-                            visitor.visitNodeDestination(frame.getSource(), getDestFromResponses(r));
-                        if (status != XBeeUtil.STATUS_TIMEOUT && !broadcast)
-                            terminated = true;
-                    }
+                // only responses to our frames are received, they are told apart by AT command
+                int i = frame.getAtCommand().equals("DH") ? 0 : 1;
+                XBeeAtResponseFrame[] r = responses.get(frame.getSource());
+                if (r == null)
+                    responses.put(frame.getSource(), r = new XBeeAtResponseFrame[2]);
+                r[i] = frame;
+                int status = XBeeUtil.getStatus(r);
+                if (status == XBeeAtResponseFrame.STATUS_OK)
+                    visitor.visitNodeDestination(frame.getSource(), getDestFromResponses(r));
+                if (status != XBeeUtil.STATUS_TIMEOUT && !broadcast)
+                    terminated = true;
             }
 
             @Override
@@ -238,6 +441,11 @@ public class XBeeConnection {
 
     // destination == null to query destination of local node via local AT commands
     public XBeeAddress queryRemoteDestination(XBeeAddress destination, int attempts) throws IOException {
+        XBeeAddress cached = getCachedDestination(destination);
+        if (cached != null) {
+            log.fine(String.format("Destination for %s is %s", destination, cached));
+            return cached;
+        }
         final XBeeAddress[] result = new XBeeAddress[1];
         int status;
         do {
@@ -258,6 +466,11 @@ public class XBeeConnection {
         return result[0];
     }
 
+    private XBeeAddress getCachedDestination(XBeeAddress destination) {
+        byte[][] values = getCachedAtValues(destination, "DH", "DL");
+        return values == null ? null : XBeeAddress.valueOf(values[0], values[1]);
+    }
+
     private XBeeAddress getDestFromResponses(XBeeFrameWithId[] responses) {
         return XBeeAddress.valueOf(responses[0].getData(), responses[1].getData());
     }
@@ -270,27 +483,62 @@ public class XBeeConnection {
                 XBeeAtFrame.newBuilder(destination).setAtCommand("D3").setData(new byte[]{0})));
     }
 
+    /**
+     * Raises baud rate of the link to the local XBee up to a given limit. Each candidate rate is set with BD and
+     * applied with AC, then the link is verified with AT round-trips at the new rate. A rate that XBee rejects is
+     * skipped, a rate that times out or yields malformed frames is rolled back. Should be invoked right after
+     * the connection is opened, before any other traffic.
+     *
+     * @param maxBaud the maximal baud rate to use.
+     * @param persist when true, the resulting rate is written to XBee non-volatile memory with WR.
+     * @return the resulting baud rate.
+     */
+    public int negotiateBaud(int maxBaud, boolean persist) throws IOException {
+        int baud = serial.getBaud();
+        if (baud == 0) {
+            log.warning("Cannot negotiate baud rate on " + serial);
+            return baud;
+        }
+        for (int candidate : HIGH_BAUD_RATES) {
+            if (candidate > maxBaud || candidate <= baud)
+                continue;
+            if (switchBaud(baud, candidate)) {
+                log.info("Switched to " + candidate + " baud");
+                if (persist) {
+                    log.fine("Writing baud rate to non-volatile memory");
+                    XBeeUtil.checkStatus(sendFramesWithIdAndWaitResponses(DEFAULT_TIMEOUT, buildFramesWithId(
+                            XBeeAtFrame.newBuilder().setAtCommand("WR"))));
+                }
+                return candidate;
+            }
+        }
+        return baud;
+    }
+
     // -------------- PRIVATE CONSTRUCTOR AND HELPER METHODS --------------
 
     private XBeeConnection(SerialConnection serial) {
         this.serial = serial;
-        in = new DataInputStream(new UnescapeStream(serial.getInput()));
-        out = new DataOutputStream(new EscapeStream(serial.getOutput()));
+        decoder = new XBeeFrameDecoder(serial.getInput());
+        scheduler = new XBeeFrameScheduler(serial.getOutput(), serial.toString());
         reader = new Reader();
     }
 
-    private void configureConnection() throws IOException {
+    private void configureConnection(XBeeApiMode apiMode) throws IOException {
         // enable inbound flow control to make sure we can receive all answers (signal RTS)
         serial.setHardwareFlowControl(SerialConnection.FLOW_CONTROL_IN);
         serial.drainInput();
-        // now start reader thread to parse input
+        // now start writer and reader threads
+        scheduler.start();
         reader.start();
-        // configure API MODE
-        log.fine("Configuring API mode " + (byte) 2);
+        // configure API MODE (this first frame has no bytes that API mode 2 escapes, so it works in either mode)
+        log.fine("Configuring API mode " + apiMode.getParameter());
         if (XBeeAtResponseFrame.STATUS_OK != XBeeUtil.getStatus(
                 sendFramesWithIdAndWaitResponses(DEFAULT_TIMEOUT, buildFramesWithId(
-                        XBeeAtFrame.newBuilder().setAtCommand("AP").setData((byte) 2)))))
+                        XBeeAtFrame.newBuilder().setAtCommand("AP").setData(apiMode.getParameter())))))
             throw new IOException("No valid XBee device detected. Check that XBee is configured with API firmware and baud rate");
+        decoder.setApiMode(apiMode);
+        scheduler.setApiMode(apiMode);
         // enable hardware flow control - RTS & CTS
         log.fine("Configuring RTS and CTS flow control");
         if (XBeeAtResponseFrame.STATUS_OK != XBeeUtil.getStatus(
@@ -302,51 +550,60 @@ public class XBeeConnection {
         serial.setHardwareFlowControl(SerialConnection.FLOW_CONTROL_IN | SerialConnection.FLOW_CONTROL_OUT);
     }
 
-    private XBeeFrame nextFrame() throws IOException {
-        while (true) {
-            int skipped = 0;
-            while (readByteOrEOF() != XBeeUtil.FRAME_START)
-                skipped++; // skip bytes
-            if (skipped != 0)
-                log.log(Level.WARNING, "Skipped " + skipped + " bytes before start of frame");
-            int length = in.readShort() & 0xffff;
-            byte[] frame = new byte[length + 4];
-            frame[0] = XBeeUtil.FRAME_START;
-            frame[1] = (byte) (length >> 8);
-            frame[2] = (byte) length;
-            in.readFully(frame, 3, length + 1);
-            try {
-                return XBeeFrame.parse(frame);
-            } catch (IllegalArgumentException e) {
-                log.log(Level.WARNING, e.getMessage());
-            }
+    private boolean switchBaud(int baud, int candidate) throws IOException {
+        log.fine("Trying " + candidate + " baud");
+        if (XBeeAtResponseFrame.STATUS_OK != XBeeUtil.getStatus(
+                sendFramesWithIdAndWaitResponses(DEFAULT_TIMEOUT, buildFramesWithId(
+                        XBeeAtFrame.newBuilder().setAtCommand("BD").setData(encodeBaud(candidate)))))) {
+            log.fine("XBee does not support " + candidate + " baud");
+            return false;
         }
+        applyBaud(candidate);
+        if (verifyBaud())
+            return true;
+        log.warning("Link does not work at " + candidate + " baud, falling back to " + baud);
+        // link is unreliable, but XBee likely gets these short frames anyway
+        sendFramesWithIdAndWaitResponses(BAUD_VERIFY_TIMEOUT, buildFramesWithId(
+                XBeeAtFrame.newBuilder().setAtCommand("BD").setData(encodeBaud(baud))));
+        applyBaud(baud);
+        if (!verifyBaud())
+            throw new IOException("Lost connection to XBee after trying " + candidate + " baud");
+        return false;
     }
 
-    private byte readByteOrEOF() throws IOException {
-        int b = serial.getInput().read();
-        if (b < 0)
-            throw new EOFException("Port is closed");
-        return (byte) b;
+    private void applyBaud(int baud) throws IOException {
+        // XBee answers AC at the old rate and switches after that
+        sendFramesWithIdAndWaitResponses(BAUD_VERIFY_TIMEOUT, buildFramesWithId(
+                XBeeAtFrame.newBuilder().setAtCommand("AC")));
+        try {
+            Thread.sleep(BAUD_SWITCH_DELAY);
+        } catch (InterruptedException e) {
+            throw ((InterruptedIOException) new InterruptedIOException().initCause(e));
+        }
+        serial.setBaud(baud);
+        serial.drainInput();
     }
 
-    private byte nextFrameId() {
-        lastFrameId++;
-        if (lastFrameId == 0)
-            lastFrameId = 1;
-        return lastFrameId;
+    private boolean verifyBaud() throws IOException {
+        int errorCount = decoder.getErrorCount();
+        for (int i = 0; i < BAUD_VERIFY_ROUNDS; i++)
+            if (XBeeAtResponseFrame.STATUS_OK != XBeeUtil.getStatus(
+                    sendFramesWithIdAndWaitResponses(BAUD_VERIFY_TIMEOUT, buildFramesWithId(
+                            XBeeAtFrame.newBuilder().setAtCommand("BD")))))
+                return false;
+        return decoder.getErrorCount() == errorCount;
     }
 
-
-    private XBeeFrameWithId buildFrameWithId(XBeeFrameWithId.Builder builder) {
-        return builder.setFrameId(nextFrameId()).build();
+    private static byte[] encodeBaud(int baud) {
+        for (int i = 0; i < STANDARD_BAUD_RATES.length; i++)
+            if (STANDARD_BAUD_RATES[i] == baud)
+                return new byte[] { (byte) i };
+        // non-standard rates are set with their actual value
+        return new byte[] { (byte) (baud >> 16), (byte) (baud >> 8), (byte) baud };
     }
 
-    private void sendFrameInternal(XBeeFrame frame) throws IOException {
-        byte[] data = frame.getFrame();
-        serial.getOutput().write(data[0]);
-        out.write(data, 1, data.length - 1);
-        out.flush();
+    private XBeeFrameWithId buildFrameWithId(XBeeFrameWithId.Builder builder) {
+        return builder.setFrameId(inFlight.nextFrameId()).build();
     }
 
     private int getMaxPayloadSize() throws IOException {
@@ -365,15 +622,19 @@ public class XBeeConnection {
 
     @SuppressWarnings({"unchecked"})
     private void dispatch(XBeeFrame frame) {
-        Object[] listeners = listenerList.getListeners();
-        for (int i = 0; i < listeners.length; i += 2) {
-            Class<?> frameClass = (Class<Object>) listeners[i];
-            if (frameClass.isInstance(frame))
-                ((XBeeFrameListener) listeners[i + 1]).frameReceived(frame);
-        }
-        synchronized (this) {
-            notifyAll();
-        }
+        // cache is updated first, so that listeners and waiters see the effect of a frame on cached values
+        if (frame instanceof XBeeAtResponseFrame)
+            atCache.responseReceived((XBeeAtResponseFrame) frame);
+        else if (frame instanceof XBeeNodeIdFrame)
+            atCache.invalidate(((XBeeNodeIdFrame) frame).getSource());
+        for (Object listener : listenerList.getListeners(frame.getClass()))
+            ((XBeeFrameListener) listener).frameReceived(frame);
+        if (frame instanceof XBeeRxFrame)
+            for (Object listener : listenerList.getRxListeners(((XBeeRxFrame) frame).getSourceSerialNumber()))
+                ((XBeeFrameListener) listener).frameReceived(frame);
+        // responses complete after listeners, so that waiters see the effect of a response on listeners
+        if (frame instanceof XBeeFrameWithId)
+            inFlight.frameReceived((XBeeFrameWithId) frame);
     }
 
     private class Reader extends LoggedThread {
@@ -385,7 +646,7 @@ public class XBeeConnection {
         public void run() {
             try {
                 while (!state.is(CLOSED)) {
-                    XBeeFrame frame = nextFrame();
+                    XBeeFrame frame = decoder.nextFrame();
                     log.finer("<- " + frame);
                     dispatch(frame);
                 }
@@ -19,7 +19,8 @@ package org.avrbuddy.xbee.api;
 
 import org.avrbuddy.hex.HexUtil;
 
-import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 /**
  * @author Roman Elizarov
@@ -37,6 +38,8 @@ public class XBeeFrame {
         if (frame[frame.length - 1] != computeFrameChecksum(frame))
             throw new IllegalArgumentException("Invalid frame checksum");
         XBeeFrameType type = XBeeFrameType.forFrameType(frame[3]);
+        if (type == null)
+            throw new IllegalArgumentException(String.format("Unknown frame type 0x%02X", frame[3] & 0xff));
         switch (type) {
         case AT:
             return new XBeeAtFrame(frame);
@@ -80,9 +83,22 @@ public class XBeeFrame {
         return 0;
     }
 
-    // specific to a frame type
+    // specific to a frame type, data is located between this offset and checksum
+    public int getDataOffset() {
+        return frame.length - 1;
+    }
+
+    public int getDataLength() {
+        return frame.length - 1 - getDataOffset();
+    }
+
     public byte[] getData() {
-        return new byte[0];
+        return Arrays.copyOfRange(frame, getDataOffset(), frame.length - 1);
+    }
+
+    // read-only view of the data without copying
+    public ByteBuffer getDataBuffer() {
+        return ByteBuffer.wrap(frame, getDataOffset(), getDataLength()).slice().asReadOnlyBuffer();
     }
 
     @Override
@@ -103,7 +119,7 @@ public class XBeeFrame {
         return frame.length - 4;
     }
 
-    private static byte computeFrameChecksum(byte[] frame) {
+    static byte computeFrameChecksum(byte[] frame) {
         byte sum = 0;
         for (int i = 3; i < frame.length - 1; i++) {
             sum += frame[i];
@@ -116,18 +132,22 @@ public class XBeeFrame {
     }
 
     static class Builder {
-        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private static final int INITIAL_SIZE = 128;
+
+        // not pooled, since a builder that is dropped before build would never return its buffer
+        private byte[] buffer = new byte[INITIAL_SIZE];
+        private int size;
 
         Builder(XBeeFrameType type) {
-            out.write(XBeeUtil.FRAME_START);
-            out.write(0);
-            out.write(0);
-            out.write(type.getFrameType());
+            buffer[size++] = XBeeUtil.FRAME_START;
+            buffer[size++] = 0;
+            buffer[size++] = 0;
+            buffer[size++] = type.getFrameType();
         }
 
+        // builder stays usable, so that it can build the same frame again or continue with more data
         public XBeeFrame build() {
-            out.write(0);
-            byte[] frame = out.toByteArray();
+            byte[] frame = Arrays.copyOf(buffer, size + 1);
             int length = computeFrameLength(frame);
             frame[1] = (byte) (length >> 8);
             frame[2] = (byte) length;
@@ -136,7 +156,8 @@ public class XBeeFrame {
         }
 
         public Builder append(int b) {
-            out.write(b);
+            ensureCapacity(size + 1);
+            buffer[size++] = (byte) b;
             return this;
         }
 
@@ -147,8 +168,15 @@ public class XBeeFrame {
         }
 
         public Builder append(byte[] b, int off, int len) {
-            out.write(b, off, len);
+            ensureCapacity(size + len);
+            System.arraycopy(b, off, buffer, size, len);
+            size += len;
             return this;
         }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity > buffer.length)
+                buffer = Arrays.copyOf(buffer, Math.max(capacity, 2 * buffer.length));
+        }
     }
 }
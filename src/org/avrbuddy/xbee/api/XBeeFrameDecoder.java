@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2012 Roman Elizarov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.avrbuddy.xbee.api;
+
+import org.avrbuddy.log.Log;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Cuts frames out of an input stream. Input is read in large chunks into a reusable buffer
+ * and unescaped in bulk straight into the array of the resulting frame, which is allocated once
+ * its length is known. Partially received frames are carried over between reads.
+ * In API mode 1 frame start byte may appear inside a frame, so frames are validated
+ * with their length and checksum and the input is rescanned after a false start.
+ *
+ * @author Roman Elizarov
+ */
+class XBeeFrameDecoder {
+    private static final Logger log = Log.getLogger(XBeeFrameDecoder.class);
+
+    private static final int CHUNK_SIZE = 4096;
+    private static final int HEADER_SIZE = 3; // start byte and length
+    private static final int MAX_UNESCAPED_LENGTH = 0x200; // well above any frame that XBee sends
+
+    private final InputStream in;
+    private ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE);
+    private final byte[] header = new byte[HEADER_SIZE];
+    private byte[] frame = header; // header until length is known, then array of the whole frame
+    private int position; // number of bytes of the current frame received so far
+
+    private volatile XBeeApiMode mode = XBeeApiMode.ESCAPED;
+
+    private boolean inFrame;
+    private boolean escaping; // mode of the current frame
+    private boolean escaped;
+    private int frameSize; // expected size of the whole frame, 0 when length is not known yet
+    private int skipped;
+    private volatile int errorCount;
+
+    XBeeFrameDecoder(InputStream in) {
+        this.in = in;
+        chunk.limit(0);
+    }
+
+    public void setApiMode(XBeeApiMode mode) {
+        this.mode = mode;
+    }
+
+    // number of malformed frames and garbage runs seen so far
+    public int getErrorCount() {
+        return errorCount;
+    }
+
+    public XBeeFrame nextFrame() throws IOException {
+        while (true) {
+            if (!chunk.hasRemaining())
+                fill();
+            byte[] bytes = decode();
+            if (bytes == null)
+                continue;
+            try {
+                return XBeeFrame.parse(bytes);
+            } catch (RuntimeException e) {
+                // frame boundaries are known from its valid length and checksum, so only this frame is dropped
+                errorCount++;
+                log.log(Level.WARNING, "Dropped malformed frame: " + e.getMessage());
+            }
+        }
+    }
+
+    private void fill() throws IOException {
+        int n = in.read(chunk.array(), 0, chunk.capacity());
+        if (n < 0)
+            throw new EOFException("Port is closed");
+        chunk.position(0);
+        chunk.limit(n);
+    }
+
+    // returns complete frame or null when more input is needed
+    private byte[] decode() {
+        byte[] a = chunk.array();
+        int pos = chunk.position();
+        int limit = chunk.limit();
+        while (pos < limit) {
+            if (!inFrame) {
+                int start = indexOfFrameStart(a, pos, limit);
+                skipped += start - pos;
+                if (start == limit) {
+                    pos = limit;
+                    break;
+                }
+                pos = start + 1;
+                startFrame();
+                continue;
+            }
+            if (!escaping) {
+                // API mode 1: frame start is a regular data byte inside a frame
+                if (frameSize == 0) {
+                    frame[position++] = a[pos++];
+                    if (position < HEADER_SIZE || startData())
+                        continue;
+                } else {
+                    int run = Math.min(limit - pos, frameSize - position);
+                    System.arraycopy(a, pos, frame, position, run);
+                    position += run;
+                    pos += run;
+                    if (position < frameSize)
+                        continue;
+                    if (isChecksumValid()) {
+                        chunk.position(pos);
+                        return completeFrame();
+                    }
+                }
+                chunk.position(pos);
+                resync();
+                a = chunk.array();
+                pos = chunk.position();
+                limit = chunk.limit();
+                continue;
+            }
+            byte b = a[pos++];
+            if (b == XBeeUtil.FRAME_START) {
+                startFrame();
+                continue;
+            }
+            if (escaped) {
+                b ^= XBeeUtil.XOR;
+                escaped = false;
+            } else if (b == XBeeUtil.ESCAPE) {
+                escaped = true;
+                continue;
+            } else if (frameSize != 0) {
+                // bulk copy of the run of bytes that do not need unescaping
+                pos--;
+                int end = Math.min(limit, pos + frameSize - position);
+                int run = indexOfSpecial(a, pos, end) - pos;
+                System.arraycopy(a, pos, frame, position, run);
+                position += run;
+                pos += run;
+                if (position < frameSize)
+                    continue;
+                chunk.position(pos);
+                return completeFrame();
+            }
+            frame[position++] = b;
+            if (frameSize == 0 && position == HEADER_SIZE)
+                startData();
+            if (position == frameSize) {
+                chunk.position(pos);
+                return completeFrame();
+            }
+        }
+        chunk.position(pos);
+        return null;
+    }
+
+    private void startFrame() {
+        if (inFrame) {
+            errorCount++;
+            log.log(Level.WARNING, "Dropped incomplete frame of " + position + " bytes");
+        }
+        if (skipped != 0) {
+            errorCount++;
+            log.log(Level.WARNING, "Skipped " + skipped + " bytes before start of frame");
+        }
+        skipped = 0;
+        inFrame = true;
+        escaping = mode == XBeeApiMode.ESCAPED;
+        escaped = false;
+        frameSize = 0;
+        frame = header;
+        frame[0] = XBeeUtil.FRAME_START;
+        position = 1;
+    }
+
+    // returns false when length is not plausible for API mode 1 frame
+    private boolean startData() {
+        int length = ((header[1] & 0xff) << 8) | (header[2] & 0xff);
+        if (!escaping && (length == 0 || length > MAX_UNESCAPED_LENGTH))
+            return false;
+        frameSize = length + 4;
+        frame = new byte[frameSize];
+        System.arraycopy(header, 0, frame, 0, HEADER_SIZE);
+        return true;
+    }
+
+    private boolean isChecksumValid() {
+        byte sum = 0;
+        for (int i = HEADER_SIZE; i < frameSize; i++)
+            sum += frame[i];
+        return sum == (byte) 0xff;
+    }
+
+    // frame start of API mode 1 frame was a data byte, so everything after it is scanned again
+    private void resync() {
+        inFrame = false;
+        skipped++;
+        int n = position - 1;
+        int remaining = chunk.remaining();
+        byte[] a = chunk.array();
+        if (n + remaining <= chunk.capacity()) {
+            System.arraycopy(a, chunk.position(), a, n, remaining);
+        } else {
+            ByteBuffer grown = ByteBuffer.allocate(n + remaining);
+            System.arraycopy(a, chunk.position(), grown.array(), n, remaining);
+            chunk = grown;
+            a = grown.array();
+        }
+        System.arraycopy(frame, 1, a, 0, n);
+        chunk.position(0);
+        chunk.limit(n + remaining);
+    }
+
+    // frame array is handed over to the parsed frame as is
+    private byte[] completeFrame() {
+        inFrame = false;
+        byte[] bytes = frame;
+        frame = header;
+        return bytes;
+    }
+
+    private static int indexOfFrameStart(byte[] a, int from, int to) {
+        for (int i = from; i < to; i++)
+            if (a[i] == XBeeUtil.FRAME_START)
+                return i;
+        return to;
+    }
+
+    private static int indexOfSpecial(byte[] a, int from, int to) {
+        for (int i = from; i < to; i++) {
+            byte b = a[i];
+            if (b == XBeeUtil.FRAME_START || b == XBeeUtil.ESCAPE)
+                return i;
+        }
+        return to;
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2012 Roman Elizarov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.avrbuddy.xbee.api;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Encodes frames into a reusable buffer in a single pass (escaping them in API mode 2), so that
+ * a whole batch of frames is written to the port with one write and one flush.
+ * It is not thread-safe and shall be used under connection's send lock.
+ *
+ * @author Roman Elizarov
+ */
+class XBeeFrameEncoder {
+    private static final int INITIAL_SIZE = 256;
+
+    private byte[] buffer = new byte[INITIAL_SIZE];
+    private int size;
+    private volatile XBeeApiMode mode = XBeeApiMode.ESCAPED;
+
+    public void setApiMode(XBeeApiMode mode) {
+        this.mode = mode;
+    }
+
+    public void encode(XBeeFrame frame) {
+        byte[] data = frame.getFrame();
+        if (mode == XBeeApiMode.UNESCAPED) {
+            ensureCapacity(size + data.length);
+            System.arraycopy(data, 0, buffer, size, data.length);
+            size += data.length;
+            return;
+        }
+        // worst case: every byte except frame start is escaped
+        ensureCapacity(size + 2 * data.length);
+        byte[] buffer = this.buffer;
+        int size = this.size;
+        buffer[size++] = data[0];
+        for (int i = 1; i < data.length; i++) {
+            byte b = data[i];
+            switch (b) {
+            case XBeeUtil.FRAME_START:
+            case XBeeUtil.ESCAPE:
+            case XBeeUtil.XON:
+            case XBeeUtil.XOFF:
+                buffer[size++] = XBeeUtil.ESCAPE;
+                b ^= XBeeUtil.XOR;
+            }
+            buffer[size++] = b;
+        }
+        this.size = size;
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        try {
+            out.write(buffer, 0, size);
+            out.flush();
+        } finally {
+            size = 0;
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= buffer.length)
+            return;
+        byte[] grown = new byte[Math.max(capacity, 2 * buffer.length)];
+        System.arraycopy(buffer, 0, grown, 0, size);
+        buffer = grown;
+    }
+}
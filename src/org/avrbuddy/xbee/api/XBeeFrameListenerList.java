@@ -17,19 +17,34 @@
 
 package org.avrbuddy.xbee.api;
 
+import org.avrbuddy.util.LongHashMap;
+
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
+ * Listeners indexed for dispatch, so that each frame reaches only the listeners that care about it.
+ * Listeners are indexed by concrete frame class (the index is computed lazily and reset on any change)
+ * and RX frame listeners are additionally indexed by 64-bit source address. Changes are copy-on-write.
+ *
  * @author Roman Elizarov
  */
 class XBeeFrameListenerList {
-    private Object[] listeners = new Object[0];
+    private static final Object[] EMPTY = new Object[0];
+
+    // pairs of frame class and listener
+    private Object[] listeners = EMPTY;
+    private volatile LongHashMap<Object[]> rxListeners = new LongHashMap<Object[]>();
+    private final ConcurrentHashMap<Class<?>, Object[]> byFrameClass = new ConcurrentHashMap<Class<?>, Object[]>();
 
     public synchronized <F> void addListener(Class<F> frameClass, XBeeFrameListener<F> listener) {
         int i = listeners.length;
         listeners = Arrays.copyOf(listeners, i + 2);
         listeners[i] = frameClass;
         listeners[i + 1] = listener;
+        byFrameClass.clear();
     }
 
     public synchronized <F> void removeListener(Class<F> frameClass, XBeeFrameListener<F> listener) {
@@ -40,11 +55,73 @@ class XBeeFrameListenerList {
                 System.arraycopy(this.listeners, 0, listeners, 0, i);
                 System.arraycopy(this.listeners, i + 2, listeners, i, n - 2 - i);
                 this.listeners = listeners;
+                byFrameClass.clear();
                 return;
             }
     }
 
-    public synchronized Object[] getListeners() {
-        return listeners;
+    public synchronized void addRxListener(XBeeAddress source, XBeeFrameListener<XBeeRxFrame> listener) {
+        long key = source.getSerialNumber();
+        LongHashMap<Object[]> rxListeners = this.rxListeners.clone();
+        Object[] list = rxListeners.get(key);
+        if (list == null)
+            list = EMPTY;
+        list = Arrays.copyOf(list, list.length + 1);
+        list[list.length - 1] = listener;
+        rxListeners.put(key, list);
+        this.rxListeners = rxListeners;
+    }
+
+    public synchronized void removeRxListener(XBeeAddress source, XBeeFrameListener<XBeeRxFrame> listener) {
+        long key = source.getSerialNumber();
+        Object[] list = rxListeners.get(key);
+        if (list == null)
+            return;
+        int n = list.length;
+        for (int i = 0; i < n; i++)
+            if (list[i] == listener) {
+                LongHashMap<Object[]> rxListeners = this.rxListeners.clone();
+                if (n == 1)
+                    rxListeners.remove(key);
+                else {
+                    Object[] newList = new Object[n - 1];
+                    System.arraycopy(list, 0, newList, 0, i);
+                    System.arraycopy(list, i + 1, newList, i, n - 1 - i);
+                    rxListeners.put(key, newList);
+                }
+                this.rxListeners = rxListeners;
+                return;
+            }
+    }
+
+    // listeners for frames of a given concrete class
+    public Object[] getListeners(Class<?> frameClass) {
+        Object[] result = byFrameClass.get(frameClass);
+        return result != null ? result : computeListeners(frameClass);
+    }
+
+    // listeners for RX frames from a given source
+    public Object[] getRxListeners(long sourceSerialNumber) {
+        Object[] result = rxListeners.get(sourceSerialNumber);
+        return result != null ? result : EMPTY;
+    }
+
+    public synchronized List<Object> getAllListeners() {
+        List<Object> result = new ArrayList<Object>();
+        for (int i = 0; i < listeners.length; i += 2)
+            result.add(listeners[i + 1]);
+        for (Object[] list : rxListeners.values())
+            result.addAll(Arrays.asList(list));
+        return result;
+    }
+
+    private synchronized Object[] computeListeners(Class<?> frameClass) {
+        List<Object> result = new ArrayList<Object>();
+        for (int i = 0; i < listeners.length; i += 2)
+            if (((Class<?>) listeners[i]).isAssignableFrom(frameClass))
+                result.add(listeners[i + 1]);
+        Object[] array = result.toArray();
+        byFrameClass.put(frameClass, array);
+        return array;
     }
 }
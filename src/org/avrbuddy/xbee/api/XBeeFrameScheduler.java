@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2012 Roman Elizarov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.avrbuddy.xbee.api;
+
+import org.avrbuddy.log.LoggedThread;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.*;
+import java.util.logging.Level;
+
+/**
+ * Writes frames to the port from a dedicated thread. Higher priority lanes are served first, but a request
+ * that has waited for longer than {@link #MAX_WAIT} goes ahead of them, so that a busy lane cannot starve lower ones.
+ * Flows (tunnels) within a lane share it equally with deficit round robin, and
+ * all frames that are queued at the moment are coalesced into a single write.
+ * Senders wait until their frames are written. Frames that are still queued at sender's timeout are dropped.
+ *
+ * @author Roman Elizarov
+ */
+class XBeeFrameScheduler {
+    private static final int QUANTUM = 256; // deficit in bytes that each flow of a lane gets per round
+    private static final int MAX_BATCH_SIZE = 256; // bound latency of higher priority frames behind a batch
+    private static final long MAX_WAIT = 1000; // ms before a request is served regardless of its priority
+
+    private static final Object DEFAULT_FLOW = new Object();
+
+    private final OutputStream out;
+    private final XBeeFrameEncoder encoder = new XBeeFrameEncoder();
+    private final Lane[] lanes = new Lane[XBeeSendPriority.values().length];
+    private final Writer writer;
+
+    private int pending;
+    private boolean closed;
+
+    XBeeFrameScheduler(OutputStream out, String name) {
+        this.out = out;
+        for (int i = 0; i < lanes.length; i++)
+            lanes[i] = new Lane();
+        writer = new Writer(name);
+    }
+
+    public void start() {
+        writer.start();
+    }
+
+    // throws InterruptedIOException when writer has not taken frames in time, then they are not written at all,
+    // waits for the end of write when writer has taken them
+    public void send(XBeeSendPriority priority, Object flow, long timeout, XBeeFrame... frames) throws IOException {
+        Lane lane = lanes[priority.ordinal()];
+        Object key = flow == null ? DEFAULT_FLOW : flow;
+        Request request = new Request(frames);
+        synchronized (this) {
+            if (closed)
+                throw new EOFException("Port is closed");
+            lane.add(key, request);
+            pending++;
+            notifyAll();
+        }
+        if (request.await(timeout))
+            return;
+        synchronized (this) {
+            if (lane.remove(key, request)) {
+                pending--;
+                throw new InterruptedIOException("Timeout");
+            }
+        }
+        request.await(0);
+    }
+
+    public void setApiMode(XBeeApiMode mode) {
+        encoder.setApiMode(mode);
+    }
+
+    public void close() {
+        List<Request> failed = new ArrayList<Request>();
+        synchronized (this) {
+            closed = true;
+            Request request;
+            while ((request = poll()) != null)
+                failed.add(request);
+            notifyAll();
+        }
+        complete(failed, new EOFException("Port is closed"));
+    }
+
+    private synchronized List<Request> nextBatch() throws InterruptedException {
+        while (pending == 0 && !closed)
+            wait();
+        List<Request> batch = new ArrayList<Request>();
+        int size = 0;
+        Request request;
+        while (size < MAX_BATCH_SIZE && (request = poll()) != null) {
+            batch.add(request);
+            size += request.size;
+        }
+        return batch;
+    }
+
+    private Request poll() {
+        // lanes below the first non-empty one are checked for a request that waits for too long
+        long starvedTime = System.currentTimeMillis() - MAX_WAIT;
+        Lane first = null;
+        for (Lane lane : lanes) {
+            if (lane.active.isEmpty())
+                continue;
+            if (first == null)
+                first = lane;
+            else if (lane.getOldestTime() <= starvedTime)
+                return poll(lane);
+        }
+        return first == null ? null : poll(first);
+    }
+
+    private Request poll(Lane lane) {
+        pending--;
+        return lane.poll();
+    }
+
+    private static void complete(List<Request> batch, IOException e) {
+        for (Request request : batch)
+            request.complete(e);
+    }
+
+    private class Lane {
+        private final Map<Object, Flow> flows = new HashMap<Object, Flow>();
+        private final ArrayDeque<Flow> active = new ArrayDeque<Flow>();
+
+        void add(Object key, Request request) {
+            Flow flow = flows.get(key);
+            if (flow == null) {
+                flows.put(key, flow = new Flow(key));
+                active.addLast(flow);
+            }
+            flow.queue.addLast(request);
+        }
+
+        // returns false when request was already taken
+        boolean remove(Object key, Request request) {
+            Flow flow = flows.get(key);
+            if (flow == null || !flow.queue.remove(request))
+                return false;
+            if (flow.queue.isEmpty()) {
+                active.remove(flow);
+                flows.remove(key);
+            }
+            return true;
+        }
+
+        long getOldestTime() {
+            long time = Long.MAX_VALUE;
+            for (Flow flow : active)
+                time = Math.min(time, flow.queue.peekFirst().time);
+            return time;
+        }
+
+        Request poll() {
+            while (true) {
+                Flow flow = active.peekFirst();
+                if (flow == null)
+                    return null;
+                Request request = flow.queue.peekFirst();
+                if (flow.deficit < request.size) {
+                    // give this flow its next quantum and continue with next flow
+                    flow.deficit += QUANTUM;
+                    active.addLast(active.pollFirst());
+                    continue;
+                }
+                flow.deficit -= request.size;
+                flow.queue.pollFirst();
+                if (flow.queue.isEmpty()) {
+                    active.pollFirst();
+                    flows.remove(flow.key);
+                }
+                return request;
+            }
+        }
+    }
+
+    private static class Flow {
+        final Object key;
+        final ArrayDeque<Request> queue = new ArrayDeque<Request>();
+        int deficit;
+
+        Flow(Object key) {
+            this.key = key;
+        }
+    }
+
+    private static class Request {
+        final XBeeFrame[] frames;
+        final int size;
+        final long time = System.currentTimeMillis();
+        private boolean done;
+        private IOException exception;
+
+        Request(XBeeFrame[] frames) {
+            this.frames = frames;
+            int size = 0;
+            for (XBeeFrame frame : frames)
+                size += frame.getFrame().length;
+            this.size = size;
+        }
+
+        synchronized void complete(IOException exception) {
+            this.exception = exception;
+            done = true;
+            notifyAll();
+        }
+
+        // returns false on timeout, 0 to wait forever
+        synchronized boolean await(long timeout) throws IOException {
+            long deadline = System.currentTimeMillis() + timeout;
+            try {
+                while (!done) {
+                    if (timeout == 0) {
+                        wait();
+                        continue;
+                    }
+                    long wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0)
+                        return false;
+                    wait(wait);
+                }
+            } catch (InterruptedException e) {
+                throw ((InterruptedIOException) new InterruptedIOException().initCause(e));
+            }
+            if (exception != null)
+                throw exception;
+            return true;
+        }
+    }
+
+    private class Writer extends LoggedThread {
+        Writer(String name) {
+            super(name);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    List<Request> batch = nextBatch();
+                    if (batch.isEmpty())
+                        break; // closed
+                    IOException exception = null;
+                    try {
+                        for (Request request : batch)
+                            for (XBeeFrame frame : request.frames)
+                                encoder.encode(frame);
+                        encoder.writeTo(out);
+                    } catch (IOException e) {
+                        log.log(Level.FINE, "Failed to write", e);
+                        exception = e;
+                    }
+                    complete(batch, exception);
+                }
+            } catch (InterruptedException e) {
+                // exit
+            }
+        }
+    }
+}
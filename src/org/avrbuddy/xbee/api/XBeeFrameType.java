@@ -36,6 +36,13 @@ public enum XBeeFrameType {
     SENSOR_READ(0x94),
     NODE_ID(0x95);
 
+    private static final XBeeFrameType[] BY_FRAME_TYPE = new XBeeFrameType[256];
+
+    static {
+        for (XBeeFrameType type : values())
+            BY_FRAME_TYPE[type.frameType & 0xff] = type;
+    }
+
     private final byte frameType;
 
     XBeeFrameType(int cmdId) {
@@ -47,9 +54,6 @@ public enum XBeeFrameType {
     }
 
     public static XBeeFrameType forFrameType(byte frameType) {
-        for (XBeeFrameType type : values())
-            if (type.frameType == frameType)
-                return type;
-        return null;
+        return BY_FRAME_TYPE[frameType & 0xff];
     }
 }
@@ -35,6 +35,14 @@ public abstract class XBeeFrameWithId extends XBeeFrame {
         return frame[4];
     }
 
+    // the same frame with another frame id
+    XBeeFrameWithId withFrameId(byte frameId) {
+        byte[] copy = frame.clone();
+        copy[4] = frameId;
+        copy[copy.length - 1] = computeFrameChecksum(copy);
+        return (XBeeFrameWithId) parse(copy);
+    }
+
     public abstract static class Builder {
         byte frameId;
 
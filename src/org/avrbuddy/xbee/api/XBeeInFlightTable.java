@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2012 Roman Elizarov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.avrbuddy.xbee.api;
+
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Correlates outstanding requests with their responses by frame id.
+ * Slot 0 is never used, because frames with zero id do not produce responses,
+ * so there could be up to {@link #MAX_IN_FLIGHT} requests in flight.
+ *
+ * @author Roman Elizarov
+ */
+class XBeeInFlightTable implements XBeeFrameListener<XBeeFrameWithId> {
+    static final int MAX_IN_FLIGHT = 255;
+
+    private final XBeeResponseFuture[] slots = new XBeeResponseFuture[MAX_IN_FLIGHT + 1];
+    private final List<XBeeFrameListener<XBeeTxFrame>> unreachableListeners =
+            new CopyOnWriteArrayList<XBeeFrameListener<XBeeTxFrame>>();
+    private int lastFrameId;
+    private int inFlight;
+    private boolean closed;
+
+    // finds next frame id that is not currently in flight, a hint for building frames that are registered later
+    public synchronized byte nextFrameId() {
+        for (int i = 0; i < MAX_IN_FLIGHT; i++) {
+            advance();
+            if (slots[lastFrameId] == null)
+                break;
+        }
+        return (byte) lastFrameId;
+    }
+
+    // waits while all frame ids are in flight, request is rebuilt with a free frame id when its id is in flight
+    public XBeeResponseFuture register(XBeeFrameWithId request, long timeout) throws InterruptedIOException {
+        return register(request, timeout, null, null);
+    }
+
+    // listener receives all responses to the request (a broadcast request may have many) till it terminates
+    public synchronized <F> XBeeResponseFuture register(XBeeFrameWithId request, long timeout,
+            Class<F> frameClass, XBeeTerminatingFrameListener<F> listener) throws InterruptedIOException
+    {
+        try {
+            while (!closed && inFlight >= MAX_IN_FLIGHT) {
+                // deadline of a future may be restarted concurrently, so the expired one is found in the same scan
+                XBeeResponseFuture first = null;
+                long deadline = Long.MAX_VALUE;
+                for (XBeeResponseFuture future : slots) {
+                    if (future == null)
+                        continue;
+                    long futureDeadline = future.getDeadline();
+                    if (futureDeadline < deadline) {
+                        first = future;
+                        deadline = futureDeadline;
+                    }
+                }
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    first.complete(null);
+                    release(first); // in case it is being completed by another thread
+                } else
+                    wait(wait);
+            }
+        } catch (InterruptedException e) {
+            throw ((InterruptedIOException) new InterruptedIOException().initCause(e));
+        }
+        int slot = request.getFrameId() & 0xff;
+        if (!closed && slot != 0 && slots[slot] != null) {
+            slot = nextFrameId() & 0xff;
+            request = request.withFrameId((byte) slot);
+        }
+        XBeeResponseFuture future = new XBeeResponseFuture(this, request, timeout, frameClass, listener);
+        if (closed || slot == 0)
+            future.complete(null);
+        else {
+            slots[slot] = future;
+            inFlight++;
+        }
+        return future;
+    }
+
+    // listener receives unicast TX frames that were sent with frame id and did not reach their destination
+    public void addUnreachableListener(XBeeFrameListener<XBeeTxFrame> listener) {
+        unreachableListeners.add(listener);
+    }
+
+    public void removeUnreachableListener(XBeeFrameListener<XBeeTxFrame> listener) {
+        unreachableListeners.remove(listener);
+    }
+
+    synchronized void release(XBeeResponseFuture future) {
+        int slot = future.getRequest().getFrameId() & 0xff;
+        if (slots[slot] != future)
+            return;
+        slots[slot] = null;
+        inFlight--;
+        notifyAll();
+    }
+
+    public void frameReceived(XBeeFrameWithId frame) {
+        XBeeResponseFuture future;
+        synchronized (this) {
+            future = slots[frame.getFrameId() & 0xff];
+        }
+        if (future == null || !frame.isResponseFor(future.getRequest()))
+            return;
+        future.responseReceived(frame);
+        if (frame instanceof XBeeTxStatusFrame && ((XBeeTxStatusFrame) frame).isDestinationUnreachable()) {
+            XBeeTxFrame request = (XBeeTxFrame) future.getRequest();
+            if (!XBeeAddress.BROADCAST.equals(request.getDestination()))
+                for (XBeeFrameListener<XBeeTxFrame> listener : unreachableListeners)
+                    listener.frameReceived(request);
+        }
+    }
+
+    public void connectionClosed() {
+        XBeeResponseFuture[] pending;
+        synchronized (this) {
+            closed = true;
+            pending = slots.clone();
+        }
+        for (XBeeResponseFuture future : pending)
+            if (future != null)
+                future.connectionClosed();
+        for (XBeeFrameListener<XBeeTxFrame> listener : unreachableListeners)
+            listener.connectionClosed();
+    }
+
+    private void advance() {
+        lastFrameId++;
+        if (lastFrameId > MAX_IN_FLIGHT)
+            lastFrameId = 1;
+    }
+}
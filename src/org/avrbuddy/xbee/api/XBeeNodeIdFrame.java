@@ -23,6 +23,8 @@ import org.avrbuddy.hex.HexUtil;
  * @author Roman Elizarov
  */
 public class XBeeNodeIdFrame extends XBeeFrame implements XBeeNodeDescriptionContainer {
+    private XBeeAddress source; // lazily computed
+
     XBeeNodeIdFrame(byte[] frame) {
         super(frame);
         if (frame.length < 16 + XBeeNodeDescription.MIN_SIZE)
@@ -30,7 +32,14 @@ public class XBeeNodeIdFrame extends XBeeFrame implements XBeeNodeDescriptionCon
     }
 
     public XBeeAddress getSource() {
-        return XBeeAddress.valueOf(frame, 4);
+        XBeeAddress source = this.source;
+        if (source == null)
+            this.source = source = XBeeAddress.valueOf(frame, 4);
+        return source;
+    }
+
+    public boolean isFrom(XBeeAddress address) {
+        return address.equals(frame, 4);
     }
 
     public byte getOptions() {
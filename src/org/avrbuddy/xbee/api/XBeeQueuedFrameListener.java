@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2012 Roman Elizarov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.avrbuddy.xbee.api;
+
+import org.avrbuddy.log.LoggedThread;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Delivers frames to a listener from its own worker thread via a bounded ordered queue,
+ * so that a slow listener does not stall connection reader thread.
+ *
+ * @author Roman Elizarov
+ */
+public class XBeeQueuedFrameListener<F> implements XBeeFrameListener<F> {
+    private final String name;
+    private final XBeeFrameListener<F> listener;
+    private final XBeeOverflowPolicy policy;
+    private final Object[] frames;
+    private final long[] enqueueTimes;
+    private final Worker worker;
+
+    private int head;
+    private int size;
+    private boolean closed; // connection closed or listener stopped
+    private boolean connectionClosed;
+
+    // stats
+    private long delivered;
+    private long dropped;
+    private int maxSize;
+    private long lastLagNanos;
+    private long maxLagNanos;
+    private long blockedNanos;
+
+    public XBeeQueuedFrameListener(String name, XBeeFrameListener<F> listener, int capacity, XBeeOverflowPolicy policy) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("Capacity must be positive");
+        this.name = name;
+        this.listener = listener;
+        this.policy = policy;
+        frames = new Object[capacity];
+        enqueueTimes = new long[capacity];
+        worker = new Worker(name);
+        worker.start();
+    }
+
+    public void frameReceived(F frame) {
+        synchronized (this) {
+            if (closed)
+                return;
+            if (size == frames.length) {
+                switch (policy) {
+                case BLOCK:
+                    long start = System.nanoTime();
+                    try {
+                        while (size == frames.length && !closed)
+                            wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        dropped++;
+                        return;
+                    } finally {
+                        blockedNanos += System.nanoTime() - start;
+                    }
+                    if (closed)
+                        return;
+                    break;
+                case DROP_OLDEST:
+                    frames[head] = null;
+                    head = next(head);
+                    size--;
+                    dropped++;
+                    break;
+                case DROP_NEWEST:
+                    dropped++;
+                    return;
+                }
+            }
+            int tail = (head + size) % frames.length;
+            frames[tail] = frame;
+            enqueueTimes[tail] = System.nanoTime();
+            size++;
+            maxSize = Math.max(maxSize, size);
+            notifyAll();
+        }
+    }
+
+    public synchronized void connectionClosed() {
+        connectionClosed = true;
+        stop();
+    }
+
+    // stops worker after delivery of already queued frames
+    public synchronized void stop() {
+        closed = true;
+        notifyAll();
+    }
+
+    public void join() throws InterruptedException {
+        worker.join();
+    }
+
+    // true when worker has delivered all frames after stop
+    public boolean isDone() {
+        return !worker.isAlive();
+    }
+
+    public synchronized int getQueueSize() {
+        return size;
+    }
+
+    public synchronized int getMaxQueueSize() {
+        return maxSize;
+    }
+
+    public synchronized long getDeliveredCount() {
+        return delivered;
+    }
+
+    public synchronized long getDroppedCount() {
+        return dropped;
+    }
+
+    // time between reception of the last delivered frame and its delivery
+    public synchronized long getLastLag(TimeUnit unit) {
+        return unit.convert(lastLagNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public synchronized long getMaxLag(TimeUnit unit) {
+        return unit.convert(maxLagNanos, TimeUnit.NANOSECONDS);
+    }
+
+    // total time reader thread was blocked because of BLOCK policy
+    public synchronized long getBlockedTime(TimeUnit unit) {
+        return unit.convert(blockedNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return name +
+                ": delivered " + delivered +
+                ", dropped " + dropped +
+                ", queue " + size + "/" + frames.length + " (max " + maxSize + ")" +
+                ", lag " + TimeUnit.NANOSECONDS.toMillis(lastLagNanos) + "ms" +
+                " (max " + TimeUnit.NANOSECONDS.toMillis(maxLagNanos) + "ms)" +
+                ", blocked " + TimeUnit.NANOSECONDS.toMillis(blockedNanos) + "ms";
+    }
+
+    private synchronized boolean isConnectionClosed() {
+        return connectionClosed;
+    }
+
+    private int next(int i) {
+        return i + 1 == frames.length ? 0 : i + 1;
+    }
+
+    // returns null when stopped and queue is empty
+    @SuppressWarnings({"unchecked"})
+    private synchronized F take() throws InterruptedException {
+        while (size == 0 && !closed)
+            wait();
+        if (size == 0)
+            return null;
+        F frame = (F) frames[head];
+        long lag = System.nanoTime() - enqueueTimes[head];
+        frames[head] = null;
+        head = next(head);
+        size--;
+        delivered++;
+        lastLagNanos = lag;
+        maxLagNanos = Math.max(maxLagNanos, lag);
+        notifyAll();
+        return frame;
+    }
+
+    private class Worker extends LoggedThread {
+        Worker(String name) {
+            super(name);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                F frame;
+                while ((frame = take()) != null) {
+                    try {
+                        listener.frameReceived(frame);
+                    } catch (RuntimeException e) {
+                        log.log(Level.SEVERE, "Listener failed", e);
+                    }
+                }
+            } catch (InterruptedException e) {
+                // exit
+            }
+            log.fine(XBeeQueuedFrameListener.this.toString());
+            if (isConnectionClosed())
+                listener.connectionClosed();
+        }
+    }
+}
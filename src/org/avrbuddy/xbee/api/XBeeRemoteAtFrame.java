@@ -19,8 +19,6 @@ package org.avrbuddy.xbee.api;
 
 import org.avrbuddy.hex.HexUtil;
 
-import java.util.Arrays;
-
 /**
  * @author Roman Elizarov
  */
@@ -45,8 +43,9 @@ public class XBeeRemoteAtFrame extends XBeeAtFrame {
         return HexUtil.formatAscii(frame, 16, 18);
     }
 
-    public byte[] getData() {
-        return Arrays.copyOfRange(frame, 18, frame.length - 1);
+    @Override
+    public int getDataOffset() {
+        return 18;
     }
 
     @Override
@@ -19,12 +19,12 @@ package org.avrbuddy.xbee.api;
 
 import org.avrbuddy.hex.HexUtil;
 
-import java.util.Arrays;
-
 /**
  * @author Roman Elizarov
  */
 public class XBeeRemoteAtResponseFrame extends XBeeAtResponseFrame {
+    private XBeeAddress source; // lazily computed
+
     XBeeRemoteAtResponseFrame(byte[] frame) {
         super(frame);
         if (frame.length < 19)
@@ -37,7 +37,14 @@ public class XBeeRemoteAtResponseFrame extends XBeeAtResponseFrame {
     }
 
     public XBeeAddress getSource() {
-        return XBeeAddress.valueOf(frame, 5);
+        XBeeAddress source = this.source;
+        if (source == null)
+            this.source = source = XBeeAddress.valueOf(frame, 5);
+        return source;
+    }
+
+    public boolean isFrom(XBeeAddress address) {
+        return address.equals(frame, 5);
     }
 
     public String getAtCommand() {
@@ -48,8 +55,9 @@ public class XBeeRemoteAtResponseFrame extends XBeeAtResponseFrame {
         return frame[17];
     }
 
-    public byte[] getData() {
-        return Arrays.copyOfRange(frame, 18, frame.length - 1);
+    @Override
+    public int getDataOffset() {
+        return 18;
     }
 
     @Override
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2012 Roman Elizarov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.avrbuddy.xbee.api;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Pending response to a frame that was sent with {@link XBeeConnection#sendAsync}.
+ * {@link #get()} returns {@code null} when no response has arrived till request deadline,
+ * so that results can be checked with {@link XBeeUtil#getStatus}.
+ *
+ * @author Roman Elizarov
+ */
+public class XBeeResponseFuture implements Future<XBeeFrameWithId> {
+    private final XBeeInFlightTable table;
+    private final XBeeFrameWithId request;
+    private final long timeout;
+    private final Class<?> frameClass;
+    private final XBeeTerminatingFrameListener<?> listener;
+
+    private long deadline;
+    private XBeeFrameWithId response;
+    private long completionTime;
+    private boolean done;
+    private boolean cancelled;
+
+    XBeeResponseFuture(XBeeInFlightTable table, XBeeFrameWithId request, long timeout,
+            Class<?> frameClass, XBeeTerminatingFrameListener<?> listener)
+    {
+        this.table = table;
+        this.request = request;
+        this.timeout = timeout;
+        this.deadline = System.currentTimeMillis() + timeout;
+        this.frameClass = frameClass;
+        this.listener = listener;
+    }
+
+    public XBeeFrameWithId getRequest() {
+        return request;
+    }
+
+    public synchronized long getDeadline() {
+        return deadline;
+    }
+
+    // restarts timeout when request was actually written to the port, after it might have waited in a queue
+    synchronized void written() {
+        deadline = System.currentTimeMillis() + timeout;
+    }
+
+    // time when response arrived or request was completed without it, 0 while it is not done
+    public synchronized long getCompletionTime() {
+        return completionTime;
+    }
+
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        synchronized (this) {
+            if (done)
+                return false;
+            cancelled = true;
+        }
+        complete(null);
+        return true;
+    }
+
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    // waits till response or request deadline, returns null on timeout
+    public XBeeFrameWithId get() throws InterruptedException {
+        synchronized (this) {
+            long wait;
+            while (!done && (wait = deadline - System.currentTimeMillis()) > 0)
+                wait(wait);
+            if (done)
+                return response;
+        }
+        complete(null);
+        return response();
+    }
+
+    public XBeeFrameWithId get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+        long waitTill = System.currentTimeMillis() + unit.toMillis(timeout);
+        if (waitTill >= getDeadline())
+            return get();
+        synchronized (this) {
+            while (!done && (timeout = waitTill - System.currentTimeMillis()) > 0)
+                wait(timeout);
+            if (!done)
+                throw new TimeoutException();
+            return response;
+        }
+    }
+
+    public XBeeFrameWithId getResponse() throws InterruptedIOException {
+        try {
+            return get();
+        } catch (InterruptedException e) {
+            throw ((InterruptedIOException) new InterruptedIOException().initCause(e));
+        }
+    }
+
+    private synchronized XBeeFrameWithId response() {
+        return response;
+    }
+
+    // the first response completes the future, but every node answers broadcast remote AT command,
+    // so its responses are passed to listener till it terminates
+    @SuppressWarnings({"unchecked"})
+    void responseReceived(XBeeFrameWithId response) {
+        if (listener != null) {
+            if (frameClass.isInstance(response))
+                ((XBeeTerminatingFrameListener<Object>) listener).frameReceived(response);
+            if (!listener.isTerminated() && request instanceof XBeeRemoteAtFrame &&
+                    XBeeAddress.BROADCAST.equals(((XBeeRemoteAtFrame) request).getDestination()))
+                return;
+        }
+        complete(response);
+    }
+
+    void connectionClosed() {
+        if (listener != null)
+            listener.connectionClosed();
+        complete(null);
+    }
+
+    // returns true if this invocation has completed the future
+    boolean complete(XBeeFrameWithId response) {
+        synchronized (this) {
+            if (done)
+                return false;
+            this.response = response;
+            completionTime = System.currentTimeMillis();
+            done = true;
+            notifyAll();
+        }
+        table.release(this);
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "response to " + request;
+    }
+}
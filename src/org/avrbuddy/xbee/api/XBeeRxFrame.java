@@ -19,14 +19,14 @@ package org.avrbuddy.xbee.api;
 
 import org.avrbuddy.hex.HexUtil;
 
-import java.util.Arrays;
-
 /**
  * @author Roman Elizarov
  */
 public class XBeeRxFrame extends XBeeFrame {
     public static final byte OPTIONS_BROADCAST = 0x02;
 
+    private XBeeAddress source; // lazily computed
+
     XBeeRxFrame(byte[] frame) {
         super(frame);
         if (frame.length < 16)
@@ -34,15 +34,27 @@ public class XBeeRxFrame extends XBeeFrame {
     }
 
     public XBeeAddress getSource() {
-        return XBeeAddress.valueOf(frame, 4);
+        XBeeAddress source = this.source;
+        if (source == null)
+            this.source = source = XBeeAddress.valueOf(frame, 4);
+        return source;
+    }
+
+    public boolean isFrom(XBeeAddress address) {
+        return address.equals(frame, 4);
+    }
+
+    public long getSourceSerialNumber() {
+        return XBeeAddress.getSerialNumber(frame, 4);
     }
 
     public byte getOptions() {
         return frame[14];
     }
 
-    public byte[] getData() {
-        return Arrays.copyOfRange(frame, 15, frame.length - 1);
+    @Override
+    public int getDataOffset() {
+        return 15;
     }
 
     @Override
@@ -0,0 +1,29 @@
+/*
+ * Copyright (C) 2012 Roman Elizarov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.avrbuddy.xbee.api;
+
+/**
+ * Outbound frame lanes in the order of priority.
+ *
+ * @author Roman Elizarov
+ */
+public enum XBeeSendPriority {
+    CONTROL,     // AT commands and other requests that wait for responses
+    INTERACTIVE, // links
+    BULK         // bulk transfers such as AVR programming
+}
@@ -30,24 +30,50 @@ class XBeeTunnel extends BufferedConnection {
 
     private final XBeeConnection conn;
     private final XBeeAddress destination;
-    private final Listener listener = new Listener();
+    private final XBeeSendPriority priority;
+    private final XBeeFrameListener<XBeeRxFrame> listener;
+    private final XBeeTxWindow window; // null when delivery is not confirmed
 
-    public XBeeTunnel(XBeeConnection conn, XBeeAddress destination, int maxPayloadSize) {
+    public XBeeTunnel(XBeeConnection conn, XBeeAddress destination, int maxPayloadSize, XBeeSendPriority priority) {
         super(BUFFER_SIZE, maxPayloadSize);
         this.conn = conn;
         this.destination = destination;
-        conn.addListener(XBeeRxFrame.class, listener);
+        this.priority = priority;
+        setInputOverflowPolicy(conn.getTunnelOverflowPolicy(), conn.getTunnelOverflowLimit());
+        int maxWindow = conn.getTunnelWindow();
+        window = maxWindow == 0 ? null : new XBeeTxWindow(conn, destination, priority, this, maxWindow);
+        listener = conn.queuedIfConfigured(toString(), new Listener());
+        if (destination.equals(XBeeAddress.BROADCAST))
+            conn.addListener(XBeeRxFrame.class, listener);
+        else
+            conn.addRxListener(destination, listener);
     }
 
     @Override
-    protected void flushOutput(byte[] buffer, int size) throws IOException {
-        if (size > 0)
-            conn.sendFrames(XBeeTxFrame.newBuilder(destination).setData(Arrays.copyOf(buffer, size)).build());
+    protected void flushOutput(byte[] buffer, int size, long deadline) throws IOException {
+        if (size <= 0)
+            return;
+        if (window != null)
+            window.send(Arrays.copyOf(buffer, size), deadline);
+        else
+            conn.sendFrames(priority, this, XBeeConnection.getSendTimeout(deadline),
+                    XBeeTxFrame.newBuilder(destination).setData(Arrays.copyOf(buffer, size)).build());
+    }
+
+    @Override
+    protected void waitOutputDelivered(long deadline) throws IOException {
+        if (window != null)
+            window.drain(deadline);
     }
 
     @Override
     protected void closeImpl() {
-        conn.removeListener(XBeeRxFrame.class, listener);
+        if (destination.equals(XBeeAddress.BROADCAST))
+            conn.removeListener(XBeeRxFrame.class, listener);
+        else
+            conn.removeRxListener(destination, listener);
+        if (listener instanceof XBeeQueuedFrameListener)
+            ((XBeeQueuedFrameListener) listener).stop();
     }
 
     @Override
@@ -62,8 +88,7 @@ class XBeeTunnel extends BufferedConnection {
 
     private class Listener implements XBeeFrameListener<XBeeRxFrame> {
         public void frameReceived(XBeeRxFrame frame) {
-            if (destination.equals(XBeeAddress.BROADCAST) || frame.getSource().equals(destination))
-                in.write(frame.getData());
+            in.write(frame.getFrame(), frame.getDataOffset(), frame.getDataLength());
         }
 
         public void connectionClosed() {
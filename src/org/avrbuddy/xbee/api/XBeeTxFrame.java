@@ -19,8 +19,6 @@ package org.avrbuddy.xbee.api;
 
 import org.avrbuddy.hex.HexUtil;
 
-import java.util.Arrays;
-
 /**
  * @author Roman Elizarov
  */
@@ -43,8 +41,9 @@ public class XBeeTxFrame extends XBeeFrameWithId {
         return frame[16];
     }
 
-    public byte[] getData() {
-        return Arrays.copyOfRange(frame, 17, frame.length - 1);
+    @Override
+    public int getDataOffset() {
+        return 17;
     }
 
     @Override
@@ -52,6 +52,19 @@ public class XBeeTxStatusFrame extends XBeeFrameWithId {
         return frame[8];
     }
 
+    // MAC or network ACK failure, address or route not found
+    public boolean isDestinationUnreachable() {
+        switch (getDeliveryStatus()) {
+        case 0x01:
+        case 0x21:
+        case 0x24:
+        case 0x25:
+            return true;
+        default:
+            return false;
+        }
+    }
+
     public byte getDiscoveryStatus() {
         return frame[9];
     }
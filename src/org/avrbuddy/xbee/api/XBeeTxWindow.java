@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2012 Roman Elizarov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.avrbuddy.xbee.api;
+
+import org.avrbuddy.hex.HexUtil;
+import org.avrbuddy.log.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Logger;
+
+/**
+ * Sliding window of unacknowledged TX frames for reliable tunnels. Each frame gets a frame id,
+ * so that XBee reports its delivery status. Up to window size frames are kept in flight,
+ * window grows additively on success (while latency does not grow) and shrinks by half on failure.
+ * When a frame fails, no new frames are sent until statuses of all frames in flight are known.
+ * Then the failed frame and the frames after it are retransmitted one at a time, so that data stays in order.
+ * Data is reported as lost when its order or delivery cannot be guaranteed: when a frame after a failed one
+ * was delivered, or when XBee does not report status of a frame in time after it was written to the port.
+ * It is not thread-safe and shall be used under tunnel's output lock.
+ *
+ * @author Roman Elizarov
+ */
+class XBeeTxWindow {
+    private static final Logger log = Log.getLogger(XBeeTxWindow.class);
+
+    private static final int MAX_ATTEMPTS = 5;
+    private static final double INITIAL_WINDOW = 2;
+    private static final long MIN_TIMEOUT = 1000;
+    private static final long MAX_TIMEOUT = 10000;
+
+    private final XBeeConnection conn;
+    private final XBeeAddress destination;
+    private final XBeeSendPriority priority;
+    private final Object flow;
+    private final int maxWindow;
+    private final ArrayDeque<Pending> outstanding = new ArrayDeque<Pending>();
+
+    private double window = INITIAL_WINDOW;
+    private long smoothedLatency; // 0 until first sample
+    private long minLatency = Long.MAX_VALUE;
+
+    XBeeTxWindow(XBeeConnection conn, XBeeAddress destination, XBeeSendPriority priority, Object flow, int maxWindow) {
+        this.conn = conn;
+        this.destination = destination;
+        this.priority = priority;
+        this.flow = flow;
+        this.maxWindow = maxWindow;
+    }
+
+    // data that is not taken for writing to the port till deadline (0 when there is none) is not sent
+    public void send(byte[] data, long deadline) throws IOException {
+        while (outstanding.size() >= getWindow() || isRetransmitting())
+            processOldest(deadline);
+        Pending pending = new Pending(data);
+        outstanding.addLast(pending);
+        try {
+            transmit(pending, deadline);
+        } catch (IOException e) {
+            outstanding.removeLast();
+            throw e;
+        }
+    }
+
+    // waits until all sent frames are delivered, frames stay in flight when deadline (0 when there is none) passes
+    public void drain(long deadline) throws IOException {
+        while (!outstanding.isEmpty())
+            processOldest(deadline);
+    }
+
+    public int getWindow() {
+        return Math.min((int) window, maxWindow);
+    }
+
+    // frames that follow a failed one wait for retransmission at the end of the queue
+    private boolean isRetransmitting() {
+        return !outstanding.isEmpty() && outstanding.peekLast().future == null;
+    }
+
+    private void transmit(Pending pending, long deadline) throws IOException {
+        pending.future = conn.sendAsync(priority, flow, getTimeout(), XBeeConnection.getSendTimeout(deadline),
+                XBeeTxFrame.newBuilder(destination).setData(pending.data));
+        pending.attempts++;
+        // frame was written to the port when sendAsync returns, its timeout has started then too
+        pending.sentTime = System.currentTimeMillis();
+    }
+
+    private void processOldest(long deadline) throws IOException {
+        Pending pending = outstanding.peekFirst();
+        if (pending.future == null)
+            transmit(pending, deadline); // frames are retransmitted one at a time
+        if (deadline != 0)
+            awaitStatus(pending, deadline);
+        int status = getStatus(pending);
+        if (status == XBeeTxStatusFrame.STATUS_OK) {
+            outstanding.removeFirst();
+            // status may have arrived long before the frame is processed
+            delivered(pending.future.getCompletionTime() - pending.sentTime);
+            return;
+        }
+        window = Math.max(1, window / 2);
+        if (status == XBeeUtil.STATUS_TIMEOUT)
+            fail("no delivery status after " + pending.attempts + " attempts, data may be lost or duplicated");
+        for (Pending next : outstanding) {
+            if (next == pending || next.future == null)
+                continue;
+            int nextStatus = getStatus(next);
+            if (nextStatus == XBeeTxStatusFrame.STATUS_OK)
+                fail("data was delivered out of order after delivery status " + HexUtil.formatByte((byte) status));
+            if (nextStatus == XBeeUtil.STATUS_TIMEOUT)
+                fail("no delivery status, data may be lost or duplicated");
+            next.future = null;
+        }
+        if (pending.attempts >= MAX_ATTEMPTS)
+            fail("delivery status " + HexUtil.formatByte((byte) status) + " after " + pending.attempts + " attempts");
+        log.fine("Retransmitting " + outstanding.size() + " frames to " + destination +
+                ": delivery status " + HexUtil.formatByte((byte) status));
+        pending.future = null;
+    }
+
+    // throws InterruptedIOException when delivery status of a frame is not known till deadline
+    private static void awaitStatus(Pending pending, long deadline) throws IOException {
+        try {
+            pending.future.get(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new InterruptedIOException("Timeout");
+        } catch (InterruptedException e) {
+            throw ((InterruptedIOException) new InterruptedIOException().initCause(e));
+        }
+    }
+
+    // waits for delivery status of a frame
+    private static int getStatus(Pending pending) throws IOException {
+        XBeeFrameWithId response = pending.future.getResponse();
+        if (response == null)
+            return XBeeUtil.STATUS_TIMEOUT;
+        return response instanceof XBeeTxStatusFrame ?
+                ((XBeeTxStatusFrame) response).getDeliveryStatus() & 0xff : XBeeTxStatusFrame.STATUS_TX_FAILURE;
+    }
+
+    private void fail(String reason) throws XBeeException {
+        for (Pending pending : outstanding)
+            if (pending.future != null)
+                pending.future.cancel(false);
+        outstanding.clear();
+        throw new XBeeException("Failed to deliver data to " + destination + ": " + reason);
+    }
+
+    private void delivered(long latency) {
+        boolean congested = smoothedLatency != 0 && latency > 2 * minLatency;
+        minLatency = Math.min(minLatency, latency);
+        smoothedLatency = smoothedLatency == 0 ? latency : (7 * smoothedLatency + latency) / 8;
+        if (!congested && window < maxWindow)
+            window += 1 / window;
+    }
+
+    private long getTimeout() {
+        if (smoothedLatency == 0)
+            return XBeeConnection.DEFAULT_TIMEOUT;
+        return Math.max(MIN_TIMEOUT, Math.min(MAX_TIMEOUT, 4 * smoothedLatency));
+    }
+
+    private static class Pending {
+        final byte[] data;
+        XBeeResponseFuture future; // null when frame needs to be transmitted
+        long sentTime;
+        int attempts;
+
+        Pending(byte[] data) {
+            this.data = data;
+        }
+    }
+}
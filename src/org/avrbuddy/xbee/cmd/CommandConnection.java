@@ -21,6 +21,7 @@ import org.avrbuddy.conn.Connection;
 import org.avrbuddy.conn.ConnectionOptions;
 import org.avrbuddy.conn.ConsoleConnection;
 import org.avrbuddy.conn.SerialConnection;
+import org.avrbuddy.conn.TcpConnection;
 import org.avrbuddy.util.WrongFormatException;
 
 import java.io.IOException;
@@ -34,6 +35,15 @@ public abstract class CommandConnection {
             return new Console(options);
         String[] s = spec.trim().split("\\s", 2);
         String port = s[0];
+        // local tcp port
+        if (port.startsWith(TcpConnection.PREFIX)) {
+            String portStr = port.substring(TcpConnection.PREFIX.length());
+            try {
+                return new Tcp(Integer.parseInt(portStr), options);
+            } catch (NumberFormatException e) {
+                throw new WrongFormatException("TCP port number is expected, but '" + portStr + "' is found");
+            }
+        }
         // other node
         CommandDestination remote = CommandDestination.parse(spec);
         if (remote != null)
@@ -42,7 +52,7 @@ public abstract class CommandConnection {
         if (s.length > 1) {
             String baudStr = s[1];
             try {
-                options = new ConnectionOptions(Integer.parseInt(baudStr));
+                options = options.withBaud(Integer.parseInt(baudStr));
             } catch (NumberFormatException e) {
                 throw new WrongFormatException("Baud is expected as an argument, but '" + baudStr + "' is found");
             }
@@ -129,4 +139,28 @@ public abstract class CommandConnection {
             return port.hashCode();
         }
     }
+
+    private static class Tcp extends CommandConnection {
+        private final int port;
+
+        private Tcp(int port, ConnectionOptions options) {
+            super(options);
+            this.port = port;
+        }
+
+        @Override
+        public Connection openConnection(CommandContext ctx) throws IOException {
+            return TcpConnection.open(port);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return this == o || o instanceof Tcp && port == ((Tcp) o).port;
+        }
+
+        @Override
+        public int hashCode() {
+            return port;
+        }
+    }
 }
@@ -20,6 +20,7 @@ package org.avrbuddy.xbee.cmd;
 import org.avrbuddy.xbee.api.XBeeAddress;
 import org.avrbuddy.xbee.discover.XBeeNode;
 import org.avrbuddy.xbee.discover.XBeeNodeDiscovery;
+import org.avrbuddy.xbee.discover.XBeeNodeVisitor;
 
 import java.io.IOException;
 
@@ -41,6 +42,9 @@ public abstract class CommandDestination {
             return BROADCAST;
         if (s.equals(LOCAL_STRING))
             return LOCAL;
+        if (s.startsWith(XBeeNode.NODE_ID_PREFIX) && s.endsWith(XBeeNode.NODE_ID_WILDCARD))
+            return new NodeIdPrefix(s.substring(XBeeNode.NODE_ID_PREFIX.length(),
+                    s.length() - XBeeNode.NODE_ID_WILDCARD.length()));
         if (s.startsWith(XBeeNode.NODE_ID_PREFIX))
             return new NodeId(s.substring(XBeeNode.NODE_ID_PREFIX.length()));
         if (s.startsWith(XBeeAddress.S_PREFIX))
@@ -56,6 +60,11 @@ public abstract class CommandDestination {
         return resolveNode(ctx).getAddress();
     }
 
+    // visits known nodes that match this destination
+    public void listNodes(CommandContext ctx, XBeeNodeVisitor visitor) throws IOException {
+        visitor.visitNode(resolveNode(ctx));
+    }
+
     public boolean isBroadcast() {
         return false;
     }
@@ -77,6 +86,14 @@ public abstract class CommandDestination {
             return address;
         }
 
+        @Override
+        public void listNodes(CommandContext ctx, XBeeNodeVisitor visitor) throws IOException {
+            if (isBroadcast())
+                ctx.discovery.list(visitor);
+            else
+                super.listNodes(ctx, visitor);
+        }
+
         @Override
         public boolean isBroadcast() {
             return address.equals(XBeeAddress.BROADCAST);
@@ -149,4 +166,37 @@ public abstract class CommandDestination {
             return nodeId.hashCode();
         }
     }
+
+    private static class NodeIdPrefix extends CommandDestination {
+        private final String prefix;
+
+        NodeIdPrefix(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public XBeeNode resolveNode(CommandContext ctx) throws IOException {
+            return ctx.discovery.getOrDiscoverByNodeIdPrefix(prefix);
+        }
+
+        @Override
+        public void listNodes(CommandContext ctx, XBeeNodeVisitor visitor) {
+            ctx.discovery.listByIdPrefix(prefix, visitor);
+        }
+
+        @Override
+        public String toString() {
+            return XBeeNode.NODE_ID_PREFIX + prefix + XBeeNode.NODE_ID_WILDCARD;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return this == o || o instanceof NodeIdPrefix && prefix.equals(((NodeIdPrefix) o).prefix);
+        }
+
+        @Override
+        public int hashCode() {
+            return prefix.hashCode() + 1;
+        }
+    }
 }
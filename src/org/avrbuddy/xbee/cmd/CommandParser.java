@@ -38,6 +38,7 @@ public class CommandParser {
             new AtCommand(),
             new Discover(),
             new List(),
+            new Stats(),
             new Exit()
     };
 
@@ -71,8 +71,7 @@ public class AtCommand extends Command {
 
                 @Override
                 public void frameReceived(XBeeAtResponseFrame frame) {
-                    if (frame.isResponseFor(frames[0]))
-                        log.info(frame.getSource() + " " + resultString(frame));
+                    log.info(frame.getSource() + " " + resultString(frame));
                 }
 
                 @Override
@@ -24,7 +24,9 @@ import org.avrbuddy.avr.AvrProgrammer;
 import org.avrbuddy.conn.Connection;
 import org.avrbuddy.xbee.api.XBeeAddress;
 import org.avrbuddy.xbee.api.XBeeFrameListener;
+import org.avrbuddy.xbee.api.XBeeQueuedFrameListener;
 import org.avrbuddy.xbee.api.XBeeRxFrame;
+import org.avrbuddy.xbee.api.XBeeSendPriority;
 import org.avrbuddy.xbee.cmd.Command;
 import org.avrbuddy.xbee.cmd.CommandContext;
 
@@ -85,11 +87,12 @@ public class Avr extends Command {
     protected String invoke(CommandContext ctx) throws IOException {
         DestTracker destTracker = new DestTracker(ctx);
         destTracker.start();
-        ctx.conn.addListener(XBeeRxFrame.class, destTracker);
+        XBeeFrameListener<XBeeRxFrame> listener = ctx.conn.queuedIfConfigured(destTracker.getName(), destTracker);
+        ctx.conn.addListener(XBeeRxFrame.class, listener);
         try {
             XBeeAddress remoteAddress = destination.resolveAddress(ctx);
             destTracker.changeDestAndSave(remoteAddress);
-            Connection tunnel = ctx.conn.openTunnel(remoteAddress);
+            Connection tunnel = ctx.conn.openTunnel(remoteAddress, XBeeSendPriority.BULK);
             try {
                 AvrProgrammer pgm = AvrProgrammer.open(tunnel);
                 if (operation != null)
@@ -99,7 +102,9 @@ public class Avr extends Command {
                 tunnel.close();
             }
         } finally {
-            ctx.conn.removeListener(XBeeRxFrame.class, destTracker);
+            ctx.conn.removeListener(XBeeRxFrame.class, listener);
+            if (listener instanceof XBeeQueuedFrameListener)
+                ((XBeeQueuedFrameListener) listener).stop();
             destTracker.stopAndRestore();
         }
         return (operation != null ? operation + " " : "") + OK;
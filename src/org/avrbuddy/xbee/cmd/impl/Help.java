@@ -104,6 +104,8 @@ public class Help extends Command {
         FmtUtil.line(table, "'" + XBeeAddress.COORDINATOR_STRING + "'", FmtUtil.SEP, "coordinator node;");
         FmtUtil.line(table, "'" + XBeeNode.NODE_ID_PREFIX + "'<node-id>", FmtUtil.SEP,
                 "a given node id (discovers by node id);");
+        FmtUtil.line(table, "'" + XBeeNode.NODE_ID_PREFIX + "'<prefix>'" + XBeeNode.NODE_ID_WILDCARD + "'", FmtUtil.SEP,
+                "the only node with a given node id prefix, all such nodes for list;");
         FmtUtil.line(table, "'['<hex>']'", FmtUtil.SEP,
                 "a given serial number (8 bytes) and optional local address (2 bytes) in hex.");
         printTable(table);
@@ -60,6 +60,7 @@ public class Link extends Command {
         ArrayList<String[]> table = new ArrayList<String[]>();
         FmtUtil.line(table, "<node>", FmtUtil.SEP, op + " other remote node.");
         FmtUtil.line(table, "<port> [<baud>]", FmtUtil.SEP, op + " serial port.");
+        FmtUtil.line(table, "tcp:<port>", FmtUtil.SEP, op + " local TCP port, any number of clients can attach.");
         return "Where <conn> is one of:\n" + FmtUtil.formatTable(table);
     }
 
@@ -17,21 +17,83 @@
 
 package org.avrbuddy.xbee.cmd.impl;
 
+import org.avrbuddy.util.FmtUtil;
+import org.avrbuddy.util.WrongFormatException;
 import org.avrbuddy.xbee.cmd.Command;
 import org.avrbuddy.xbee.cmd.CommandContext;
+import org.avrbuddy.xbee.discover.XBeeNode;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.Locale;
 
 /**
  * @author Roman Elizarov
  */
 public class List extends Command {
+    private static final String PARENT_FILTER = "parent=";
+    private static final String SEEN_FILTER = "seen=";
+
+    @Override
+    public EnumSet<Option> getOptions() {
+        return EnumSet.of(Option.DEST, Option.ARG);
+    }
+
+    @Override
+    public String getParameterDescription() {
+        return "[<filter>]";
+    }
+
     @Override
     public String getCommandDescription() {
-        return "Lists discovered nodes.";
+        return "Lists discovered nodes (all nodes by default).";
     }
 
     @Override
-    protected String invoke(CommandContext ctx) {
-        ctx.discovery.list(this);
+    public String getMoreHelp() {
+        ArrayList<String[]> table = new ArrayList<String[]>();
+        FmtUtil.line(table, "coordinator|router|end", FmtUtil.SEP, "Nodes of a given device type.");
+        FmtUtil.line(table, PARENT_FILTER + "<hex>", FmtUtil.SEP, "Nodes with a parent at a given network address.");
+        FmtUtil.line(table, SEEN_FILTER + "<sec>", FmtUtil.SEP, "Nodes seen during a given number of last seconds.");
+        return "Where <filter> is one of:\n" + FmtUtil.formatTable(table);
+    }
+
+    @Override
+    public void validate(CommandContext ctx) {
+        super.validate(ctx);
+        if (destination != null && arg != null)
+            throw new WrongFormatException("Either node or filter can be specified");
+    }
+
+    @Override
+    protected String invoke(CommandContext ctx) throws IOException {
+        if (destination != null)
+            destination.listNodes(ctx, this);
+        else if (arg == null)
+            ctx.discovery.list(this);
+        else
+            listFiltered(ctx, arg.trim().toLowerCase(Locale.US));
         return OK;
     }
+
+    private void listFiltered(CommandContext ctx, String filter) {
+        try {
+            if (filter.equals("coordinator"))
+                ctx.discovery.listByDeviceType(XBeeNode.COORDINATOR, this);
+            else if (filter.equals("router"))
+                ctx.discovery.listByDeviceType(XBeeNode.ROUTER, this);
+            else if (filter.equals("end"))
+                ctx.discovery.listByDeviceType(XBeeNode.END_DEVICE, this);
+            else if (filter.startsWith(PARENT_FILTER))
+                ctx.discovery.listByParent(Integer.parseInt(filter.substring(PARENT_FILTER.length()), 16), this);
+            else if (filter.startsWith(SEEN_FILTER))
+                ctx.discovery.listSeenSince(System.currentTimeMillis() -
+                        1000L * Long.parseLong(filter.substring(SEEN_FILTER.length())), this);
+            else
+                throw new WrongFormatException("Unknown filter " + filter);
+        } catch (NumberFormatException e) {
+            throw new WrongFormatException("Wrong number in filter " + filter);
+        }
+    }
 }
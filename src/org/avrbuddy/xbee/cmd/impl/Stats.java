@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2012 Roman Elizarov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.avrbuddy.xbee.cmd.impl;
+
+import org.avrbuddy.util.BufferPool;
+import org.avrbuddy.xbee.cmd.Command;
+import org.avrbuddy.xbee.cmd.CommandContext;
+import org.avrbuddy.xbee.link.XBeeLink;
+
+/**
+ * @author Roman Elizarov
+ */
+public class Stats extends Command {
+    @Override
+    public String getCommandDescription() {
+        return "Prints serial port throughput, link counters, dispatch queues and buffer pool utilisation.";
+    }
+
+    @Override
+    protected String invoke(CommandContext ctx) {
+        String serialStats = ctx.conn.getSerialStats();
+        if (serialStats != null)
+            log.info("Serial port " + serialStats);
+        for (XBeeLink link : ctx.getLinks()) {
+            String linkStats = link.getStats();
+            if (linkStats != null)
+                log.info("Link " + linkStats);
+        }
+        for (String queue : ctx.conn.getDispatchStats())
+            log.info("Dispatch queue of " + queue);
+        log.info(BufferPool.SHARED.toString());
+        return OK;
+    }
+}
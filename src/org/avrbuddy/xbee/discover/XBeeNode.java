@@ -24,15 +24,36 @@ import org.avrbuddy.xbee.api.XBeeAddress;
  */
 public class XBeeNode implements Comparable<XBeeNode> {
     public static final String NODE_ID_PREFIX = "@";
+    public static final String NODE_ID_WILDCARD = "*";
 
-    private XBeeAddress address;
-    private String id;
-    private boolean localNode;
+    public static final int UNKNOWN_PARENT = 0xfffe;
+    public static final int UNKNOWN_DEVICE_TYPE = -1;
+    public static final int COORDINATOR = 0;
+    public static final int ROUTER = 1;
+    public static final int END_DEVICE = 2;
+
+    private final XBeeAddress address;
+    private final String id;
+    private final boolean localNode;
+    private final long lastSeen;
+    private final int parentAddress;
+    private final int deviceType;
 
     public XBeeNode(XBeeAddress address, String id, boolean localNode) {
+        this(address, id, localNode, System.currentTimeMillis());
+    }
+
+    public XBeeNode(XBeeAddress address, String id, boolean localNode, long lastSeen) {
+        this(address, id, localNode, lastSeen, UNKNOWN_PARENT, UNKNOWN_DEVICE_TYPE);
+    }
+
+    public XBeeNode(XBeeAddress address, String id, boolean localNode, long lastSeen, int parentAddress, int deviceType) {
         this.address = address;
         this.id = id;
         this.localNode = localNode;
+        this.lastSeen = lastSeen;
+        this.parentAddress = parentAddress;
+        this.deviceType = deviceType;
     }
 
     public XBeeAddress getAddress() {
@@ -47,6 +68,19 @@ public class XBeeNode implements Comparable<XBeeNode> {
         return localNode;
     }
 
+    public long getLastSeen() {
+        return lastSeen;
+    }
+
+    // 16-bit network address of parent, UNKNOWN_PARENT when not known or when node has no parent
+    public int getParentAddress() {
+        return parentAddress;
+    }
+
+    public int getDeviceType() {
+        return deviceType;
+    }
+
     @Override
     public String toString() {
         return address + " " + NODE_ID_PREFIX + id + (localNode ? " ." : "");
@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2012 Roman Elizarov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.avrbuddy.xbee.discover;
+
+import org.avrbuddy.util.LongHashMap;
+import org.avrbuddy.xbee.api.XBeeAddress;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Directory of nodes that is read without locks. Nodes are found by 64-bit serial number in a hash map
+ * that is copied only when nodes are added or removed. Sorted indexes by node id, parent network address,
+ * device type and last seen time answer prefix and range queries by visiting only matching nodes.
+ * When several nodes share an id, the id index points to the most recently added one and falls back
+ * to the next most recent one when it is removed.
+ * Updates are serialized, a concurrent reader may miss a node in an index while it is being updated.
+ *
+ * @author Roman Elizarov
+ */
+class XBeeNodeDirectory {
+    private long addCount; // orders entries with the same id, guarded by this
+
+    private volatile LongHashMap<Entry> bySerial = new LongHashMap<Entry>(); // not modified after publication
+    private final ConcurrentSkipListMap<String, Entry> byId = new ConcurrentSkipListMap<String, Entry>();
+    private final ConcurrentSkipListMap<IdKey, Entry> byIdAndSerial = new ConcurrentSkipListMap<IdKey, Entry>();
+    private final ConcurrentSkipListMap<Key, Entry> byParent = new ConcurrentSkipListMap<Key, Entry>();
+    private final ConcurrentSkipListMap<Key, Entry> byDeviceType = new ConcurrentSkipListMap<Key, Entry>();
+    private final ConcurrentSkipListMap<Key, Entry> byLastSeen = new ConcurrentSkipListMap<Key, Entry>();
+
+    XBeeNode get(long serial) {
+        Entry entry = bySerial.get(serial);
+        return entry == null ? null : entry.node;
+    }
+
+    XBeeNode get(XBeeAddress address) {
+        return get(address.getSerialNumber());
+    }
+
+    // the most recently added node with a given id
+    XBeeNode getById(String id) {
+        Entry entry = byId.get(id);
+        return entry == null ? null : entry.node;
+    }
+
+    int size() {
+        return bySerial.size();
+    }
+
+    // returns previous node with the same serial number
+    synchronized XBeeNode put(XBeeNode node) {
+        long serial = node.getAddress().getSerialNumber();
+        Entry entry = bySerial.get(serial);
+        if (entry == null) {
+            LongHashMap<Entry> bySerial = this.bySerial.clone();
+            bySerial.put(serial, entry = new Entry(node));
+            this.bySerial = bySerial;
+            addToIndexes(entry, node);
+            return null;
+        }
+        XBeeNode old = entry.node;
+        removeFromIndexes(entry, old);
+        entry.node = node;
+        addToIndexes(entry, node);
+        return old;
+    }
+
+    synchronized void putAll(Collection<XBeeNode> nodes) {
+        LongHashMap<Entry> bySerial = this.bySerial.clone();
+        for (XBeeNode node : nodes) {
+            long serial = node.getAddress().getSerialNumber();
+            Entry entry = bySerial.get(serial);
+            if (entry == null)
+                bySerial.put(serial, entry = new Entry(node));
+            else
+                removeFromIndexes(entry, entry.node);
+            entry.node = node;
+            addToIndexes(entry, node);
+        }
+        this.bySerial = bySerial;
+    }
+
+    synchronized XBeeNode remove(long serial) {
+        Entry entry = bySerial.get(serial);
+        if (entry == null)
+            return null;
+        LongHashMap<Entry> bySerial = this.bySerial.clone();
+        bySerial.remove(serial);
+        this.bySerial = bySerial;
+        removeFromIndexes(entry, entry.node);
+        return entry.node;
+    }
+
+    // ordered by id, only the most recently added node is listed for each id
+    Iterable<XBeeNode> getNodes() {
+        return new Nodes(byId.values());
+    }
+
+    Iterable<XBeeNode> getNodesByIdPrefix(String prefix) {
+        return new Nodes(byId.subMap(prefix, true, prefix + Character.MAX_VALUE, false).values());
+    }
+
+    Iterable<XBeeNode> getNodesByParent(int parentAddress) {
+        return new Nodes(range(byParent, parentAddress, parentAddress).values());
+    }
+
+    Iterable<XBeeNode> getNodesByDeviceType(int deviceType) {
+        return new Nodes(range(byDeviceType, deviceType, deviceType).values());
+    }
+
+    // ordered by last seen time
+    Iterable<XBeeNode> getNodesSeenSince(long time) {
+        return new Nodes(range(byLastSeen, time, Long.MAX_VALUE).values());
+    }
+
+    private static NavigableMap<Key, Entry> range(ConcurrentSkipListMap<Key, Entry> index, long from, long to) {
+        return index.subMap(new Key(from, Long.MIN_VALUE), true, new Key(to, Long.MAX_VALUE), true);
+    }
+
+    private void addToIndexes(Entry entry, XBeeNode node) {
+        long serial = node.getAddress().getSerialNumber();
+        entry.addOrder = ++addCount;
+        byId.put(node.getId(), entry);
+        byIdAndSerial.put(new IdKey(node.getId(), serial), entry);
+        byParent.put(new Key(node.getParentAddress(), serial), entry);
+        byDeviceType.put(new Key(node.getDeviceType(), serial), entry);
+        byLastSeen.put(new Key(node.getLastSeen(), serial), entry);
+    }
+
+    private void removeFromIndexes(Entry entry, XBeeNode node) {
+        long serial = node.getAddress().getSerialNumber();
+        String id = node.getId();
+        byIdAndSerial.remove(new IdKey(id, serial));
+        if (byId.remove(id, entry)) {
+            // restore the most recently added of the remaining nodes with this id
+            Entry latest = null;
+            for (Entry other : byIdAndSerial.subMap(
+                    new IdKey(id, Long.MIN_VALUE), true, new IdKey(id, Long.MAX_VALUE), true).values())
+                if (latest == null || other.addOrder > latest.addOrder)
+                    latest = other;
+            if (latest != null)
+                byId.put(id, latest);
+        }
+        byParent.remove(new Key(node.getParentAddress(), serial));
+        byDeviceType.remove(new Key(node.getDeviceType(), serial));
+        byLastSeen.remove(new Key(node.getLastSeen(), serial));
+    }
+
+    private static class Entry {
+        volatile XBeeNode node;
+        long addOrder; // guarded by directory
+
+        Entry(XBeeNode node) {
+            this.node = node;
+        }
+    }
+
+    // orders by indexed value, then by serial number
+    private static class Key implements Comparable<Key> {
+        final long value;
+        final long serial;
+
+        Key(long value, long serial) {
+            this.value = value;
+            this.serial = serial;
+        }
+
+        public int compareTo(Key o) {
+            if (value != o.value)
+                return value < o.value ? -1 : 1;
+            return serial < o.serial ? -1 : serial > o.serial ? 1 : 0;
+        }
+    }
+
+    // orders by id, then by serial number
+    private static class IdKey implements Comparable<IdKey> {
+        final String id;
+        final long serial;
+
+        IdKey(String id, long serial) {
+            this.id = id;
+            this.serial = serial;
+        }
+
+        public int compareTo(IdKey o) {
+            int i = id.compareTo(o.id);
+            if (i != 0)
+                return i;
+            return serial < o.serial ? -1 : serial > o.serial ? 1 : 0;
+        }
+    }
+
+    // view of index entries as nodes
+    private static class Nodes implements Iterable<XBeeNode> {
+        private final Collection<Entry> entries;
+
+        Nodes(Collection<Entry> entries) {
+            this.entries = entries;
+        }
+
+        public Iterator<XBeeNode> iterator() {
+            final Iterator<Entry> it = entries.iterator();
+            return new Iterator<XBeeNode>() {
+                public boolean hasNext() {
+                    return it.hasNext();
+                }
+
+                public XBeeNode next() {
+                    return it.next().node;
+                }
+
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+    }
+}
@@ -19,14 +19,20 @@ package org.avrbuddy.xbee.discover;
 
 import org.avrbuddy.hex.HexUtil;
 import org.avrbuddy.log.Log;
+import org.avrbuddy.log.LoggedThread;
 import org.avrbuddy.xbee.api.*;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InterruptedIOException;
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -42,20 +48,69 @@ public class XBeeNodeDiscovery {
     private static final int MAX_DISCOVERY_TIMEOUT = 0xff;
     private static final long DISCOVERY_TIMEOUT_UNIT = 100L;
 
+    private static final long SEEN_RESOLUTION = 1000L; // last seen time of a node is updated when it changes by a second
+    private static final long LOOKUP_INTERVAL = 60000L; // unknown node that failed to respond is not looked up again for a minute
+    private static final int MAX_FAILURES = 3; // in a row before a node is removed, sleeping end devices miss some
+
+    private static final double RESPONSE_QUANTILE = 0.99; // of node discovery latency that is used to pick timeouts
+    private static final long MIN_QUIET_TIME = 100L;
+    private static final long MAX_QUIET_TIME = 500L;
+
+    private static final Object LOCAL_NODE_KEY = new Object();
+    private static final long BATCH_DELAY = 20L;
+
+    // -DnodeDirectory=<file> keeps known nodes between runs in a given file (~/.xtools/nodes by default), "none" to turn off
+    public static final String DIRECTORY_PROPERTY = "nodeDirectory";
+
     private final XBeeConnection conn;
+    private final XBeeNodeStore store;
 
     private XBeeNode localNode;
-    private final Map<String, XBeeNode> nodeById = new HashMap<String, XBeeNode>();
-    private final Map<XBeeAddress, XBeeNode> nodeByAddress = new HashMap<XBeeAddress, XBeeNode>();
+    private final XBeeNodeDirectory directory = new XBeeNodeDirectory();
+    private final Set<XBeeAddress> verified = new HashSet<XBeeAddress>(); // confirmed by the network since start
+    private final Map<XBeeAddress, Long> lookupTime = new HashMap<XBeeAddress, Long>(); // of unknown nodes
+    private final Map<XBeeAddress, Integer> failures = new ConcurrentHashMap<XBeeAddress, Integer>(); // to respond
+    private final XBeeNodeLatency latency = new XBeeNodeLatency();
+    private final Map<Object, Flight> flights = new HashMap<Object, Flight>(); // by address or LOCAL_NODE_KEY
+    private IdBatch runningBatch; // discovery of nodes by ids that is in progress
+    private IdBatch nextBatch; // discovery of nodes by ids that waits for the running one to complete
+    private int discoveryTimeout = -1; // last NT value that was set
+    private Revalidator revalidator;
 
     public XBeeNodeDiscovery(XBeeConnection conn) {
         this.conn = conn;
+        store = openStore();
+        if (store != null) {
+            // warm start, nodes from previous runs are used right away and revalidated in background when used
+            directory.putAll(store.getNodes());
+            localNode = store.getLocalNode(conn.toString());
+            if (localNode != null)
+                directory.put(localNode);
+            for (int sample : store.getLatencies())
+                latency.record(sample);
+        }
+        // directory is kept current from all traffic, not only from explicit discovery
+        conn.addListener(XBeeNodeDescriptionContainer.class, new NodeDescriptionListener());
+        conn.addListener(XBeeRxFrame.class, new RxListener());
+        conn.addListener(XBeeRemoteAtResponseFrame.class, new RemoteAtResponseListener());
+        // unicast data that does not reach a cached address counts as a failure to respond, like remote AT commands
+        conn.addUnreachableListener(new UnreachableListener());
+    }
+
+    private static XBeeNodeStore openStore() {
+        String s = System.getProperty(DIRECTORY_PROPERTY);
+        if ("none".equals(s))
+            return null;
+        File file = s != null ? new File(s) : new File(new File(System.getProperty("user.home"), ".xtools"), "nodes");
+        XBeeNodeStore store = new XBeeNodeStore(file);
+        store.load();
+        return store;
     }
 
     public void discoverAllNodes(XBeeNodeVisitor visitor) throws IOException {
         int status = Math.max(
-                discoverDestinationNode(null, visitor),
-                discoverRemoteNode(null, visitor, 0));
+                discoverDestinationNode(null, false, visitor),
+                runBatch(new IdBatch(true, visitor)));
         if (status != XBeeAtResponseFrame.STATUS_OK)
             throw new XBeeException(XBeeUtil.formatStatus(status));
     }
@@ -65,11 +120,12 @@ public class XBeeNodeDiscovery {
         XBeeNode node = getLocalNode();
         if (node != null) {
             log.info("Using local address " + node);
+            revalidateIfNeeded(node);
             return node;
         }
         log.info("Retrieving local node address");
         try {
-            node = checkStatus(discoverDestinationNode(null, null), getLocalNode());
+            node = checkStatus(discoverDestinationNodeOnce(null, true), getLocalNode());
         } catch (IOException e) {
             throw new IOException("Failed to discover local node: " + e.getMessage(), e);
         }
@@ -83,12 +139,13 @@ public class XBeeNodeDiscovery {
         XBeeNode node = getByNodeId(id);
         if (node != null) {
             log.info("Using remote address " + node);
+            revalidateIfNeeded(node);
             return node;
         }
         log.info("Discovering remote node " + XBeeNode.NODE_ID_PREFIX + id);
         int status = -1;
         for (int attempt = 0; attempt < attempts; attempt++) {
-            status = discoverRemoteNode(id, null, 0);
+            status = discoverRemoteNodeOnce(id);
             if (status == XBeeAtResponseFrame.STATUS_OK)
                 break;
         }
@@ -104,53 +161,98 @@ public class XBeeNodeDiscovery {
 
     public XBeeNode getOrDiscoverNodeByAddress(XBeeAddress address) throws IOException {
         XBeeNode node = getNodeByAddress(address);
-        if (node != null)
+        if (node != null) {
+            revalidateIfNeeded(node);
             return node;
+        }
         try {
-            return checkStatus(discoverDestinationNode(address, null), getNodeByAddress(address));
+            return checkStatus(discoverDestinationNodeOnce(address, true), getNodeByAddress(address));
         } catch (IOException e) {
             throw new IOException("Failed to discover node " + address + ": " + e.getMessage(), e);
         }
     }
 
-    public synchronized XBeeNode getNodeByAddress(XBeeAddress address) {
-        return nodeByAddress.get(address);
+    public XBeeNode getNodeByAddress(XBeeAddress address) {
+        return directory.get(address);
     }
 
-    public void list(XBeeNodeVisitor visitor) {
-        ArrayList<XBeeNode> nodes;
-        synchronized (this) {
-            nodes = new ArrayList<XBeeNode>(nodeById.values());
+    // never returns null (will throw IOException), discovers all nodes if there are no matching ones
+    public XBeeNode getOrDiscoverByNodeIdPrefix(String prefix) throws IOException {
+        XBeeNode node = getSingleNode(prefix, directory.getNodesByIdPrefix(prefix));
+        if (node != null) {
+            log.info("Using remote address " + node);
+            revalidateIfNeeded(node);
+            return node;
         }
-        Collections.sort(nodes);
-        for (XBeeNode node : nodes)
-            visitor.visitNode(node);
+        log.info("Discovering remote nodes " + XBeeNode.NODE_ID_PREFIX + prefix + XBeeNode.NODE_ID_WILDCARD);
+        int status = runBatch(new IdBatch(true, null));
+        node = getSingleNode(prefix, directory.getNodesByIdPrefix(prefix));
+        if (node == null && status == XBeeAtResponseFrame.STATUS_OK)
+            status = XBeeUtil.STATUS_TIMEOUT;
+        try {
+            return checkStatus(status, node);
+        } catch (IOException e) {
+            throw new IOException("Failed to discover node " + XBeeNode.NODE_ID_PREFIX + prefix + XBeeNode.NODE_ID_WILDCARD +
+                    ": " + e.getMessage(), e);
+        }
+    }
+
+    // all listings visit nodes straight from directory indexes, without copying them
+    public void list(XBeeNodeVisitor visitor) {
+        visit(directory.getNodes(), visitor);
+    }
+
+    public void listByIdPrefix(String prefix, XBeeNodeVisitor visitor) {
+        visit(directory.getNodesByIdPrefix(prefix), visitor);
+    }
+
+    public void listByParent(int parentAddress, XBeeNodeVisitor visitor) {
+        visit(directory.getNodesByParent(parentAddress), visitor);
+    }
+
+    public void listByDeviceType(int deviceType, XBeeNodeVisitor visitor) {
+        visit(directory.getNodesByDeviceType(deviceType), visitor);
+    }
+
+    public void listSeenSince(long time, XBeeNodeVisitor visitor) {
+        visit(directory.getNodesSeenSince(time), visitor);
     }
 
     // -------------- PRIVATE HELPER METHODS --------------
 
-    // destination == null to discover local node
-    private int discoverDestinationNode(XBeeAddress destination, XBeeNodeVisitor visitor) throws IOException {
+    // destination == null to discover local node, cached == false to make sure that node responds
+    private int discoverDestinationNode(XBeeAddress destination, boolean cached, XBeeNodeVisitor visitor)
+            throws IOException
+    {
         String desc = destination == null ? "local" : "remote";
-        log.fine("Discover " + desc + " node information");
-        XBeeFrameWithId[] responses = conn.sendFramesWithIdSeriallyAndWait(XBeeConnection.DEFAULT_TIMEOUT,
-                XBeeAtFrame.newBuilder(destination).setAtCommand("SH"),
-                XBeeAtFrame.newBuilder(destination).setAtCommand("SL"),
-                XBeeAtFrame.newBuilder(destination).setAtCommand("MY"),
-                XBeeAtFrame.newBuilder(destination).setAtCommand("NI"));
-        int status = XBeeUtil.getStatus(responses);
-        if (status != XBeeAtResponseFrame.STATUS_OK) {
-            log.log(Level.SEVERE, "Failed to retrieve " + desc + " information: " + XBeeUtil.formatStatus(status));
-            return status;
+        byte[][] values = cached ? conn.getCachedAtValues(destination, "SH", "SL", "MY", "NI") : null;
+        int status = XBeeAtResponseFrame.STATUS_OK;
+        if (values == null) {
+            log.fine("Discover " + desc + " node information");
+            XBeeFrameWithId[] responses = conn.sendFramesWithIdSeriallyAndWait(XBeeConnection.DEFAULT_TIMEOUT,
+                    XBeeAtFrame.newBuilder(destination).setAtCommand("SH"),
+                    XBeeAtFrame.newBuilder(destination).setAtCommand("SL"),
+                    XBeeAtFrame.newBuilder(destination).setAtCommand("MY"),
+                    XBeeAtFrame.newBuilder(destination).setAtCommand("NI"));
+            status = XBeeUtil.getStatus(responses);
+            if (status != XBeeAtResponseFrame.STATUS_OK) {
+                log.log(Level.SEVERE, "Failed to retrieve " + desc + " information: " + XBeeUtil.formatStatus(status));
+                return status;
+            }
+            values = new byte[responses.length][];
+            for (int i = 0; i < responses.length; i++)
+                values[i] = responses[i].getData();
         }
         byte[] localNodeAddressBytes = new byte[10];
-        System.arraycopy(responses[0].getData(), 0, localNodeAddressBytes, 0, 4);
-        System.arraycopy(responses[1].getData(), 0, localNodeAddressBytes, 4, 4);
-        System.arraycopy(responses[2].getData(), 0, localNodeAddressBytes, 8, 2);
-        String localNodeId = HexUtil.formatAscii(responses[3].getData());
-        XBeeNode node = new XBeeNode(XBeeAddress.valueOf(localNodeAddressBytes, 0), localNodeId, true);
+        System.arraycopy(values[0], 0, localNodeAddressBytes, 0, 4);
+        System.arraycopy(values[1], 0, localNodeAddressBytes, 4, 4);
+        System.arraycopy(values[2], 0, localNodeAddressBytes, 8, 2);
+        String localNodeId = HexUtil.formatAscii(values[3]);
+        XBeeNode node = new XBeeNode(XBeeAddress.valueOf(localNodeAddressBytes, 0), localNodeId, destination == null);
         if (destination == null)
             synchronized (this) {
+                if (localNode != null && !localNode.getAddress().equals(node.getAddress()))
+                    log.warning("Local node has changed from " + localNode + " to " + node);
                 localNode = node;
             }
         putNode(node);
@@ -159,62 +261,314 @@ public class XBeeNodeDiscovery {
         return status;
     }
 
-    // id=null to discover all remote nodes
-    // timeout=0 to use min possible timeout
-    private int discoverRemoteNode(String id, XBeeNodeVisitor visitor, long timeout) throws IOException {
-        log.fine("Discover remote " + (id == null ? "nodes" : "node " + id));
-        long discoveryTimeout = Math.max(MIN_DISCOVERY_TIMEOUT,
-                Math.min(MAX_DISCOVERY_TIMEOUT, timeout / DISCOVERY_TIMEOUT_UNIT));
-        XBeeFrameWithId[] responses =
-                conn.sendFramesWithIdAndWaitResponses(XBeeConnection.DEFAULT_TIMEOUT, conn.buildFramesWithId(
-                        XBeeAtFrame.newBuilder().setAtCommand("NT").setData((byte) discoveryTimeout)));
-        int status = XBeeUtil.getStatus(responses);
+    // concurrent discoveries of the same node share a single exchange, destination == null for local node
+    private int discoverDestinationNodeOnce(XBeeAddress destination, boolean cached) throws IOException {
+        Object key = destination == null ? LOCAL_NODE_KEY : destination;
+        Flight flight;
+        boolean leader = false;
+        synchronized (this) {
+            flight = flights.get(key);
+            if (flight == null) {
+                flights.put(key, flight = new Flight());
+                leader = true;
+            }
+        }
+        if (!leader)
+            return flight.await();
+        int status = XBeeUtil.STATUS_TIMEOUT;
+        IOException failure = null;
+        try {
+            return status = discoverDestinationNode(destination, cached, null);
+        } catch (IOException e) {
+            throw failure = e;
+        } finally {
+            synchronized (this) {
+                flights.remove(key);
+            }
+            flight.complete(status, failure);
+        }
+    }
+
+    // discoveries of nodes by id are performed one at a time, concurrent requests for the same id share
+    // a single discovery and concurrent requests for different ids are batched into discovery of all nodes
+    private int discoverRemoteNodeOnce(String id) throws IOException {
+        IdBatch batch;
+        boolean leader = false;
+        synchronized (this) {
+            if (directory.getById(id) != null)
+                return XBeeAtResponseFrame.STATUS_OK; // was discovered concurrently
+            if (runningBatch != null && runningBatch.join(id)) {
+                batch = runningBatch;
+            } else {
+                if (nextBatch == null) {
+                    nextBatch = new IdBatch(false, null);
+                    leader = true;
+                }
+                batch = nextBatch;
+                batch.join(id);
+            }
+        }
+        if (leader)
+            try {
+                Thread.sleep(BATCH_DELAY); // let concurrent requests (and retries) join the batch
+            } catch (InterruptedException e) {
+                throw abandon(batch, e);
+            }
+        int status = leader ? runBatch(batch) : batch.await();
+        synchronized (this) {
+            if (status == XBeeAtResponseFrame.STATUS_OK && directory.getById(id) == null)
+                status = XBeeUtil.STATUS_TIMEOUT;
+        }
+        return status;
+    }
+
+    private int runBatch(IdBatch batch) throws IOException {
+        synchronized (this) {
+            try {
+                while (runningBatch != null)
+                    wait();
+            } catch (InterruptedException e) {
+                throw abandon(batch, e);
+            }
+            if (batch == nextBatch)
+                nextBatch = null;
+            runningBatch = batch;
+            batch.start();
+        }
+        int status = XBeeUtil.STATUS_TIMEOUT;
+        IOException failure = null;
+        try {
+            return status = discoverRemoteNode(batch, 0);
+        } catch (IOException e) {
+            throw failure = e;
+        } finally {
+            synchronized (this) {
+                runningBatch = null;
+                notifyAll();
+            }
+            batch.complete(status, failure);
+        }
+    }
+
+    // batch that was not started fails, so that requests which have joined it do not wait for it forever
+    private InterruptedIOException abandon(IdBatch batch, InterruptedException e) {
+        synchronized (this) {
+            if (batch == nextBatch)
+                nextBatch = null;
+        }
+        InterruptedIOException failure = (InterruptedIOException) new InterruptedIOException().initCause(e);
+        batch.complete(XBeeUtil.STATUS_TIMEOUT, failure);
+        return failure;
+    }
+
+    // batch.getSingleId() to discover a single node, otherwise discover all remote nodes
+    // timeout=0 to use timeout that is learned from latencies of responses
+    private int discoverRemoteNode(IdBatch batch, long timeout) throws IOException {
+        String id = batch.getSingleId();
+        log.fine("Discover remote " + batch);
+        int discoveryTimeout = getDiscoveryTimeout(timeout);
+        int status = setDiscoveryTimeout(discoveryTimeout);
         if (status != XBeeAtResponseFrame.STATUS_OK) {
             log.log(Level.SEVERE, "Failed to set discovery timeout: " + XBeeUtil.formatStatus(status));
             return status;
         }
-        NodeDiscoveryListener listener = new NodeDiscoveryListener(visitor);
+        XBeeFrameWithId[] frames = conn.buildFramesWithId(
+                XBeeAtFrame.newBuilder().setAtCommand(XBeeNodeDiscoveryResponseFrame.NODE_DISCOVERY_COMMAND)
+                        .setData(id == null ? new byte[0] : HexUtil.parseAscii(id)));
+        // all known remote nodes are expected to respond to discovery of all nodes
+        NodeDiscoveryListener listener = new NodeDiscoveryListener(frames[0].getFrameId(), batch,
+                id == null ? getRemoteAddresses() : null);
         conn.addListener(XBeeNodeDescriptionContainer.class, listener);
         try {
-            long tillTime = System.currentTimeMillis() + discoveryTimeout * DISCOVERY_TIMEOUT_UNIT;
+            long ntTime = discoveryTimeout * DISCOVERY_TIMEOUT_UNIT;
             // wait for first response
-            responses = conn.sendFramesWithIdAndWaitResponses(
-                    XBeeConnection.DEFAULT_TIMEOUT + discoveryTimeout * DISCOVERY_TIMEOUT_UNIT, conn.buildFramesWithId(
-                    XBeeAtFrame.newBuilder().setAtCommand(XBeeNodeDiscoveryResponseFrame.NODE_DISCOVERY_COMMAND)
-                            .setData(id == null ? new byte[0] : HexUtil.parseAscii(id))));
+            XBeeFrameWithId[] responses = conn.sendFramesWithIdAndWaitResponses(
+                    XBeeConnection.DEFAULT_TIMEOUT + ntTime, frames);
             status = XBeeUtil.getStatus(responses);
             if (status != XBeeAtResponseFrame.STATUS_OK)
                 return status;
-            // if all nodes are discovered, wait for the end of timeout
+            // if all nodes are discovered, wait until they respond or until the end of timeout
             if (id == null) {
-                long waitTime = tillTime - System.currentTimeMillis();
-                if (waitTime > 0)
-                    try {
-                        Thread.sleep(waitTime);
-                    } catch (InterruptedException e) {
-                        throw ((InterruptedIOException) new InterruptedIOException().initCause(e));
-                    }
+                listener.awaitEnd(listener.startTime + ntTime, getQuietTime(), getResponseTimeLimit());
+                log.fine(listener.toString());
             }
         } finally {
             conn.removeListener(XBeeNodeDescriptionContainer.class, listener);
         }
+        if (id == null && store != null)
+            store.putLatencies(latency.getSamples());
+        return status;
+    }
+
+    // in units of 100 ms
+    private int getDiscoveryTimeout(long timeout) {
+        long learned = latency.getQuantile(RESPONSE_QUANTILE);
+        if (learned > 0)
+            timeout = Math.max(timeout, 2 * learned);
+        return (int) Math.max(MIN_DISCOVERY_TIMEOUT,
+                Math.min(MAX_DISCOVERY_TIMEOUT, (timeout + DISCOVERY_TIMEOUT_UNIT - 1) / DISCOVERY_TIMEOUT_UNIT));
+    }
+
+    // NT is set only when it changes
+    private int setDiscoveryTimeout(int discoveryTimeout) throws IOException {
+        synchronized (this) {
+            if (discoveryTimeout == this.discoveryTimeout)
+                return XBeeAtResponseFrame.STATUS_OK;
+        }
+        int status = XBeeUtil.getStatus(conn.sendFramesWithIdAndWaitResponses(XBeeConnection.DEFAULT_TIMEOUT,
+                conn.buildFramesWithId(XBeeAtFrame.newBuilder().setAtCommand("NT").setData((byte) discoveryTimeout))));
+        if (status == XBeeAtResponseFrame.STATUS_OK)
+            synchronized (this) {
+                this.discoveryTimeout = discoveryTimeout;
+            }
         return status;
     }
 
+    // discovery ends after this time without responses when all known nodes have responded
+    private long getQuietTime() {
+        long learned = latency.getQuantile(0.5);
+        return learned < 0 ? MAX_QUIET_TIME : Math.max(MIN_QUIET_TIME, Math.min(MAX_QUIET_TIME, learned));
+    }
+
+    // nodes very rarely respond later than this, returns -1 when not known yet
+    private long getResponseTimeLimit() {
+        long learned = latency.getQuantile(RESPONSE_QUANTILE);
+        return learned < 0 ? -1 : 2 * learned;
+    }
+
+    private static void visit(Iterable<XBeeNode> nodes, XBeeNodeVisitor visitor) {
+        for (XBeeNode node : nodes)
+            visitor.visitNode(node);
+    }
+
+    // returns null if there are no nodes
+    private static XBeeNode getSingleNode(String prefix, Iterable<XBeeNode> nodes) throws IOException {
+        Iterator<XBeeNode> it = nodes.iterator();
+        if (!it.hasNext())
+            return null;
+        XBeeNode node = it.next();
+        if (it.hasNext())
+            throw new IOException("Node " + XBeeNode.NODE_ID_PREFIX + prefix + XBeeNode.NODE_ID_WILDCARD +
+                    " is ambiguous, it matches " + node + ", " + it.next() + (it.hasNext() ? ", ..." : ""));
+        return node;
+    }
+
     private synchronized XBeeNode getLocalNode() {
         return localNode;
     }
 
-    private synchronized XBeeNode getByNodeId(String id) {
+    private Set<XBeeAddress> getRemoteAddresses() {
+        Set<XBeeAddress> result = new HashSet<XBeeAddress>();
+        for (XBeeNode node : directory.getNodesSeenSince(Long.MIN_VALUE))
+            if (!node.isLocalNode())
+                result.add(node.getAddress());
+        return result;
+    }
+
+    private XBeeNode getByNodeId(String id) {
         if (id == null)
             throw new NullPointerException();
-        return nodeById.get(id);
+        return directory.getById(id);
     }
 
-    private synchronized void putNode(XBeeNode node) {
-        nodeById.put(node.getId(), node);
-        nodeByAddress.put(node.getAddress(), node);
-        notifyAll();
+    // node was seen in the network
+    private void putNode(XBeeNode node) {
+        synchronized (this) {
+            XBeeNode old = directory.get(node.getAddress());
+            if (old != null && node.getDeviceType() == XBeeNode.UNKNOWN_DEVICE_TYPE)
+                node = new XBeeNode(node.getAddress(), node.getId(), node.isLocalNode(), node.getLastSeen(),
+                        old.getParentAddress(), old.getDeviceType());
+            directory.put(node);
+            verified.add(node.getAddress());
+            lookupTime.remove(node.getAddress());
+            failures.remove(node.getAddress());
+        }
+        if (store != null)
+            store.putNode(node, conn.toString());
+    }
+
+    // node was heard from at a given address, its network address could have changed since it was last seen
+    private void nodeSeen(XBeeAddress address, boolean lookup) {
+        // fast path without lock for nodes that were seen recently at the same address
+        XBeeNode old = directory.get(address);
+        long time = System.currentTimeMillis();
+        if (old != null && old.getAddress().getNetworkAddress() == address.getNetworkAddress() &&
+                time - old.getLastSeen() < SEEN_RESOLUTION && !failures.containsKey(address))
+            return;
+        XBeeNode node;
+        boolean moved;
+        synchronized (this) {
+            old = directory.get(address);
+            if (old == null) {
+                if (lookup)
+                    lookupUnknown(address, time);
+                return;
+            }
+            failures.remove(address);
+            moved = old.getAddress().getNetworkAddress() != address.getNetworkAddress();
+            if (!moved && time - old.getLastSeen() < SEEN_RESOLUTION)
+                return;
+            node = new XBeeNode(address, old.getId(), old.isLocalNode(), time,
+                    old.getParentAddress(), old.getDeviceType());
+            directory.put(node);
+            verified.add(address);
+            if (old == localNode)
+                localNode = node;
+        }
+        if (moved) {
+            log.info("Node " + XBeeNode.NODE_ID_PREFIX + node.getId() + " has changed address to " + address);
+            // node has rejoined network, so its parameters may have been changed, too
+            conn.invalidateAtCache(node.isLocalNode() ? null : address);
+        }
+        if (store != null)
+            store.putNode(node, conn.toString());
+    }
+
+    // learns node id of an unknown node in background, invoked under lock
+    private void lookupUnknown(XBeeAddress address, long time) {
+        if (address == XBeeAddress.BROADCAST || address.getSerialNumber() == 0)
+            return;
+        Long last = lookupTime.get(address);
+        if (last != null && time - last < LOOKUP_INTERVAL)
+            return;
+        lookupTime.put(address, time);
+        revalidate(address);
+    }
+
+    // node does not respond at its address, it is removed when this happens a few times in a row
+    private void nodeFailed(XBeeAddress address) {
+        XBeeNode old;
+        synchronized (this) {
+            if (directory.get(address) == null)
+                return;
+            Integer count = failures.get(address);
+            count = count == null ? 1 : count + 1;
+            if (count < MAX_FAILURES) {
+                failures.put(address, count);
+                log.fine("Node " + address + " does not respond, failure " + count + " of " + MAX_FAILURES);
+                return;
+            }
+            failures.remove(address);
+            old = directory.remove(address.getSerialNumber());
+            verified.remove(address);
+        }
+        conn.invalidateAtCache(address);
+        log.info("Removed node " + old + ", because it did not respond " + MAX_FAILURES + " times in a row");
+        if (store != null)
+            store.removeNode(address);
+    }
+
+    private synchronized void revalidateIfNeeded(XBeeNode node) {
+        if (!verified.contains(node.getAddress()))
+            revalidate(node.getAddress());
+    }
+
+    private synchronized void revalidate(XBeeAddress address) {
+        if (revalidator == null) {
+            revalidator = new Revalidator();
+            revalidator.start();
+        }
+        revalidator.add(address);
     }
 
     private XBeeNode checkStatus(int status, XBeeNode result) throws IOException {
@@ -225,22 +579,255 @@ public class XBeeNodeDiscovery {
         return result;
     }
 
-    private class NodeDiscoveryListener implements XBeeFrameListener<XBeeNodeDescriptionContainer> {
-        private final XBeeNodeVisitor visitor;
+    // revalidates known nodes and looks up unknown ones
+    private class Revalidator extends LoggedThread {
+        private final BlockingQueue<XBeeAddress> queue = new LinkedBlockingQueue<XBeeAddress>();
+        private final Set<XBeeAddress> queued = new HashSet<XBeeAddress>();
 
-        public NodeDiscoveryListener(XBeeNodeVisitor visitor) {
-            this.visitor = visitor;
+        Revalidator() {
+            setDaemon(true);
+        }
+
+        void add(XBeeAddress address) {
+            synchronized (queued) {
+                if (!queued.add(address))
+                    return;
+            }
+            queue.add(address);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    XBeeAddress address = queue.take();
+                    try {
+                        revalidate(address);
+                    } catch (IOException e) {
+                        log.log(Level.WARNING, "Failed to revalidate " + address, e);
+                    } finally {
+                        synchronized (queued) {
+                            queued.remove(address);
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                // just quit
+            }
+        }
+
+        private void revalidate(XBeeAddress address) throws IOException {
+            XBeeNode local = getLocalNode();
+            boolean isLocal = local != null && local.getAddress().equals(address);
+            log.fine("Revalidating " + (isLocal ? local : address));
+            int status = discoverDestinationNodeOnce(isLocal ? null : address, false);
+            // TX failure is counted when its response is received
+            if (!isLocal && status == XBeeUtil.STATUS_TIMEOUT)
+                nodeFailed(address);
         }
+    }
 
+    // node identification frames and node discovery responses, including late responses after discovery has ended
+    private class NodeDescriptionListener implements XBeeFrameListener<XBeeNodeDescriptionContainer> {
         public void frameReceived(XBeeNodeDescriptionContainer frame) {
             XBeeNodeDescription nd = frame.getDescription();
-            XBeeNode node = new XBeeNode(nd.getAddress(), nd.getNodeId(), false);
-            putNode(node);
-            if (visitor != null)
-                visitor.visitNode(node);
+            putNode(new XBeeNode(nd.getAddress(), nd.getNodeId(), false, System.currentTimeMillis(),
+                    nd.getParentNetworkAddress() & 0xffff, nd.getDeviceType()));
+        }
+
+        @Override
+        public void connectionClosed() {}
+    }
+
+    private class RxListener implements XBeeFrameListener<XBeeRxFrame> {
+        public void frameReceived(XBeeRxFrame frame) {
+            nodeSeen(frame.getSource(), true);
+        }
+
+        @Override
+        public void connectionClosed() {}
+    }
+
+    private class RemoteAtResponseListener implements XBeeFrameListener<XBeeRemoteAtResponseFrame> {
+        public void frameReceived(XBeeRemoteAtResponseFrame frame) {
+            switch (frame.getStatus()) {
+            case XBeeAtResponseFrame.STATUS_OK:
+                // unknown nodes are not looked up here, their responses are handled by whoever has asked
+                nodeSeen(frame.getSource(), false);
+                break;
+            case XBeeAtResponseFrame.STATUS_TX_FAILURE:
+                nodeFailed(frame.getSource());
+                break;
+            }
+        }
+
+        @Override
+        public void connectionClosed() {
+            Revalidator revalidator;
+            synchronized (XBeeNodeDiscovery.this) {
+                revalidator = XBeeNodeDiscovery.this.revalidator;
+            }
+            if (revalidator != null)
+                revalidator.interrupt();
+        }
+    }
+
+    private class UnreachableListener implements XBeeFrameListener<XBeeTxFrame> {
+        public void frameReceived(XBeeTxFrame frame) {
+            nodeFailed(frame.getDestination());
         }
 
         @Override
         public void connectionClosed() {}
     }
+
+    // result of discovery that is shared by concurrent requests
+    private static class Flight {
+        private boolean done;
+        private int status;
+        private IOException failure;
+
+        synchronized void complete(int status, IOException failure) {
+            done = true;
+            this.status = status;
+            this.failure = failure;
+            notifyAll();
+        }
+
+        synchronized int await() throws IOException {
+            try {
+                while (!done)
+                    wait();
+            } catch (InterruptedException e) {
+                throw ((InterruptedIOException) new InterruptedIOException().initCause(e));
+            }
+            if (failure != null)
+                throw new IOException(failure.getMessage(), failure);
+            return status;
+        }
+    }
+
+    // discovery of nodes by ids or of all nodes. Discovery of all nodes can be joined by other ids while it runs
+    private static class IdBatch extends Flight {
+        final XBeeNodeVisitor visitor;
+
+        private final boolean all; // discovery of all nodes was requested
+        private final Set<String> ids = new HashSet<String>();
+        private final Set<String> wanted = new HashSet<String>(); // ids that have not responded yet
+        private boolean started;
+        private String singleId; // when a single node is discovered
+
+        IdBatch(boolean all, XBeeNodeVisitor visitor) {
+            this.all = all;
+            this.visitor = visitor;
+        }
+
+        synchronized boolean join(String id) {
+            if (started && singleId != null && !singleId.equals(id))
+                return false;
+            if (ids.add(id))
+                wanted.add(id);
+            return true;
+        }
+
+        synchronized void start() {
+            started = true;
+            if (!all && ids.size() == 1)
+                singleId = ids.iterator().next();
+        }
+
+        synchronized String getSingleId() {
+            return singleId;
+        }
+
+        synchronized void found(String id) {
+            wanted.remove(id);
+        }
+
+        // discovery of all nodes that was explicitly requested is never ended early
+        synchronized boolean isAllFound() {
+            return !all && wanted.isEmpty();
+        }
+
+        @Override
+        public synchronized String toString() {
+            return singleId != null ? "node " + singleId : "nodes" + (ids.isEmpty() ? "" : " for " + ids);
+        }
+    }
+
+    // visits nodes as they respond to a given node discovery, registered after NodeDescriptionListener
+    private class NodeDiscoveryListener implements XBeeFrameListener<XBeeNodeDescriptionContainer> {
+        final long startTime = System.currentTimeMillis();
+
+        private final byte frameId;
+        private final IdBatch batch;
+        private final Set<XBeeAddress> expected; // known nodes that have not responded yet, null when not waiting
+        private final boolean known; // there were known nodes to wait for
+
+        // guarded by this
+        private int responses;
+        private long lastTime = startTime; // of last response
+        private boolean closed;
+
+        public NodeDiscoveryListener(byte frameId, IdBatch batch, Set<XBeeAddress> expected) {
+            this.frameId = frameId;
+            this.batch = batch;
+            this.expected = expected;
+            known = expected != null && !expected.isEmpty();
+        }
+
+        public void frameReceived(XBeeNodeDescriptionContainer frame) {
+            XBeeNodeDescription nd = frame.getDescription();
+            if (frame instanceof XBeeNodeDiscoveryResponseFrame) {
+                if (((XBeeNodeDiscoveryResponseFrame) frame).getFrameId() != frameId)
+                    return; // late response to another discovery
+                long time = System.currentTimeMillis();
+                latency.record(time - startTime);
+                batch.found(nd.getNodeId());
+                synchronized (this) {
+                    responses++;
+                    lastTime = time;
+                    if (expected != null)
+                        expected.remove(nd.getAddress());
+                    notifyAll();
+                }
+            }
+            if (batch.visitor != null) {
+                XBeeNode node = getNodeByAddress(nd.getAddress());
+                batch.visitor.visitNode(node != null ? node : new XBeeNode(nd.getAddress(), nd.getNodeId(), false));
+            }
+        }
+
+        @Override
+        public synchronized void connectionClosed() {
+            closed = true;
+            notifyAll();
+        }
+
+        // ends at deadline, when all nodes of a batch have responded, after quiet time when all known nodes
+        // have responded, or after quiet time past the limit (when known) on response time
+        synchronized void awaitEnd(long deadline, long quietTime, long limit) throws InterruptedIOException {
+            while (!closed && !batch.isAllFound()) {
+                long now = System.currentTimeMillis();
+                long endTime = deadline;
+                if (known && expected.isEmpty())
+                    endTime = Math.min(endTime, lastTime + quietTime);
+                if (limit >= 0)
+                    endTime = Math.min(endTime, Math.max(startTime + limit, lastTime) + quietTime);
+                if (now >= endTime)
+                    return;
+                try {
+                    wait(endTime - now);
+                } catch (InterruptedException e) {
+                    throw ((InterruptedIOException) new InterruptedIOException().initCause(e));
+                }
+            }
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "Discovered " + responses + " nodes in " + (System.currentTimeMillis() - startTime) + " ms" +
+                    (expected.isEmpty() ? "" : ", " + expected.size() + " known nodes have not responded");
+        }
+    }
 }
@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2012 Roman Elizarov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.avrbuddy.xbee.discover;
+
+import java.util.Arrays;
+
+/**
+ * Distribution of node discovery response latencies in ms over a window of recent responses.
+ *
+ * @author Roman Elizarov
+ */
+class XBeeNodeLatency {
+    static final int MAX_SAMPLES = 64;
+
+    private static final int MIN_SAMPLES = 8; // no estimates until this many responses were seen
+
+    private final int[] samples = new int[MAX_SAMPLES];
+    private int count; // total number of recorded samples
+
+    synchronized void record(long latency) {
+        samples[count++ % MAX_SAMPLES] = (int) Math.min(Integer.MAX_VALUE, Math.max(0, latency));
+    }
+
+    // the most recent samples, oldest first
+    synchronized int[] getSamples() {
+        int n = Math.min(count, MAX_SAMPLES);
+        int[] result = new int[n];
+        for (int i = 0; i < n; i++)
+            result[i] = samples[(count - n + i) % MAX_SAMPLES];
+        return result;
+    }
+
+    // returns -1 when there are not enough samples
+    synchronized long getQuantile(double q) {
+        int n = Math.min(count, MAX_SAMPLES);
+        if (n < MIN_SAMPLES)
+            return -1;
+        int[] sorted = Arrays.copyOf(samples, n);
+        Arrays.sort(sorted);
+        return sorted[Math.min(n - 1, (int) (q * n))];
+    }
+}
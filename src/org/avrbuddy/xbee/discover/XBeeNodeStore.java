@@ -0,0 +1,398 @@
+/*
+ * Copyright (C) 2012 Roman Elizarov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.avrbuddy.xbee.discover;
+
+import org.avrbuddy.log.Log;
+import org.avrbuddy.log.LoggedThread;
+import org.avrbuddy.xbee.api.XBeeAddress;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent directory of nodes in a file. Records are appended as nodes are discovered or removed
+ * and as node discovery latencies of the network change. Appends are written by a background thread that runs
+ * while there are records to write, so that threads which dispatch received frames never wait for the file.
+ * Each record is protected by a checksum, so a file that was torn by a crash is loaded up to
+ * its last complete record. File is compacted on load when it grows much larger than its live records.
+ *
+ * @author Roman Elizarov
+ */
+class XBeeNodeStore {
+    private static final Logger log = Log.getLogger(XBeeNodeStore.class);
+
+    private static final int MAGIC = 0x58544e44; // "XTND"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+
+    private static final byte NODE = 1;
+    private static final byte REMOVE = 2;
+    private static final byte LATENCY = 3;
+
+    private static final int FLAG_LOCAL = 1;
+
+    private static final int MAX_RECORD_LENGTH = 1024;
+    private static final int COMPACT_SLACK = 64;
+    private static final long LAST_SEEN_RESOLUTION = 60000L; // last seen time is persisted when it changes by a minute
+
+    private final File file;
+    private final Map<XBeeAddress, XBeeNode> nodes = new HashMap<XBeeAddress, XBeeNode>(); // remote nodes
+    private final Map<String, XBeeNode> localNodes = new HashMap<String, XBeeNode>(); // by port
+    private int[] latencies = new int[0]; // recent node discovery latencies
+    private int records; // in file
+    private boolean failed; // stop writing after failure
+    private final List<byte[]> pending = new ArrayList<byte[]>(); // framed records that are not written yet
+    private Writer writer; // while there are pending records
+
+    XBeeNodeStore(File file) {
+        this.file = file;
+    }
+
+    synchronized void load() {
+        boolean damaged = false;
+        if (file.exists()) {
+            try {
+                damaged = !read();
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Failed to read node directory " + file, e);
+                damaged = true;
+            }
+        }
+        if (damaged || !file.exists() || records > 2 * (nodes.size() + localNodes.size() + 1) + COMPACT_SLACK)
+            compact();
+        log.fine("Loaded " + nodes.size() + " nodes from " + file);
+    }
+
+    synchronized List<XBeeNode> getNodes() {
+        return new ArrayList<XBeeNode>(nodes.values());
+    }
+
+    synchronized XBeeNode getLocalNode(String port) {
+        return localNodes.get(port);
+    }
+
+    // port is used for local node only
+    synchronized void putNode(XBeeNode node, String port) {
+        XBeeNode old = node.isLocalNode() ? localNodes.get(port) : nodes.get(node.getAddress());
+        if (old != null && isSame(old, node) && node.getLastSeen() - old.getLastSeen() < LAST_SEEN_RESOLUTION)
+            return;
+        if (node.isLocalNode())
+            localNodes.put(port, node);
+        else
+            nodes.put(node.getAddress(), node);
+        append(encodeNode(node, port));
+    }
+
+    synchronized void removeNode(XBeeAddress address) {
+        if (nodes.remove(address) == null)
+            return;
+        append(encodeRemove(address));
+    }
+
+    synchronized int[] getLatencies() {
+        return latencies.clone();
+    }
+
+    synchronized void putLatencies(int[] latencies) {
+        if (Arrays.equals(this.latencies, latencies))
+            return;
+        this.latencies = latencies.clone();
+        append(encodeLatencies());
+    }
+
+    synchronized void awaitWritten() throws InterruptedException {
+        while (writer != null)
+            wait();
+    }
+
+    // returns false if file has damaged records at the end
+    private boolean read() throws IOException {
+        byte[] bytes;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            if (raf.length() > Integer.MAX_VALUE)
+                throw new IOException("File is too large");
+            bytes = new byte[(int) raf.length()];
+            raf.readFully(bytes);
+        } finally {
+            raf.close();
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        if (bytes.length < HEADER_SIZE || in.readInt() != MAGIC) {
+            log.warning("File " + file + " is not a node directory, it will be overwritten");
+            return false;
+        }
+        int version = in.readInt();
+        if (version != VERSION) {
+            log.warning("Node directory " + file + " has unsupported version " + version + ", it will be overwritten");
+            return false;
+        }
+        int pos = HEADER_SIZE;
+        CRC32 crc = new CRC32();
+        while (pos < bytes.length) {
+            if (bytes.length - pos < 8)
+                return damaged(pos);
+            int length = in.readInt();
+            if (length <= 0 || length > MAX_RECORD_LENGTH || bytes.length - pos - 8 < length)
+                return damaged(pos);
+            crc.reset();
+            crc.update(bytes, pos + 4, length);
+            in.skipBytes(length);
+            if (in.readInt() != (int) crc.getValue())
+                return damaged(pos);
+            decode(new DataInputStream(new ByteArrayInputStream(bytes, pos + 4, length)));
+            records++;
+            pos += length + 8;
+        }
+        return true;
+    }
+
+    private boolean damaged(int pos) {
+        log.warning("Node directory " + file + " is damaged at offset " + pos + ", the rest is dropped");
+        return false;
+    }
+
+    private void decode(DataInputStream in) throws IOException {
+        switch (in.readByte()) {
+        case NODE:
+            byte[] address = new byte[XBeeAddress.ADDRESS_LENGTH];
+            in.readFully(address);
+            int flags = in.readByte();
+            long lastSeen = in.readLong();
+            String id = in.readUTF();
+            String port = in.readUTF();
+            // parent and device type were added later and are optional
+            int parentAddress = XBeeNode.UNKNOWN_PARENT;
+            int deviceType = XBeeNode.UNKNOWN_DEVICE_TYPE;
+            if (in.available() >= 3) {
+                parentAddress = in.readUnsignedShort();
+                deviceType = in.readByte();
+            }
+            XBeeNode node = new XBeeNode(XBeeAddress.valueOf(address, 0), id, (flags & FLAG_LOCAL) != 0, lastSeen,
+                    parentAddress, deviceType);
+            if (node.isLocalNode())
+                localNodes.put(port, node);
+            else
+                nodes.put(node.getAddress(), node);
+            break;
+        case REMOVE:
+            byte[] serial = new byte[8];
+            in.readFully(serial);
+            nodes.remove(XBeeAddress.valueOf(serial, 0));
+            break;
+        case LATENCY:
+            int n = in.readShort();
+            int[] latencies = new int[n];
+            for (int i = 0; i < n; i++)
+                latencies[i] = in.readInt();
+            this.latencies = latencies;
+            break;
+        default:
+            // skip records of unknown types
+        }
+    }
+
+    private byte[] encodeNode(XBeeNode node, String port) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(NODE);
+            out.write(node.getAddress().getAddressBytes());
+            out.writeByte(node.isLocalNode() ? FLAG_LOCAL : 0);
+            out.writeLong(node.getLastSeen());
+            out.writeUTF(node.getId());
+            out.writeUTF(node.isLocalNode() ? port : "");
+            out.writeShort(node.getParentAddress());
+            out.writeByte(node.getDeviceType());
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e); // cannot happen
+        }
+    }
+
+    private byte[] encodeRemove(XBeeAddress address) {
+        byte[] body = new byte[9];
+        body[0] = REMOVE;
+        System.arraycopy(address.getAddressBytes(), 0, body, 1, 8);
+        return body;
+    }
+
+    private byte[] encodeLatencies() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(LATENCY);
+            out.writeShort(latencies.length);
+            for (int latency : latencies)
+                out.writeInt(latency);
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e); // cannot happen
+        }
+    }
+
+    private static byte[] frame(byte[] body) {
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        int value = (int) crc.getValue();
+        int n = body.length;
+        byte[] record = new byte[n + 8];
+        record[0] = (byte) (n >> 24);
+        record[1] = (byte) (n >> 16);
+        record[2] = (byte) (n >> 8);
+        record[3] = (byte) n;
+        System.arraycopy(body, 0, record, 4, n);
+        record[n + 4] = (byte) (value >> 24);
+        record[n + 5] = (byte) (value >> 16);
+        record[n + 6] = (byte) (value >> 8);
+        record[n + 7] = (byte) value;
+        return record;
+    }
+
+    private static byte[] header() {
+        return new byte[] {
+                (byte) (MAGIC >> 24), (byte) (MAGIC >> 16), (byte) (MAGIC >> 8), (byte) MAGIC,
+                (byte) (VERSION >> 24), (byte) (VERSION >> 16), (byte) (VERSION >> 8), (byte) VERSION };
+    }
+
+    private void append(byte[] body) {
+        if (failed)
+            return;
+        pending.add(frame(body));
+        if (writer == null) {
+            writer = new Writer();
+            writer.start();
+        }
+    }
+
+    // pending records are written with a single write under file lock, so that concurrent processes do not mix them
+    private void write(List<byte[]> batch) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (byte[] record : batch)
+            bytes.write(record);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileLock lock = raf.getChannel().lock();
+            try {
+                if (raf.length() == 0)
+                    raf.write(header());
+                raf.seek(raf.length());
+                raf.write(bytes.toByteArray());
+            } finally {
+                lock.release();
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void compact() {
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            File dir = file.getAbsoluteFile().getParentFile();
+            if (dir != null && !dir.isDirectory() && !dir.mkdirs())
+                throw new IOException("Cannot create directory " + dir);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            bytes.write(header());
+            for (Map.Entry<String, XBeeNode> entry : localNodes.entrySet())
+                bytes.write(frame(encodeNode(entry.getValue(), entry.getKey())));
+            for (XBeeNode node : nodes.values())
+                bytes.write(frame(encodeNode(node, null)));
+            if (latencies.length > 0)
+                bytes.write(frame(encodeLatencies()));
+            RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+            try {
+                raf.setLength(0);
+                raf.write(bytes.toByteArray());
+                raf.getFD().sync();
+            } finally {
+                raf.close();
+            }
+            // atomic on POSIX, other platforms do not replace existing file on rename
+            if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file)))
+                throw new IOException("Cannot rename " + tmp + " to " + file);
+            records = nodes.size() + localNodes.size() + 1;
+        } catch (IOException e) {
+            tmp.delete();
+            writeFailed(e);
+        }
+    }
+
+    private void writeFailed(IOException e) {
+        log.log(Level.WARNING, "Failed to write node directory " + file + ", nodes will not be remembered", e);
+        failed = true;
+    }
+
+    // not a daemon, so that records are written before exit
+    private class Writer extends LoggedThread {
+        Writer() {
+            super(file.getName());
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                List<byte[]> batch;
+                synchronized (XBeeNodeStore.this) {
+                    if (pending.isEmpty() || failed) {
+                        pending.clear();
+                        writer = null;
+                        XBeeNodeStore.this.notifyAll();
+                        return;
+                    }
+                    batch = new ArrayList<byte[]>(pending);
+                    pending.clear();
+                }
+                try {
+                    write(batch);
+                    synchronized (XBeeNodeStore.this) {
+                        records += batch.size();
+                    }
+                } catch (IOException e) {
+                    synchronized (XBeeNodeStore.this) {
+                        writeFailed(e);
+                    }
+                }
+            }
+        }
+    }
+
+    private static boolean isSame(XBeeNode a, XBeeNode b) {
+        return a.getId().equals(b.getId()) && a.getAddress().toString().equals(b.getAddress().toString()) &&
+                a.getParentAddress() == b.getParentAddress() && a.getDeviceType() == b.getDeviceType();
+    }
+
+    @Override
+    public String toString() {
+        return file.toString();
+    }
+}
@@ -18,6 +18,7 @@
 package org.avrbuddy.xbee.link;
 
 import org.avrbuddy.conn.Connection;
+import org.avrbuddy.conn.IoReactor;
 import org.avrbuddy.log.Log;
 import org.avrbuddy.util.State;
 import org.avrbuddy.xbee.api.XBeeAddress;
@@ -47,8 +48,8 @@ public class XBeeLink {
 
     private Connection link;
     private Connection tunnel;
-    private XBeeLinkThread remote2link;
-    private XBeeLinkThread link2remote;
+    private IoReactor.Transfer remote2link;
+    private IoReactor.Transfer link2remote;
 
     public XBeeLink(CommandContext ctx, XBeeAddress remoteAddress, CommandConnection linkConnection) {
         this.ctx = ctx;
@@ -81,18 +82,20 @@ public class XBeeLink {
 
         link.setOnConnected(new Reset(tunnel));
 
-        remote2link = new XBeeLinkThread("remote->link", tunnel.getInput(), link.getOutput());
-        link2remote = new XBeeLinkThread("link->remote", link.getInput(), tunnel.getOutput());
-
-        remote2link.setOther(link2remote);
-        link2remote.setOther(remote2link);
-
-        remote2link.start();
-        link2remote.start();
+        // when either direction ends, both connections are closed and the other direction ends, too
+        Runnable closeBoth = new CloseBoth(tunnel, link);
+        remote2link = IoReactor.SHARED.transfer("remote->link", tunnel, link.getOutput(), closeBoth);
+        link2remote = IoReactor.SHARED.transfer("link->remote", link, tunnel.getOutput(), closeBoth);
 
         ctx.addLink(this);
     }
 
+    // returns counters of link connection or null when not supported
+    public String getStats() {
+        Connection link = this.link;
+        return link == null ? null : link.getStats();
+    }
+
     public void join() throws InterruptedException {
         if (remote2link != null)
             remote2link.join();
@@ -110,6 +113,22 @@ public class XBeeLink {
         ctx.removeLink(this);
     }
 
+    private static class CloseBoth implements Runnable {
+        private final Connection tunnel;
+        private final Connection link;
+
+        public CloseBoth(Connection tunnel, Connection link) {
+            this.tunnel = tunnel;
+            this.link = link;
+        }
+
+        @Override
+        public void run() {
+            tunnel.close();
+            link.close();
+        }
+    }
+
     private static class Reset implements Runnable {
         private final Connection tunnel;
 
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2012 Roman Elizarov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.avrbuddy.conn;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+import static org.avrbuddy.test.Assert.*;
+
+/**
+ * @author Roman Elizarov
+ */
+public class BufferedConnectionTest {
+    private static final int BUFFER_SIZE = 64;
+
+    public void testGrowWithoutLimit() throws Exception {
+        Loopback conn = new Loopback();
+        conn.setInputOverflowPolicy(InputOverflowPolicy.GROW, 0);
+        byte[] data = data(10 * BUFFER_SIZE);
+        conn.in.write(data);
+        assertArrayEquals("nothing is dropped", data, read(conn.getInput(), data.length));
+        conn.close();
+    }
+
+    public void testGrowUpToLimit() throws Exception {
+        Loopback conn = new Loopback();
+        conn.setInputOverflowPolicy(InputOverflowPolicy.GROW, 2 * BUFFER_SIZE);
+        conn.in.write(data(10 * BUFFER_SIZE));
+        assertEquals("kept", 2 * BUFFER_SIZE, conn.getInput().available());
+        conn.close();
+    }
+
+    public void testGrownBufferShrinksWhenRead() throws Exception {
+        Loopback conn = new Loopback();
+        conn.setInputOverflowPolicy(InputOverflowPolicy.GROW, 0);
+        conn.in.write(data(10 * BUFFER_SIZE));
+        read(conn.getInput(), 10 * BUFFER_SIZE);
+        conn.setInputOverflowPolicy(InputOverflowPolicy.DROP, 0);
+        conn.in.write(data(10 * BUFFER_SIZE));
+        assertEquals("kept", BUFFER_SIZE, conn.getInput().available());
+        conn.close();
+    }
+
+    public void testDrop() throws Exception {
+        Loopback conn = new Loopback();
+        conn.in.write(data(10 * BUFFER_SIZE));
+        assertEquals("kept", BUFFER_SIZE, conn.getInput().available());
+        conn.close();
+    }
+
+    public void testStuckWriteReportsAcceptedBytes() throws Exception {
+        BufferedConnection conn = new Stuck();
+        try {
+            conn.getOutput().write(data(2 * BUFFER_SIZE));
+            fail("timeout expected");
+        } catch (InterruptedIOException e) {
+            assertEquals("accepted", BUFFER_SIZE, e.bytesTransferred);
+        }
+        conn.close();
+    }
+
+    private static byte[] data(int n) {
+        byte[] data = new byte[n];
+        for (int i = 0; i < n; i++)
+            data[i] = (byte) i;
+        return data;
+    }
+
+    private static byte[] read(InputStream in, int n) throws IOException {
+        byte[] bytes = new byte[n];
+        int pos = 0;
+        while (pos < n) {
+            int k = in.read(bytes, pos, n - pos);
+            if (k < 0)
+                break;
+            pos += k;
+        }
+        return bytes;
+    }
+
+    private static class Loopback extends BufferedConnection {
+        Loopback() {
+            super(BUFFER_SIZE, BUFFER_SIZE);
+        }
+
+        @Override
+        protected void flushOutput(byte[] buffer, int size, long deadline) {}
+
+        @Override
+        public String toString() {
+            return "loopback";
+        }
+    }
+
+    private static class Stuck extends BufferedConnection {
+        Stuck() {
+            super(BUFFER_SIZE, BUFFER_SIZE);
+        }
+
+        @Override
+        protected void flushOutput(byte[] buffer, int size, long deadline) throws IOException {
+            throw new InterruptedIOException("Timeout");
+        }
+
+        @Override
+        public String toString() {
+            return "stuck";
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2012 Roman Elizarov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.avrbuddy.conn;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+
+import static org.avrbuddy.test.Assert.*;
+
+/**
+ * @author Roman Elizarov
+ */
+public class IoReactorTest {
+    private static final byte[] DATA = {1, 2, 3};
+    private static final int STUCK = 4;
+
+    public void testStuckOutputsDoNotStallOtherTransfers() throws Exception {
+        IoReactor reactor = new IoReactor("test");
+        CountDownLatch release = new CountDownLatch(1);
+        Source[] stuck = new Source[STUCK];
+        for (int i = 0; i < STUCK; i++) {
+            stuck[i] = new Source();
+            reactor.transfer("stuck-" + i, stuck[i], new StuckOutput(release), stuck[i].closer());
+            stuck[i].in.write(DATA);
+        }
+        Source source = new Source();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        IoReactor.Transfer transfer = reactor.transfer("free", source, out, source.closer());
+        try {
+            source.in.write(DATA);
+            long deadline = System.currentTimeMillis() + 1000;
+            while (out.size() < DATA.length && System.currentTimeMillis() < deadline)
+                Thread.sleep(10);
+            assertArrayEquals("transferred", DATA, out.toByteArray());
+        } finally {
+            release.countDown();
+            source.close();
+            transfer.join();
+            for (Source s : stuck)
+                s.close();
+        }
+    }
+
+    private static class Source extends BufferedConnection {
+        Source() {
+            super(64, 64);
+        }
+
+        Runnable closer() {
+            return new Runnable() {
+                public void run() {
+                    close();
+                }
+            };
+        }
+
+        @Override
+        protected void flushOutput(byte[] buffer, int size, long deadline) {}
+
+        @Override
+        public String toString() {
+            return "source";
+        }
+    }
+
+    private static class StuckOutput extends OutputStream {
+        private final CountDownLatch release;
+
+        StuckOutput(CountDownLatch release) {
+            this.release = release;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            write(0);
+        }
+    }
+}
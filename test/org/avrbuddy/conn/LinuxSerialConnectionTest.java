@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2012 Roman Elizarov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.avrbuddy.conn;
+
+import java.io.*;
+
+import static org.avrbuddy.test.Assert.*;
+
+/**
+ * Runs Linux serial backend on a pseudo-terminal that is opened by python3, skipped where it is not available.
+ *
+ * @author Roman Elizarov
+ */
+public class LinuxSerialConnectionTest {
+    // prints slave name, then echoes everything back or never reads when asked to stall
+    private static final String PTY_SCRIPT =
+            "import os, pty, sys\n" +
+            "m, s = pty.openpty()\n" +
+            "print(os.ttyname(s))\n" +
+            "sys.stdout.flush()\n" +
+            "while True:\n" +
+            "    if sys.argv[1] == 'stall':\n" +
+            "        sys.stdin.read()\n" +
+            "        break\n" +
+            "    d = os.read(m, 256)\n" +
+            "    if not d:\n" +
+            "        break\n" +
+            "    os.write(m, d)\n";
+
+    public void testDataIsEchoed() throws Exception {
+        Pty pty = new Pty("echo");
+        SerialConnection conn = pty.open();
+        try {
+            byte[] data = new byte[1000];
+            for (int i = 0; i < data.length; i++)
+                data[i] = (byte) i;
+            conn.getOutput().write(data);
+            byte[] received = new byte[data.length];
+            int pos = 0;
+            while (pos < received.length)
+                pos += conn.getInput().read(received, pos, received.length - pos);
+            assertArrayEquals("echo", data, received);
+        } finally {
+            conn.close();
+            pty.close();
+        }
+    }
+
+    public void testReadTimesOut() throws Exception {
+        Pty pty = new Pty("echo");
+        SerialConnection conn = pty.open();
+        try {
+            conn.setReadTimeout(300);
+            long time = System.currentTimeMillis();
+            try {
+                conn.getInput().read();
+                fail("timeout expected");
+            } catch (InterruptedIOException e) {
+                // expected
+            }
+            time = System.currentTimeMillis() - time;
+            assertTrue("timed out after " + time + " ms", time >= 300 && time < 1000);
+        } finally {
+            conn.close();
+            pty.close();
+        }
+    }
+
+    public void testStalledWriteTimesOut() throws Exception {
+        Pty pty = new Pty("stall");
+        SerialConnection conn = pty.open();
+        try {
+            conn.setWriteTimeout(300);
+            long time = System.currentTimeMillis();
+            try {
+                conn.getOutput().write(new byte[1 << 20]);
+                fail("timeout expected");
+            } catch (InterruptedIOException e) {
+                assertTrue("transferred " + e.bytesTransferred, e.bytesTransferred < 1 << 20);
+            }
+            time = System.currentTimeMillis() - time;
+            assertTrue("timed out after " + time + " ms", time >= 300 && time < 1000);
+        } finally {
+            conn.close();
+            pty.close();
+        }
+    }
+
+    public void testResetHostFails() throws Exception {
+        Pty pty = new Pty("echo");
+        SerialConnection conn = pty.open();
+        try {
+            conn.resetHost();
+            fail("failure expected");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("DTR"));
+        } finally {
+            conn.close();
+            pty.close();
+        }
+    }
+
+    private static class Pty {
+        private final Process process;
+        private final String name;
+
+        Pty(String mode) throws IOException {
+            Process process = null;
+            String name = null;
+            try {
+                process = new ProcessBuilder("python3", "-c", PTY_SCRIPT, mode).start();
+                name = new BufferedReader(new InputStreamReader(process.getInputStream())).readLine();
+            } catch (IOException e) {
+                // not available
+            }
+            assume("python3 with pty is available", name != null && name.startsWith("/dev/"));
+            this.process = process;
+            this.name = name;
+        }
+
+        SerialConnection open() throws IOException {
+            ConnectionOptions options = new ConnectionOptions(9600);
+            options.setSerialBackend(SerialConnection.LINUX_BACKEND);
+            return SerialConnection.open(name, options);
+        }
+
+        void close() {
+            process.destroy();
+        }
+    }
+}
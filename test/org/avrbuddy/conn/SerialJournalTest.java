@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2012 Roman Elizarov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.avrbuddy.conn;
+
+import java.io.*;
+
+import static org.avrbuddy.test.Assert.*;
+
+/**
+ * Captures traffic of a port that echoes everything back and plays it back.
+ *
+ * @author Roman Elizarov
+ */
+public class SerialJournalTest {
+    private static final byte[] PING = "ping".getBytes();
+    private static final byte[] PONG = "pong".getBytes();
+
+    public void testCapturedInputIsReplayed() throws Exception {
+        File file = capture();
+        try {
+            ReplaySerialConnection replay = new ReplaySerialConnection(file.getPath(), true);
+            try {
+                assertEquals("initial baud", 9600, replay.getBaud());
+                replay.getOutput().write(PING);
+                assertArrayEquals("first", PING, read(replay, PING.length));
+                replay.getOutput().write(PONG);
+                assertArrayEquals("second", PONG, read(replay, PONG.length));
+                assertEquals("recorded baud", 115200, replay.getBaud());
+                try {
+                    replay.getInput().read();
+                    fail("end of journal expected");
+                } catch (EOFException e) {
+                    // expected
+                }
+                assertTrue(replay.getStats(), replay.getStats().contains("(complete)"));
+            } finally {
+                replay.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testInputIsHeldUntilRequestIsWritten() throws Exception {
+        File file = capture();
+        try {
+            ReplaySerialConnection replay = new ReplaySerialConnection(file.getPath(), true);
+            try {
+                // response is held for up to a second while its request is not written
+                long time = System.currentTimeMillis();
+                assertArrayEquals("first", PING, read(replay, PING.length));
+                time = System.currentTimeMillis() - time;
+                assertTrue("held for " + time + " ms", time >= 900);
+                // and goes without delay once all recorded output before it is written
+                replay.getOutput().write(PING);
+                replay.getOutput().write(PONG);
+                time = System.currentTimeMillis();
+                assertArrayEquals("second", PONG, read(replay, PONG.length));
+                time = System.currentTimeMillis() - time;
+                assertTrue("held for " + time + " ms", time < 500);
+            } finally {
+                replay.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static File capture() throws IOException {
+        File file = File.createTempFile("xtools", ".journal");
+        CapturingSerialConnection conn = new CapturingSerialConnection(new Echo(), new SerialJournal.Writer(file, 9600));
+        try {
+            conn.getOutput().write(PING);
+            assertArrayEquals("echo", PING, read(conn, PING.length));
+            conn.setBaud(115200);
+            conn.getOutput().write(PONG);
+            assertArrayEquals("echo", PONG, read(conn, PONG.length));
+        } finally {
+            conn.close();
+        }
+        return file;
+    }
+
+    private static byte[] read(SerialConnection conn, int n) throws IOException {
+        byte[] bytes = new byte[n];
+        new DataInputStream(conn.getInput()).readFully(bytes);
+        return bytes;
+    }
+
+    // port that reads back what was written to it
+    private static class Echo extends SerialConnection {
+        private final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        private int readPos;
+        private int baud = 9600;
+
+        private final InputStream in = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                byte[] bytes = written.toByteArray();
+                int n = Math.min(len, bytes.length - readPos);
+                if (n == 0)
+                    throw new EOFException("Nothing was written");
+                System.arraycopy(bytes, readPos, b, off, n);
+                readPos += n;
+                return n;
+            }
+        };
+
+        @Override
+        public InputStream getInput() {
+            return in;
+        }
+
+        @Override
+        public OutputStream getOutput() {
+            return written;
+        }
+
+        @Override
+        public void drainInput() {}
+
+        @Override
+        public void setReadTimeout(long timeout) {}
+
+        @Override
+        public void setWriteTimeout(long timeout) {}
+
+        @Override
+        public void close() {}
+
+        @Override
+        public int getBaud() {
+            return baud;
+        }
+
+        @Override
+        public void setBaud(int baud) {
+            this.baud = baud;
+        }
+
+        @Override
+        public String toString() {
+            return "echo";
+        }
+    }
+}
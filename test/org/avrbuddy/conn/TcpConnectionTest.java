@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2012 Roman Elizarov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.avrbuddy.conn;
+
+import java.io.DataInputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.avrbuddy.test.Assert.*;
+
+/**
+ * @author Roman Elizarov
+ */
+public class TcpConnectionTest {
+    private static final byte[] DATA = {1, 2, 3};
+
+    public void testClientExchangesDataAndDetaches() throws Exception {
+        TcpConnection conn = TcpConnection.open(0);
+        final CountDownLatch connected = new CountDownLatch(1);
+        conn.setOnConnected(new Runnable() {
+            public void run() {
+                connected.countDown();
+            }
+        });
+        try {
+            Socket socket = new Socket(InetAddress.getByName(null), conn.getPort());
+            assertTrue("connected", connected.await(1, TimeUnit.SECONDS));
+            assertEquals("clients", 1, conn.getClientCount());
+            // client to connection
+            socket.getOutputStream().write(DATA);
+            conn.setReadTimeout(1000);
+            byte[] received = new byte[DATA.length];
+            new DataInputStream(conn.getInput()).readFully(received);
+            assertArrayEquals("from client", DATA, received);
+            // connection to client
+            conn.getOutput().write(DATA);
+            conn.getOutput().flush();
+            socket.setSoTimeout(1000);
+            new DataInputStream(socket.getInputStream()).readFully(received);
+            assertArrayEquals("to client", DATA, received);
+            socket.close();
+            long deadline = System.currentTimeMillis() + 1000;
+            while (conn.getClientCount() > 0 && System.currentTimeMillis() < deadline)
+                Thread.sleep(10);
+            assertEquals("clients after detach", 0, conn.getClientCount());
+        } finally {
+            conn.close();
+        }
+    }
+
+    public void testOutputWithoutClientsIsCounted() throws Exception {
+        TcpConnection conn = TcpConnection.open(0);
+        try {
+            conn.getOutput().write(DATA);
+            conn.getOutput().flush();
+            String stats = conn.getStats();
+            assertTrue(stats, stats.contains("discarded " + DATA.length + " bytes without clients"));
+        } finally {
+            conn.close();
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2012 Roman Elizarov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.avrbuddy.test;
+
+import java.util.Arrays;
+
+/**
+ * @author Roman Elizarov
+ */
+public class Assert {
+    private Assert() {}
+
+    public static void fail(String message) {
+        throw new AssertionError(message);
+    }
+
+    public static void assertTrue(String message, boolean condition) {
+        if (!condition)
+            fail(message);
+    }
+
+    public static void assertEquals(String message, Object expected, Object actual) {
+        if (expected == null ? actual != null : !expected.equals(actual))
+            fail(message + ": expected <" + expected + "> but was <" + actual + ">");
+    }
+
+    public static void assertEquals(String message, long expected, long actual) {
+        if (expected != actual)
+            fail(message + ": expected <" + expected + "> but was <" + actual + ">");
+    }
+
+    public static void assertArrayEquals(String message, byte[] expected, byte[] actual) {
+        if (!Arrays.equals(expected, actual))
+            fail(message + ": expected " + Arrays.toString(expected) + " but was " + Arrays.toString(actual));
+    }
+
+    // skips the rest of the test when environment does not support it
+    public static void assume(String message, boolean condition) {
+        if (!condition)
+            throw new Skipped(message);
+    }
+
+    static class Skipped extends RuntimeException {
+        Skipped(String message) {
+            super(message);
+        }
+    }
+}
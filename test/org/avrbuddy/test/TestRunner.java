@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2012 Roman Elizarov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.avrbuddy.test;
+
+import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Runs tests in all classes named *Test under a given directory of compiled classes.
+ * Each public no-argument method named test* runs on a new instance of its class.
+ * Usage: TestRunner <classes-dir> [<class-name-filter>]
+ *
+ * @author Roman Elizarov
+ */
+public class TestRunner {
+    public static void main(String[] args) throws Exception {
+        List<String> classNames = new ArrayList<String>();
+        collect(new File(args[0]), "", classNames);
+        Collections.sort(classNames);
+        String filter = args.length > 1 ? args[1] : "";
+        int run = 0;
+        int skipped = 0;
+        List<String> failed = new ArrayList<String>();
+        for (String className : classNames) {
+            if (!className.contains(filter))
+                continue;
+            Class<?> c = Class.forName(className);
+            for (Method m : getTestMethods(c)) {
+                String name = c.getSimpleName() + "." + m.getName();
+                long time = System.currentTimeMillis();
+                run++;
+                try {
+                    m.invoke(c.getConstructor().newInstance());
+                    System.out.println("PASS " + name + " (" + (System.currentTimeMillis() - time) + " ms)");
+                } catch (InvocationTargetException e) {
+                    if (e.getCause() instanceof Assert.Skipped) {
+                        skipped++;
+                        System.out.println("SKIP " + name + ": " + e.getCause().getMessage());
+                        continue;
+                    }
+                    failed.add(name);
+                    System.out.println("FAIL " + name);
+                    e.getCause().printStackTrace(System.out);
+                }
+            }
+        }
+        System.out.println(run + " tests, " + failed.size() + " failed, " + skipped + " skipped");
+        for (String name : failed)
+            System.out.println("  " + name);
+        System.exit(failed.isEmpty() ? 0 : 1);
+    }
+
+    private static List<Method> getTestMethods(Class<?> c) {
+        List<Method> result = new ArrayList<Method>();
+        for (Method m : c.getMethods())
+            if (m.getName().startsWith("test") && m.getParameterTypes().length == 0 &&
+                    !Modifier.isStatic(m.getModifiers()))
+                result.add(m);
+        Collections.sort(result, new Comparator<Method>() {
+            public int compare(Method m1, Method m2) {
+                return m1.getName().compareTo(m2.getName());
+            }
+        });
+        return result;
+    }
+
+    private static void collect(File dir, String pkg, List<String> classNames) {
+        File[] files = dir.listFiles();
+        if (files == null)
+            return;
+        for (File file : files) {
+            String name = file.getName();
+            if (file.isDirectory())
+                collect(file, pkg + name + ".", classNames);
+            else if (name.endsWith("Test.class"))
+                classNames.add(pkg + name.substring(0, name.length() - ".class".length()));
+        }
+    }
+}
@@ -0,0 +1,442 @@
+/*
+ * Copyright (C) 2012 Roman Elizarov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.avrbuddy.xbee.api;
+
+import org.avrbuddy.conn.SerialConnection;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serial port with a simulated local XBee ZB module in API mode and remote nodes NODE1..NODEn at addresses
+ * [0013A200400000ii:00ii]. Each remote node answers with its own random latency of 50-400 ms.
+ * Routers are nodes with numbers divisible by 3, other nodes are end devices.
+ *
+ * @author Roman Elizarov
+ */
+public class FakeRadio extends SerialConnection {
+    private static final byte[] PROFILE_AND_MANUFACTURER = {(byte) 0xc1, 0x05, 0x10, 0x1e};
+
+    private final Node[] nodes;
+    private final Pipe in = new Pipe();
+    private final Output out = new Output();
+    private volatile CountDownLatch outputStalled = new CountDownLatch(0);
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "FakeRadio");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    // guarded by this
+    private boolean escaped = true;
+    private int discoveryTimeout = 0x3c; // NT in 100 ms
+    private int ndCount;
+    private int remoteAtCount;
+    private int txFailures; // number of next TX frames that fail delivery
+    private long txDelay = 10;
+
+    public FakeRadio(int n) {
+        this(n, 1);
+    }
+
+    public FakeRadio(int n, long seed) {
+        Random random = new Random(seed);
+        nodes = new Node[n + 1];
+        for (int i = 0; i <= n; i++)
+            nodes[i] = new Node(i, 50 + random.nextInt(350));
+    }
+
+    public static XBeeAddress address(int i) {
+        return XBeeAddress.valueOf("[0013A200400000" + hex(i) + ":00" + hex(i) + "]");
+    }
+
+    // -------------- SIMULATION CONTROL --------------
+
+    public synchronized int getNodeDiscoveryCount() {
+        return ndCount;
+    }
+
+    public synchronized int getRemoteAtCount() {
+        return remoteAtCount;
+    }
+
+    public synchronized void setOnline(int i, boolean online) {
+        nodes[i].online = online;
+    }
+
+    public synchronized void setLatency(int i, long latency) {
+        nodes[i].latency = latency;
+    }
+
+    public synchronized void rename(int i, String id) {
+        nodes[i].id = id;
+    }
+
+    public synchronized void failTx(int count) {
+        txFailures = count;
+    }
+
+    public synchronized void setTxDelay(long delay) {
+        txDelay = delay;
+    }
+
+    // writes of the host block until output is released
+    public void stallOutput() {
+        outputStalled = new CountDownLatch(1);
+    }
+
+    public void releaseOutput() {
+        outputStalled.countDown();
+    }
+
+    // bytes that were delivered to a node with TX frames
+    public synchronized byte[] getReceived(int i) {
+        return nodes[i].received.toByteArray();
+    }
+
+    // node sends node identification frame as it joins network
+    public synchronized void announce(int i) {
+        Node node = nodes[i];
+        byte[] desc = node.description();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(0x95);
+        write(body, node.address64());
+        write(body, node.my);
+        body.write(0x02);
+        body.write(desc, 0, desc.length - 5);
+        body.write(0x02);
+        write(body, PROFILE_AND_MANUFACTURER);
+        send(body.toByteArray(), 0);
+    }
+
+    // node sends data to local node
+    public synchronized void receive(int i, byte[] data, boolean broadcast) {
+        Node node = nodes[i];
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(0x90);
+        write(body, node.address64());
+        write(body, node.my);
+        body.write(broadcast ? 0x02 : 0x01);
+        write(body, data);
+        send(body.toByteArray(), 0);
+    }
+
+    // -------------- SERIAL CONNECTION --------------
+
+    @Override
+    public InputStream getInput() {
+        return in;
+    }
+
+    @Override
+    public OutputStream getOutput() {
+        return out;
+    }
+
+    @Override
+    public void drainInput() {}
+
+    @Override
+    public void setReadTimeout(long timeout) {}
+
+    @Override
+    public void setWriteTimeout(long timeout) {}
+
+    @Override
+    public void close() {
+        timer.shutdownNow();
+        in.close();
+    }
+
+    @Override
+    public String toString() {
+        return "FakeRadio";
+    }
+
+    // -------------- FRAME PROCESSING --------------
+
+    private synchronized void frameReceived(byte[] body) {
+        switch (body[0] & 0xff) {
+        case 0x08:
+            localAt(body[1], new String(body, 2, 2), Arrays.copyOfRange(body, 4, body.length));
+            break;
+        case 0x17:
+            remoteAt(body[1], Arrays.copyOfRange(body, 2, 10), new String(body, 13, 2),
+                    Arrays.copyOfRange(body, 15, body.length));
+            break;
+        case 0x10:
+            tx(body[1], Arrays.copyOfRange(body, 2, 10), Arrays.copyOfRange(body, 14, body.length));
+            break;
+        }
+    }
+
+    private void localAt(byte frameId, String cmd, byte[] value) {
+        Node local = nodes[0];
+        if (cmd.equals("ND")) {
+            ndCount++;
+            for (Node node : nodes)
+                if (node.number != 0 && node.online && (value.length == 0 || node.id.equals(new String(value))))
+                    send(concat(new byte[]{(byte) 0x88, frameId}, "ND".getBytes(), new byte[]{0}, node.description()),
+                            Math.min(node.latency, discoveryTimeout * 100));
+            return;
+        }
+        if (cmd.equals("NT") && value.length > 0)
+            discoveryTimeout = value[0] & 0xff;
+        send(concat(new byte[]{(byte) 0x88, frameId}, cmd.getBytes(), new byte[]{0},
+                value.length > 0 ? new byte[0] : local.value(cmd)), 0);
+        if (cmd.equals("AP") && value.length > 0)
+            escaped = value[0] == 2; // applies after response
+    }
+
+    private void remoteAt(byte frameId, byte[] address64, String cmd, byte[] value) {
+        remoteAtCount++;
+        Node node = find(address64);
+        if (node == null || !node.online) {
+            send(concat(new byte[]{(byte) 0x97, frameId}, address64, new byte[]{(byte) 0xff, (byte) 0xfe},
+                    cmd.getBytes(), new byte[]{XBeeAtResponseFrame.STATUS_TX_FAILURE}), 300);
+            return;
+        }
+        if (value.length > 0) {
+            if (cmd.equals("DH"))
+                node.dh = pad(value, 4);
+            else if (cmd.equals("DL"))
+                node.dl = pad(value, 4);
+            else if (cmd.equals("NI"))
+                node.id = new String(value);
+        }
+        send(concat(new byte[]{(byte) 0x97, frameId}, address64, node.my, cmd.getBytes(), new byte[]{0},
+                value.length > 0 ? new byte[0] : node.value(cmd)), 20);
+    }
+
+    private void tx(byte frameId, byte[] address64, byte[] data) {
+        Node node = find(address64);
+        boolean ok = node != null && node.online && txFailures == 0;
+        if (txFailures > 0)
+            txFailures--;
+        if (ok)
+            write(node.received, data);
+        send(concat(new byte[]{(byte) 0x8b, frameId}, ok ? node.my : new byte[]{(byte) 0xff, (byte) 0xfd},
+                new byte[]{0, (byte) (ok ? 0 : 0x24), 0}), txDelay);
+    }
+
+    private Node find(byte[] address64) {
+        for (Node node : nodes)
+            if (node.number != 0 && Arrays.equals(node.address64(), address64))
+                return node;
+        return null;
+    }
+
+    private void send(byte[] body, long delay) {
+        final byte[] frame = encode(body);
+        timer.schedule(new Runnable() {
+            public void run() {
+                in.feed(frame);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private byte[] encode(byte[] body) {
+        int sum = 0;
+        for (byte b : body)
+            sum += b & 0xff;
+        byte[] raw = concat(new byte[]{XBeeUtil.FRAME_START, (byte) (body.length >> 8), (byte) body.length},
+                body, new byte[]{(byte) (0xff - (sum & 0xff))});
+        if (!escaped)
+            return raw;
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        result.write(raw[0]);
+        for (int i = 1; i < raw.length; i++) {
+            int b = raw[i] & 0xff;
+            if (b == 0x7e || b == 0x7d || b == 0x11 || b == 0x13) {
+                result.write(0x7d);
+                result.write(b ^ 0x20);
+            } else
+                result.write(b);
+        }
+        return result.toByteArray();
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        for (byte[] part : parts)
+            write(result, part);
+        return result.toByteArray();
+    }
+
+    private static void write(ByteArrayOutputStream out, byte[] bytes) {
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static byte[] pad(byte[] value, int size) {
+        byte[] result = new byte[size];
+        System.arraycopy(value, 0, result, size - value.length, value.length);
+        return result;
+    }
+
+    private static String hex(int i) {
+        return String.format("%02X", i);
+    }
+
+    private static class Node {
+        final int number;
+        long latency;
+        boolean online = true;
+        String id;
+        byte[] my;
+        byte[] dh = new byte[4];
+        byte[] dl = new byte[4];
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+
+        Node(int number, long latency) {
+            this.number = number;
+            this.latency = latency;
+            id = number == 0 ? "LOCAL" : "NODE" + number;
+            my = new byte[]{0, (byte) number};
+        }
+
+        byte[] address64() {
+            return new byte[]{0, 0x13, (byte) 0xa2, 0, 0x40, 0, 0, (byte) number};
+        }
+
+        int getDeviceType() {
+            return number == 0 ? 0 : number % 3 == 0 ? 1 : 2;
+        }
+
+        byte[] description() {
+            return concat(my, address64(), id.getBytes(), new byte[]{0, (byte) 0xff, (byte) 0xfe,
+                    (byte) getDeviceType(), 0}, PROFILE_AND_MANUFACTURER);
+        }
+
+        byte[] value(String cmd) {
+            if (cmd.equals("SH"))
+                return Arrays.copyOfRange(address64(), 0, 4);
+            if (cmd.equals("SL"))
+                return Arrays.copyOfRange(address64(), 4, 8);
+            if (cmd.equals("MY"))
+                return my;
+            if (cmd.equals("NI"))
+                return id.getBytes();
+            if (cmd.equals("DH"))
+                return dh;
+            if (cmd.equals("DL"))
+                return dl;
+            if (cmd.equals("NP"))
+                return new byte[]{0, 0x54};
+            return new byte[0];
+        }
+    }
+
+    // frames from the host, unescaped as they arrive
+    private class Output extends OutputStream {
+        private final ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        private boolean escape;
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            try {
+                outputStalled.await();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            super.write(b, off, len);
+        }
+
+        @Override
+        public synchronized void write(int b) throws IOException {
+            b &= 0xff;
+            if (b == 0x7e) {
+                frame.reset();
+                escape = false;
+            } else if (b == 0x7d && isEscaped()) {
+                escape = true;
+                return;
+            } else if (escape) {
+                b ^= 0x20;
+                escape = false;
+            }
+            frame.write(b);
+            byte[] bytes = frame.toByteArray();
+            if (bytes.length >= 3 && bytes.length == (((bytes[1] & 0xff) << 8) | (bytes[2] & 0xff)) + 4) {
+                frame.reset();
+                frameReceived(Arrays.copyOfRange(bytes, 3, bytes.length - 1));
+            }
+        }
+    }
+
+    private synchronized boolean isEscaped() {
+        return escaped;
+    }
+
+    // bytes from the radio to the host
+    private static class Pipe extends InputStream {
+        private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+        private boolean closed;
+
+        synchronized void feed(byte[] bytes) {
+            pending.write(bytes, 0, bytes.length);
+            notifyAll();
+        }
+
+        @Override
+        public synchronized int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            try {
+                while (pending.size() == 0 && !closed)
+                    wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            if (pending.size() == 0)
+                return -1;
+            byte[] bytes = pending.toByteArray();
+            int n = Math.min(len, bytes.length);
+            System.arraycopy(bytes, 0, b, off, n);
+            pending.reset();
+            pending.write(bytes, n, bytes.length - n);
+            return n;
+        }
+
+        @Override
+        public synchronized int available() {
+            return pending.size();
+        }
+
+        @Override
+        public synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2012 Roman Elizarov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.avrbuddy.xbee.api;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.avrbuddy.test.Assert.*;
+
+/**
+ * @author Roman Elizarov
+ */
+public class XBeeFrameDecoderTest {
+    // AT response with frame start, escape, XON and XOFF bytes in its value
+    private static final byte[] SPECIAL = frame(0x88, 1, 'V', 'R', 0, 0x7e, 0x7d, 0x11, 0x13);
+    private static final byte[] PLAIN = frame(0x88, 2, 'N', 'I', 0, 'A', 'B', 'C');
+    private static final byte[] UNKNOWN = frame(0x33, 1, 2, 3);
+
+    public void testEscapedFramesSplitAcrossReads() throws Exception {
+        XBeeFrameDecoder decoder = new XBeeFrameDecoder(new Trickle(escape(SPECIAL, PLAIN, SPECIAL), 1));
+        assertArrayEquals("frame 1", SPECIAL, decoder.nextFrame().getFrame());
+        assertArrayEquals("frame 2", PLAIN, decoder.nextFrame().getFrame());
+        assertArrayEquals("frame 3", SPECIAL, decoder.nextFrame().getFrame());
+        assertEquals("errors", 0, decoder.getErrorCount());
+    }
+
+    public void testUnknownFrameTypeIsDropped() throws Exception {
+        XBeeFrameDecoder decoder = new XBeeFrameDecoder(new Trickle(escape(UNKNOWN, PLAIN), 3));
+        assertArrayEquals("frame after unknown one", PLAIN, decoder.nextFrame().getFrame());
+        assertEquals("errors", 1, decoder.getErrorCount());
+    }
+
+    public void testGarbageBeforeFrameIsSkipped() throws Exception {
+        byte[] garbage = {1, 2, 0x7e, 0x00};
+        XBeeFrameDecoder decoder = new XBeeFrameDecoder(new Trickle(concat(garbage, escape(PLAIN)), 2));
+        assertArrayEquals("frame", PLAIN, decoder.nextFrame().getFrame());
+        assertTrue("errors", decoder.getErrorCount() > 0);
+    }
+
+    public void testUnescapedFalseStartIsRescanned() throws Exception {
+        // frame start inside API mode 1 data makes a plausible header with a wrong checksum
+        byte[] data = concat(new byte[] {0x7e, 0x00, 0x02, 0x7e}, PLAIN, SPECIAL);
+        XBeeFrameDecoder decoder = new XBeeFrameDecoder(new Trickle(data, 5));
+        decoder.setApiMode(XBeeApiMode.UNESCAPED);
+        assertArrayEquals("frame 1", PLAIN, decoder.nextFrame().getFrame());
+        assertArrayEquals("frame 2", SPECIAL, decoder.nextFrame().getFrame());
+        try {
+            decoder.nextFrame();
+            fail("end of input expected");
+        } catch (EOFException e) {
+            // expected
+        }
+    }
+
+    private static byte[] frame(int... body) {
+        byte[] frame = new byte[body.length + 4];
+        frame[0] = XBeeUtil.FRAME_START;
+        frame[1] = (byte) (body.length >> 8);
+        frame[2] = (byte) body.length;
+        for (int i = 0; i < body.length; i++)
+            frame[i + 3] = (byte) body[i];
+        frame[frame.length - 1] = XBeeFrame.computeFrameChecksum(frame);
+        return frame;
+    }
+
+    private static byte[] escape(byte[]... frames) throws IOException {
+        XBeeFrameEncoder encoder = new XBeeFrameEncoder();
+        for (byte[] frame : frames)
+            encoder.encode(new XBeeFrame(frame));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encoder.writeTo(out);
+        return out.toByteArray();
+    }
+
+    private static byte[] concat(byte[]... arrays) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] a : arrays)
+            out.write(a, 0, a.length);
+        return out.toByteArray();
+    }
+
+    // returns at most a few bytes on each read
+    private static class Trickle extends InputStream {
+        private final byte[] data;
+        private final int step;
+        private int pos;
+
+        Trickle(byte[] data, int step) {
+            this.data = data;
+            this.step = step;
+        }
+
+        @Override
+        public int read() {
+            return pos < data.length ? data[pos++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (pos >= data.length)
+                return -1;
+            int n = Math.min(Math.min(len, step), data.length - pos);
+            System.arraycopy(data, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2012 Roman Elizarov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.avrbuddy.xbee.api;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+
+import static org.avrbuddy.test.Assert.*;
+
+/**
+ * @author Roman Elizarov
+ */
+public class XBeeFrameSchedulerTest {
+    private static final long TIMEOUT = 10000;
+
+    public void testHigherPriorityGoesFirst() throws Exception {
+        Port port = new Port();
+        port.stall();
+        final XBeeFrameScheduler scheduler = new XBeeFrameScheduler(port, "test");
+        scheduler.start();
+        try {
+            // first frame occupies the writer, so that the next ones are queued together
+            Thread first = sendInBackground(scheduler, XBeeSendPriority.BULK, 1);
+            port.awaitWrite();
+            Thread bulk = sendInBackground(scheduler, XBeeSendPriority.BULK, 2);
+            Thread.sleep(50);
+            Thread control = sendInBackground(scheduler, XBeeSendPriority.CONTROL, 3);
+            Thread.sleep(50);
+            port.release();
+            first.join();
+            bulk.join();
+            control.join();
+            byte[] written = port.getWritten();
+            assertEquals("frames", 3, written.length / frame(0).getFrame().length);
+            assertEquals("control before bulk", 3, written[frame(0).getFrame().length + 4]);
+        } finally {
+            scheduler.close();
+        }
+    }
+
+    public void testLowerPriorityIsNotStarved() throws Exception {
+        Port port = new Port();
+        port.setDelay(20);
+        final XBeeFrameScheduler scheduler = new XBeeFrameScheduler(port, "test");
+        scheduler.start();
+        final boolean[] stop = new boolean[1];
+        Thread[] controls = new Thread[64];
+        try {
+            // more control frames are queued than fit into one batch, so control lane is never empty
+            for (int i = 0; i < controls.length; i++) {
+                controls[i] = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            while (!stop[0])
+                                scheduler.send(XBeeSendPriority.CONTROL, null, TIMEOUT, frame(1));
+                        } catch (IOException e) {
+                            // closed
+                        }
+                    }
+                };
+                controls[i].start();
+            }
+            Thread.sleep(100);
+            long time = System.currentTimeMillis();
+            scheduler.send(XBeeSendPriority.BULK, null, TIMEOUT, frame(2));
+            time = System.currentTimeMillis() - time;
+            assertTrue("bulk frame waited " + time + " ms", time < 2000);
+        } finally {
+            stop[0] = true;
+            scheduler.close();
+            for (Thread control : controls)
+                control.join();
+        }
+    }
+
+    public void testQueuedFramesAreDroppedOnTimeout() throws Exception {
+        Port port = new Port();
+        port.stall();
+        XBeeFrameScheduler scheduler = new XBeeFrameScheduler(port, "test");
+        scheduler.start();
+        try {
+            Thread first = sendInBackground(scheduler, XBeeSendPriority.BULK, 1);
+            port.awaitWrite();
+            long time = System.currentTimeMillis();
+            try {
+                scheduler.send(XBeeSendPriority.BULK, null, 200, frame(2));
+                fail("timeout expected");
+            } catch (InterruptedIOException e) {
+                // expected
+            }
+            time = System.currentTimeMillis() - time;
+            assertTrue("timed out after " + time + " ms", time >= 200 && time < 1000);
+            port.release();
+            first.join();
+            scheduler.send(XBeeSendPriority.BULK, null, TIMEOUT, frame(3));
+            byte[] written = port.getWritten();
+            int size = frame(0).getFrame().length;
+            assertEquals("timed out frame is not written", 2, written.length / size);
+            assertEquals("next frame", 3, written[size + 4]);
+        } finally {
+            scheduler.close();
+        }
+    }
+
+    private static Thread sendInBackground(final XBeeFrameScheduler scheduler, final XBeeSendPriority priority,
+            final int id)
+    {
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    scheduler.send(priority, null, TIMEOUT, frame(id));
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        thread.start();
+        return thread;
+    }
+
+    private static XBeeFrame frame(int id) {
+        return XBeeAtFrame.newBuilder().setAtCommand("VR").setFrameId((byte) id).build();
+    }
+
+    // port whose writes can be stalled
+    private static class Port extends OutputStream {
+        private final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        private final CountDownLatch writeStarted = new CountDownLatch(1);
+        private volatile CountDownLatch stalled = new CountDownLatch(0);
+        private volatile long delay;
+
+        void stall() {
+            stalled = new CountDownLatch(1);
+        }
+
+        void release() {
+            stalled.countDown();
+        }
+
+        void setDelay(long delay) {
+            this.delay = delay;
+        }
+
+        void awaitWrite() throws InterruptedException {
+            writeStarted.await();
+        }
+
+        synchronized byte[] getWritten() {
+            return written.toByteArray();
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            writeStarted.countDown();
+            try {
+                stalled.await();
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            synchronized (this) {
+                written.write(b, off, len);
+            }
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2012 Roman Elizarov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.avrbuddy.xbee.api;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.avrbuddy.test.Assert.*;
+
+/**
+ * @author Roman Elizarov
+ */
+public class XBeeInFlightTableTest {
+    private static final long TIMEOUT = 10000;
+
+    public void testFrameIdsInFlightAreNotReused() throws Exception {
+        XBeeInFlightTable table = new XBeeInFlightTable();
+        List<XBeeResponseFuture> futures = new ArrayList<XBeeResponseFuture>();
+        Set<Byte> ids = new HashSet<Byte>();
+        // all requests were built with the same frame id
+        for (int i = 0; i < XBeeInFlightTable.MAX_IN_FLIGHT; i++) {
+            XBeeResponseFuture future = table.register(atFrame(5, "DH"), TIMEOUT);
+            futures.add(future);
+            ids.add(future.getRequest().getFrameId());
+        }
+        assertEquals("distinct frame ids", XBeeInFlightTable.MAX_IN_FLIGHT, ids.size());
+        assertTrue("frame id 0 is never used", !ids.contains((byte) 0));
+        for (XBeeResponseFuture future : futures)
+            assertTrue("not cancelled", !future.isDone());
+        // the next request waits until a frame id is free
+        final XBeeResponseFuture[] next = new XBeeResponseFuture[1];
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    next[0] = table.register(atFrame(5, "DL"), TIMEOUT);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        t.start();
+        t.join(200);
+        assertTrue("waits while all frame ids are in flight", t.isAlive());
+        XBeeFrameWithId request = futures.get(17).getRequest();
+        table.frameReceived(atResponse(request.getFrameId(), "DH"));
+        t.join(TIMEOUT);
+        assertEquals("response", request.getFrameId(), futures.get(17).get().getFrameId());
+        assertEquals("freed frame id is reused", request.getFrameId(), next[0].getRequest().getFrameId());
+        for (int i = 0; i < futures.size(); i++)
+            assertTrue("others are in flight", i == 17 || !futures.get(i).isDone());
+    }
+
+    public void testTimeoutStartsWhenWritten() throws Exception {
+        XBeeInFlightTable table = new XBeeInFlightTable();
+        XBeeResponseFuture future = table.register(atFrame(1, "DH"), 200);
+        // request waits in a queue for longer than its timeout before it is written
+        Thread.sleep(300);
+        future.written();
+        long time = System.currentTimeMillis();
+        assertEquals("timed out", null, future.get());
+        time = System.currentTimeMillis() - time;
+        assertTrue("waited " + time + " ms", time >= 150);
+    }
+
+    public void testBroadcastListenerReceivesAllResponses() throws Exception {
+        XBeeInFlightTable table = new XBeeInFlightTable();
+        final List<XBeeAtResponseFrame> received = new ArrayList<XBeeAtResponseFrame>();
+        XBeeTerminatingFrameListener<XBeeAtResponseFrame> listener =
+                new XBeeTerminatingFrameListener<XBeeAtResponseFrame>() {
+            public boolean isTerminated() {
+                return received.size() >= 3;
+            }
+
+            public void frameReceived(XBeeAtResponseFrame frame) {
+                received.add(frame);
+            }
+
+            public void connectionClosed() {}
+        };
+        XBeeResponseFuture future = table.register(XBeeRemoteAtFrame.newBuilder(XBeeAddress.BROADCAST)
+                .setAtCommand("DH").setFrameId((byte) 1).build(), TIMEOUT, XBeeAtResponseFrame.class, listener);
+        byte id = future.getRequest().getFrameId();
+        table.frameReceived(remoteAtResponse(id, 1, "DH"));
+        table.frameReceived(remoteAtResponse(id, 2, "DH"));
+        assertTrue("waits for more responses", !future.isDone());
+        table.frameReceived(remoteAtResponse(id, 3, "DH"));
+        assertTrue("done when listener terminates", future.isDone());
+        assertEquals("responses", 3, received.size());
+    }
+
+    public void testUnicastListenerCompletesOnFirstResponse() throws Exception {
+        XBeeInFlightTable table = new XBeeInFlightTable();
+        XBeeTerminatingFrameListener<XBeeAtResponseFrame> listener =
+                new XBeeTerminatingFrameListener<XBeeAtResponseFrame>() {
+            public boolean isTerminated() {
+                return false;
+            }
+
+            public void frameReceived(XBeeAtResponseFrame frame) {}
+
+            public void connectionClosed() {}
+        };
+        XBeeResponseFuture future = table.register(XBeeRemoteAtFrame.newBuilder(FakeRadio.address(1))
+                .setAtCommand("DH").setFrameId((byte) 1).build(), TIMEOUT, XBeeAtResponseFrame.class, listener);
+        table.frameReceived(remoteAtResponse(future.getRequest().getFrameId(), 1, "DH"));
+        assertTrue("done", future.isDone());
+    }
+
+    public void testQueriesToDifferentNodesRunConcurrently() throws Exception {
+        FakeRadio radio = new FakeRadio(4);
+        radio.setOnline(1, false);
+        radio.setOnline(2, false);
+        final XBeeConnection conn = XBeeConnection.open(radio);
+        try {
+            // unreachable nodes answer each of DH and DL in 300 ms, so serialized queries would take 1200 ms
+            long time = System.currentTimeMillis();
+            Thread[] threads = new Thread[2];
+            final int[] status = new int[2];
+            for (int i = 0; i < threads.length; i++) {
+                final int k = i;
+                threads[i] = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            status[k] = conn.queryRemoteDestination(FakeRadio.address(k + 1), NO_VISITOR);
+                        } catch (IOException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                };
+                threads[i].start();
+            }
+            for (Thread thread : threads)
+                thread.join();
+            time = System.currentTimeMillis() - time;
+            assertEquals("status 1", XBeeAtResponseFrame.STATUS_TX_FAILURE, status[0]);
+            assertEquals("status 2", XBeeAtResponseFrame.STATUS_TX_FAILURE, status[1]);
+            assertTrue("concurrent, took " + time + " ms", time < 1100);
+        } finally {
+            conn.close();
+        }
+    }
+
+    public void testUnicastQueryDoesNotWaitForTimeout() throws Exception {
+        XBeeConnection conn = XBeeConnection.open(new FakeRadio(2));
+        try {
+            long time = System.currentTimeMillis();
+            int status = conn.queryRemoteDestination(FakeRadio.address(1), NO_VISITOR);
+            time = System.currentTimeMillis() - time;
+            assertEquals("status", XBeeAtResponseFrame.STATUS_OK, status);
+            assertTrue("took " + time + " ms", time < XBeeConnection.DEFAULT_TIMEOUT / 2);
+        } finally {
+            conn.close();
+        }
+    }
+
+    private static final XBeeTerminatingDestinationVisitor NO_VISITOR = new XBeeTerminatingDestinationVisitor() {
+        public boolean isTerminated() {
+            return false;
+        }
+
+        public void visitNodeDestination(XBeeAddress node, XBeeAddress nodeDestination) {}
+    };
+
+    private static XBeeFrameWithId atFrame(int frameId, String command) {
+        return XBeeAtFrame.newBuilder().setAtCommand(command).setFrameId((byte) frameId).build();
+    }
+
+    private static XBeeFrameWithId atResponse(byte frameId, String command) {
+        return (XBeeFrameWithId) XBeeFrame.newBuilder(XBeeFrameType.AT_RESPONSE)
+                .append(frameId).append(command.getBytes()).append(0).build();
+    }
+
+    private static XBeeFrameWithId remoteAtResponse(byte frameId, int node, String command) {
+        return (XBeeFrameWithId) XBeeFrame.newBuilder(XBeeFrameType.REMOTE_AT_RESPONSE)
+                .append(frameId).append(FakeRadio.address(node).getAddressBytes())
+                .append(command.getBytes()).append(0).append(new byte[4]).build();
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2012 Roman Elizarov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.avrbuddy.xbee.api;
+
+import org.avrbuddy.conn.InputOverflowPolicy;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.avrbuddy.test.Assert.*;
+
+/**
+ * @author Roman Elizarov
+ */
+public class XBeeQueuedFrameListenerTest {
+    public void testSlowListenerDoesNotBlockCaller() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        SlowListener slow = new SlowListener(release);
+        XBeeQueuedFrameListener<Integer> queued =
+                new XBeeQueuedFrameListener<Integer>("slow", slow, 2, XBeeOverflowPolicy.DROP_NEWEST);
+        long time = System.currentTimeMillis();
+        queued.frameReceived(0);
+        while (queued.getDeliveredCount() == 0)
+            Thread.sleep(1);
+        for (int i = 1; i < 10; i++)
+            queued.frameReceived(i);
+        assertTrue("caller is not stalled", System.currentTimeMillis() - time < 500);
+        Thread.sleep(100);
+        release.countDown();
+        queued.stop();
+        queued.join();
+        // one frame was taken by the worker, two more were queued
+        assertEquals("delivered", 3, queued.getDeliveredCount());
+        assertEquals("dropped", 7, queued.getDroppedCount());
+        assertTrue("lag is measured", queued.getMaxLag(TimeUnit.MILLISECONDS) >= 100);
+        assertTrue("done", queued.isDone());
+    }
+
+    public void testConnectionReportsRunningQueues() throws Exception {
+        XBeeConnection conn = XBeeConnection.open(new FakeRadio(1));
+        try {
+            assertEquals("not queued by default", 0, conn.getDispatchStats().size());
+            conn.setQueuedDispatch(4, XBeeOverflowPolicy.DROP_OLDEST);
+            XBeeFrameListener<Integer> listener = conn.queuedIfConfigured("test", new SlowListener(new CountDownLatch(0)));
+            List<String> stats = conn.getDispatchStats();
+            assertEquals("running queues", 1, stats.size());
+            assertTrue("stats " + stats, stats.get(0).startsWith("test: delivered 0, dropped 0"));
+            ((XBeeQueuedFrameListener<Integer>) listener).stop();
+            ((XBeeQueuedFrameListener<Integer>) listener).join();
+            assertEquals("stopped queue is forgotten", 0, conn.getDispatchStats().size());
+        } finally {
+            conn.close();
+        }
+    }
+
+    public void testBlockingTunnelsNeedQueuedDispatch() throws Exception {
+        XBeeConnection conn = XBeeConnection.open(new FakeRadio(1));
+        try {
+            try {
+                conn.setTunnelOverflowPolicy(InputOverflowPolicy.BLOCK, 0);
+                fail("BLOCK without queued dispatch");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+            conn.setQueuedDispatch(16, XBeeOverflowPolicy.BLOCK);
+            conn.setTunnelOverflowPolicy(InputOverflowPolicy.BLOCK, 0);
+            try {
+                conn.setQueuedDispatch(0, XBeeOverflowPolicy.BLOCK);
+                fail("queued dispatch is turned off with BLOCK");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        } finally {
+            conn.close();
+        }
+    }
+
+    private static class SlowListener implements XBeeFrameListener<Integer> {
+        private final CountDownLatch release;
+
+        SlowListener(CountDownLatch release) {
+            this.release = release;
+        }
+
+        public void frameReceived(Integer frame) {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        public void connectionClosed() {}
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2012 Roman Elizarov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.avrbuddy.xbee.api;
+
+import org.avrbuddy.conn.Connection;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+import static org.avrbuddy.test.Assert.*;
+
+/**
+ * @author Roman Elizarov
+ */
+public class XBeeTunnelTest {
+    private static final byte[] DATA = {1, 2, 3};
+
+    public void testFlushTimesOutWhileFrameIsQueued() throws Exception {
+        FakeRadio radio = new FakeRadio(2);
+        XBeeConnection conn = XBeeConnection.open(radio);
+        try {
+            // the first tunnel occupies the writer with a stalled write
+            final Connection first = conn.openTunnel(FakeRadio.address(1));
+            Connection second = conn.openTunnel(FakeRadio.address(2));
+            second.setWriteTimeout(300);
+            radio.stallOutput();
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        first.getOutput().write(DATA);
+                        first.getOutput().flush();
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            thread.start();
+            Thread.sleep(100);
+            second.getOutput().write(DATA);
+            long time = System.currentTimeMillis();
+            try {
+                second.getOutput().flush();
+                fail("timeout expected");
+            } catch (InterruptedIOException e) {
+                // expected
+            }
+            time = System.currentTimeMillis() - time;
+            assertTrue("timed out after " + time + " ms", time >= 250 && time < 1000);
+            radio.releaseOutput();
+            thread.join();
+            // data that has timed out stays buffered and goes with the next flush
+            second.getOutput().flush();
+            assertArrayEquals("first", DATA, awaitReceived(radio, 1));
+            assertArrayEquals("second", DATA, awaitReceived(radio, 2));
+        } finally {
+            conn.close();
+        }
+    }
+
+    public void testFlushDoesNotWaitForDeliveryButSyncDoes() throws Exception {
+        FakeRadio radio = new FakeRadio(1);
+        radio.setTxDelay(1000);
+        XBeeConnection conn = XBeeConnection.open(radio);
+        try {
+            conn.setTunnelWindow(4);
+            Connection tunnel = conn.openTunnel(FakeRadio.address(1));
+            tunnel.setWriteTimeout(300);
+            tunnel.getOutput().write(DATA);
+            long time = System.currentTimeMillis();
+            tunnel.getOutput().flush();
+            time = System.currentTimeMillis() - time;
+            assertTrue("flushed in " + time + " ms", time < 250);
+            // delivery status comes after write timeout
+            time = System.currentTimeMillis();
+            try {
+                tunnel.sync();
+                fail("timeout expected");
+            } catch (InterruptedIOException e) {
+                // expected
+            }
+            time = System.currentTimeMillis() - time;
+            assertTrue("timed out after " + time + " ms", time >= 250 && time < 900);
+            tunnel.setWriteTimeout(0);
+            tunnel.sync();
+            assertArrayEquals("received", DATA, radio.getReceived(1));
+        } finally {
+            conn.close();
+        }
+    }
+
+    private static byte[] awaitReceived(FakeRadio radio, int i) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 2000;
+        byte[] received;
+        while ((received = radio.getReceived(i)).length < DATA.length && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        return received;
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2012 Roman Elizarov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.avrbuddy.xbee.api;
+
+import java.io.ByteArrayOutputStream;
+
+import static org.avrbuddy.test.Assert.*;
+
+/**
+ * @author Roman Elizarov
+ */
+public class XBeeTxWindowTest {
+    private static final int FRAMES = 20;
+
+    public void testDataIsDeliveredInOrder() throws Exception {
+        FakeRadio radio = new FakeRadio(1);
+        radio.setTxDelay(20);
+        XBeeConnection conn = XBeeConnection.open(radio);
+        try {
+            XBeeTxWindow window = new XBeeTxWindow(conn, FakeRadio.address(1), XBeeSendPriority.BULK, this, 8);
+            byte[] expected = sendAll(window);
+            assertArrayEquals("received", expected, radio.getReceived(1));
+            assertTrue("window has grown to " + window.getWindow(), window.getWindow() > 2);
+        } finally {
+            conn.close();
+        }
+    }
+
+    public void testWindowGrowsWhenDataIsWrittenSlowly() throws Exception {
+        FakeRadio radio = new FakeRadio(1);
+        radio.setTxDelay(20);
+        XBeeConnection conn = XBeeConnection.open(radio);
+        try {
+            XBeeTxWindow window = new XBeeTxWindow(conn, FakeRadio.address(1), XBeeSendPriority.BULK, this, 8);
+            // statuses arrive long before frames are processed, that time is not a latency
+            for (int i = 0; i < 40; i++) {
+                window.send(chunk(i), 0);
+                Thread.sleep(30);
+            }
+            assertTrue("window has grown to " + window.getWindow(), window.getWindow() >= 7);
+            window.drain(0);
+        } finally {
+            conn.close();
+        }
+    }
+
+    public void testFailedWindowIsRetransmittedInOrder() throws Exception {
+        FakeRadio radio = new FakeRadio(1);
+        radio.setTxDelay(50);
+        XBeeConnection conn = XBeeConnection.open(radio);
+        try {
+            XBeeTxWindow window = new XBeeTxWindow(conn, FakeRadio.address(1), XBeeSendPriority.BULK, this, 8);
+            // both frames of initial window are in flight when they fail
+            radio.failTx(2);
+            byte[] expected = sendAll(window);
+            assertArrayEquals("received", expected, radio.getReceived(1));
+        } finally {
+            conn.close();
+        }
+    }
+
+    public void testDeliveryOutOfOrderIsReported() throws Exception {
+        FakeRadio radio = new FakeRadio(1);
+        radio.setTxDelay(50);
+        XBeeConnection conn = XBeeConnection.open(radio);
+        try {
+            XBeeTxWindow window = new XBeeTxWindow(conn, FakeRadio.address(1), XBeeSendPriority.BULK, this, 8);
+            // the first frame fails, but the second one that is already in flight is delivered
+            radio.failTx(1);
+            try {
+                sendAll(window);
+                fail("failure expected");
+            } catch (XBeeException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("out of order"));
+            }
+            assertArrayEquals("nothing is retransmitted", chunk(1), radio.getReceived(1));
+        } finally {
+            conn.close();
+        }
+    }
+
+    private static byte[] sendAll(XBeeTxWindow window) throws Exception {
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (int i = 0; i < FRAMES; i++) {
+            byte[] chunk = chunk(i);
+            window.send(chunk, 0);
+            expected.write(chunk);
+        }
+        window.drain(0);
+        return expected.toByteArray();
+    }
+
+    private static byte[] chunk(int i) {
+        byte[] chunk = new byte[10];
+        for (int j = 0; j < chunk.length; j++)
+            chunk[j] = (byte) (i * chunk.length + j);
+        return chunk;
+    }
+}
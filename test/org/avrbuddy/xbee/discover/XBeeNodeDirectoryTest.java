@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2012 Roman Elizarov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.avrbuddy.xbee.discover;
+
+import org.avrbuddy.xbee.api.FakeRadio;
+
+import static org.avrbuddy.test.Assert.*;
+
+/**
+ * @author Roman Elizarov
+ */
+public class XBeeNodeDirectoryTest {
+    public void testIdIsKeptWhenNodeWithSameIdIsRemoved() {
+        XBeeNodeDirectory directory = new XBeeNodeDirectory();
+        XBeeNode a = new XBeeNode(FakeRadio.address(1), "A", false);
+        XBeeNode b = new XBeeNode(FakeRadio.address(2), "A", false);
+        XBeeNode c = new XBeeNode(FakeRadio.address(3), "A", false);
+        directory.put(a);
+        directory.put(b);
+        directory.put(c);
+        assertEquals("most recent", c, directory.getById("A"));
+        directory.remove(FakeRadio.address(3).getSerialNumber());
+        assertEquals("next most recent", b, directory.getById("A"));
+        directory.remove(FakeRadio.address(1).getSerialNumber());
+        assertEquals("remaining", b, directory.getById("A"));
+        directory.remove(FakeRadio.address(2).getSerialNumber());
+        assertEquals("none", null, directory.getById("A"));
+    }
+
+    public void testIdIsKeptWhenNodeIsRenamed() {
+        XBeeNodeDirectory directory = new XBeeNodeDirectory();
+        XBeeNode a = new XBeeNode(FakeRadio.address(1), "A", false);
+        directory.put(a);
+        directory.put(new XBeeNode(FakeRadio.address(2), "A", false));
+        XBeeNode b = new XBeeNode(FakeRadio.address(2), "B", false);
+        directory.put(b);
+        assertEquals("A", a, directory.getById("A"));
+        assertEquals("B", b, directory.getById("B"));
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2012 Roman Elizarov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.avrbuddy.xbee.discover;
+
+import org.avrbuddy.conn.Connection;
+import org.avrbuddy.xbee.api.FakeRadio;
+import org.avrbuddy.xbee.api.XBeeAddress;
+import org.avrbuddy.xbee.api.XBeeAtFrame;
+import org.avrbuddy.xbee.api.XBeeConnection;
+import org.avrbuddy.xbee.api.XBeeException;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.avrbuddy.test.Assert.*;
+
+/**
+ * @author Roman Elizarov
+ */
+public class XBeeNodeDiscoveryTest {
+    private static final int NODES = 10;
+    private static final long MIN_NT_TIME = 3200; // NT of 0x20
+    private static final int MANY_NODES = 20;
+    private static final long REQUEST_TIMEOUT = 10000;
+    static {
+        System.setProperty(XBeeNodeDiscovery.DIRECTORY_PROPERTY, "none");
+    }
+
+    public void testNodeIsRemovedAfterRepeatedFailures() throws Exception {
+        FakeRadio radio = new FakeRadio(1);
+        XBeeConnection conn = XBeeConnection.open(radio);
+        try {
+            XBeeNodeDiscovery discovery = new XBeeNodeDiscovery(conn);
+            XBeeAddress address = FakeRadio.address(1);
+            discovery.getOrDiscoverNodeByAddress(address);
+            radio.setOnline(1, false);
+            // a sleeping end device misses some requests
+            for (int i = 0; i < 2; i++) {
+                query(conn, address);
+                Thread.sleep(100);
+                assertTrue("known after " + (i + 1) + " failures", discovery.getNodeByAddress(address) != null);
+            }
+            query(conn, address);
+            long deadline = System.currentTimeMillis() + 1000;
+            while (discovery.getNodeByAddress(address) != null && System.currentTimeMillis() < deadline)
+                Thread.sleep(10);
+            assertTrue("removed", discovery.getNodeByAddress(address) == null);
+        } finally {
+            conn.close();
+        }
+    }
+
+    public void testNodeIsRemovedWhenTunnelDataDoesNotReachIt() throws Exception {
+        FakeRadio radio = new FakeRadio(1);
+        XBeeConnection conn = XBeeConnection.open(radio);
+        try {
+            conn.setTunnelWindow(4);
+            XBeeNodeDiscovery discovery = new XBeeNodeDiscovery(conn);
+            XBeeAddress address = FakeRadio.address(1);
+            discovery.getOrDiscoverNodeByAddress(address);
+            radio.setOnline(1, false);
+            Connection tunnel = conn.openTunnel(address);
+            tunnel.getOutput().write(new byte[] {1, 2, 3});
+            // data is retransmitted a few times, each failed delivery is counted
+            try {
+                tunnel.sync();
+                fail("failure expected");
+            } catch (XBeeException e) {
+                // expected
+            }
+            long deadline = System.currentTimeMillis() + 1000;
+            while (discovery.getNodeByAddress(address) != null && System.currentTimeMillis() < deadline)
+                Thread.sleep(10);
+            assertTrue("removed", discovery.getNodeByAddress(address) == null);
+        } finally {
+            conn.close();
+        }
+    }
+
+    public void testNodeThatRespondsIsKept() throws Exception {
+        FakeRadio radio = new FakeRadio(1);
+        XBeeConnection conn = XBeeConnection.open(radio);
+        try {
+            XBeeNodeDiscovery discovery = new XBeeNodeDiscovery(conn);
+            XBeeAddress address = FakeRadio.address(1);
+            discovery.getOrDiscoverNodeByAddress(address);
+            // failures that are not in a row do not add up
+            for (int i = 0; i < 3; i++) {
+                radio.setOnline(1, false);
+                query(conn, address);
+                query(conn, address);
+                radio.setOnline(1, true);
+                query(conn, address);
+            }
+            Thread.sleep(100);
+            assertTrue("known", discovery.getNodeByAddress(address) != null);
+        } finally {
+            conn.close();
+        }
+    }
+
+    public void testDiscoveryEndsOnceKnownNodesHaveResponded() throws Exception {
+        FakeRadio radio = new FakeRadio(NODES);
+        XBeeConnection conn = XBeeConnection.open(radio);
+        try {
+            XBeeNodeDiscovery discovery = new XBeeNodeDiscovery(conn);
+            // nothing is known yet, so the first discovery waits for the whole NT window
+            long time = discoverAll(discovery, NODES);
+            assertTrue("first discovery took " + time + " ms", time >= MIN_NT_TIME);
+            // all nodes are known and latencies are learned
+            time = discoverAll(discovery, NODES);
+            assertTrue("second discovery took " + time + " ms", time < MIN_NT_TIME / 2);
+            // a node that does not respond holds discovery only until responses are rarely seen
+            radio.setOnline(NODES, false);
+            time = discoverAll(discovery, NODES - 1);
+            assertTrue("discovery without a node took " + time + " ms", time < MIN_NT_TIME / 2);
+        } finally {
+            conn.close();
+        }
+    }
+
+    public void testConcurrentRequestsShareDiscoveries() throws Exception {
+        FakeRadio radio = new FakeRadio(MANY_NODES);
+        XBeeConnection conn = XBeeConnection.open(radio);
+        try {
+            XBeeNodeDiscovery discovery = new XBeeNodeDiscovery(conn);
+            Request[] requests = new Request[MANY_NODES];
+            for (int i = 0; i < MANY_NODES; i++)
+                requests[i] = new Request(discovery, "NODE" + (i + 1));
+            for (Request request : requests)
+                assertEquals(request.id, FakeRadio.address(request.number()), request.await().getAddress());
+            assertTrue("node discoveries " + radio.getNodeDiscoveryCount(),
+                    radio.getNodeDiscoveryCount() < MANY_NODES / 2);
+        } finally {
+            conn.close();
+        }
+    }
+
+    public void testInterruptedLeaderDoesNotStrandBatch() throws Exception {
+        FakeRadio radio = new FakeRadio(MANY_NODES);
+        radio.setLatency(1, 1500);
+        XBeeConnection conn = XBeeConnection.open(radio);
+        try {
+            XBeeNodeDiscovery discovery = new XBeeNodeDiscovery(conn);
+            // discovery of a single node runs, so the next batch waits for it
+            Request running = new Request(discovery, "NODE1");
+            Thread.sleep(100);
+            Request leader = new Request(discovery, "NODE2");
+            Thread.sleep(10);
+            Request follower = new Request(discovery, "NODE3");
+            Thread.sleep(100);
+            leader.interrupt();
+            assertTrue("leader fails", leader.awaitFailure() instanceof InterruptedIOException);
+            assertTrue("follower fails", follower.awaitFailure() != null);
+            // the failed batch is gone, so new requests are served
+            assertEquals("next", FakeRadio.address(4), new Request(discovery, "NODE4").await().getAddress());
+            assertEquals("running", FakeRadio.address(1), running.await().getAddress());
+        } finally {
+            conn.close();
+        }
+    }
+
+    // request for a node by id in its own thread
+    private static class Request extends Thread {
+        private final XBeeNodeDiscovery discovery;
+        final String id;
+        private volatile XBeeNode node;
+        private volatile IOException failure;
+
+        Request(XBeeNodeDiscovery discovery, String id) {
+            this.discovery = discovery;
+            this.id = id;
+            setDaemon(true);
+            start();
+        }
+
+        int number() {
+            return Integer.parseInt(id.substring(4));
+        }
+
+        @Override
+        public void run() {
+            try {
+                node = discovery.getOrDiscoverByNodeId(id, 1);
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+
+        XBeeNode await() throws Exception {
+            join(REQUEST_TIMEOUT);
+            assertTrue(id + " is done", !isAlive());
+            if (failure != null)
+                throw failure;
+            return node;
+        }
+
+        IOException awaitFailure() throws Exception {
+            join(REQUEST_TIMEOUT);
+            assertTrue(id + " is done", !isAlive());
+            return failure;
+        }
+    }
+
+    // returns time it took
+    private static long discoverAll(XBeeNodeDiscovery discovery, int expected) throws Exception {
+        final Set<XBeeAddress> visited = new HashSet<XBeeAddress>();
+        long time = System.currentTimeMillis();
+        discovery.discoverAllNodes(new XBeeNodeVisitor() {
+            public void visitNode(XBeeNode node) {
+                if (node.isLocalNode())
+                    return;
+                synchronized (visited) {
+                    visited.add(node.getAddress());
+                }
+            }
+        });
+        time = System.currentTimeMillis() - time;
+        synchronized (visited) {
+            assertEquals("visited", expected, visited.size());
+        }
+        return time;
+    }
+
+    private static void query(XBeeConnection conn, XBeeAddress address) throws Exception {
+        conn.sendFramesWithIdSeriallyAndWait(XBeeConnection.DEFAULT_TIMEOUT,
+                XBeeAtFrame.newBuilder(address).setAtCommand("NI"));
+    }
+}
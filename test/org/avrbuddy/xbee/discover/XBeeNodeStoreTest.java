@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2012 Roman Elizarov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.avrbuddy.xbee.discover;
+
+import org.avrbuddy.xbee.api.FakeRadio;
+
+import java.io.File;
+
+import static org.avrbuddy.test.Assert.*;
+
+/**
+ * @author Roman Elizarov
+ */
+public class XBeeNodeStoreTest {
+    private static final int NODES = 20;
+
+    public void testNodesAreWrittenInBackground() throws Exception {
+        File file = File.createTempFile("xtools", ".nodes");
+        try {
+            XBeeNodeStore store = new XBeeNodeStore(file);
+            store.load();
+            for (int i = 1; i <= NODES; i++)
+                store.putNode(new XBeeNode(FakeRadio.address(i), "NODE" + i, false), null);
+            store.removeNode(FakeRadio.address(1));
+            // records are written by another thread
+            store.awaitWritten();
+            XBeeNodeStore copy = new XBeeNodeStore(file);
+            copy.load();
+            assertEquals("loaded", NODES - 1, copy.getNodes().size());
+        } finally {
+            file.delete();
+        }
+    }
+}